@@ -0,0 +1,90 @@
+/*
+ * (C) Copyright 2017 The CloudEC Project and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Contributors:
+ *      Wei-Chun Chung (wcchung@iis.sinica.edu.tw)
+ *      Chien-Chih Chen (rocky@iis.sinica.edu.tw)
+ * 
+ * CloudEC Project:
+ *      https://github.com/CSCLabTW/CloudEC/
+ */
+
+
+package tw.edu.sinica.iis.CloudEC;
+
+import java.lang.management.ManagementFactory;
+
+import org.apache.hadoop.mapred.Reporter;
+
+import com.sun.management.ThreadMXBean;
+
+// Bytes allocated by the thread of a task, added to the Brush counters
+// map_alloc_bytes and map_alloc_records, see RunReport. The thread is only
+// looked up every SAMPLE records, the records of the last window of a task
+// are left out of both counters. Counts nothing on JVMs without per-thread
+// allocation accounting.
+public class AllocationCounter {
+	private static final int SAMPLE = 256;
+
+	private static final ThreadMXBean threads = getThreads();
+
+	private int records = 0;
+	private long last = 0;
+
+	private static ThreadMXBean getThreads() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory
+				.getThreadMXBean();
+
+		if (bean instanceof ThreadMXBean) {
+			ThreadMXBean threads = (ThreadMXBean) bean;
+
+			if (threads.isThreadAllocatedMemorySupported()
+					&& threads.isThreadAllocatedMemoryEnabled()) {
+				return threads;
+			}
+		}
+
+		return null;
+	}
+
+	public AllocationCounter() {
+		last = allocated();
+	}
+
+	private static long allocated() {
+		if (threads == null) {
+			return -1;
+		}
+
+		return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	// Call once per input record, from the thread of the task
+	public void count(final Reporter reporter) {
+		if (threads == null || ++records < SAMPLE) {
+			return;
+		}
+
+		long now = allocated();
+
+		if (last >= 0 && now >= last) {
+			reporter.incrCounter("Brush", "map_alloc_bytes", now - last);
+			reporter.incrCounter("Brush", "map_alloc_records", records);
+		}
+
+		last = now;
+		records = 0;
+	}
+}
@@ -35,6 +35,10 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.ClusterStatus;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.RunningJob;
 import org.apache.hadoop.util.Tool;
@@ -46,11 +50,26 @@ import org.apache.log4j.TTCCLayout;
 
 public class CloudEC extends Configured implements Tool {
 	private static DecimalFormat df = new DecimalFormat("0.00");
+
+	// bases of reads sampled to balance the SpreadCorrect reducers, from at
+	// most SAMPLE_MAX per mille of the reads
+	private static final long SAMPLE_BASES = 20000000L;
+	private static final int SAMPLE_MAX = 100;
+
+	// the filters of the solid SpreadCorrect kmers may take a quarter of the
+	// heap of a mapper
+	private static final int SKETCH_HEAP_SHARE = 4;
+
+	// the LargeKmerFilter lists may take a third of the heap of a mapper
+	private static final int KMERSET_HEAP_SHARE = 3;
 	private static FileOutputStream logfile;
 	private static PrintStream logstream;
 
 	JobConf baseconf = new JobConf(CloudEC.class);
 
+	// runs the jobs in this JVM instead of submitting them to Hadoop
+	LocalEngine engine = null;
+
 	static String preprocess = "00-preprocess";
 	static String pinchcorrect = "01-pinchcorrect";
 	static String largekmerfilter = "02-largekmerfilter";
@@ -62,31 +81,74 @@ public class CloudEC extends Configured implements Tool {
 	long GLOBALNUMSTEPS = 0;
 	long JOBSTARTTIME = 0;
 
+	// the counters of all jobs, see RunReport
+	RunReport report = new RunReport();
+
+	// task counts of the jobs, null if they are all given
+	JobSizer sizer = null;
+	private String STEP;
+	private long ROUND = 0;
+
 	public void start(String desc) {
 		msg(desc + ":\t");
 		JOBSTARTTIME = System.currentTimeMillis();
 		GLOBALNUMSTEPS++;
+		STEP = desc.trim();
 	}
 
-	public void end(RunningJob job) throws IOException {
+	public void end(String jobid, boolean success) {
 		long endtime = System.currentTimeMillis();
 		long diff = (endtime - JOBSTARTTIME) / 1000;
 
-		msg(job.getID().toString() + " " + diff + " s");
+		msg(jobid + " " + diff + " s");
 
-		if (!job.isSuccessful()) {
+		if (!success) {
 			System.out.println("Job failed.");
 			System.exit(1);
 		}
 	}
 
 	public static void msg(String msg) {
-		logstream.print(msg);
+		if (logstream != null) {
+			logstream.print(msg);
+		}
 		System.out.print(msg);
 	}
 
-	public long counter(RunningJob job, String tag) throws IOException {
-		return job.getCounters().findCounter("Brush", tag).getValue();
+	public long counter(Counters counters, String tag) throws IOException {
+		return counters.findCounter("Brush", tag).getValue();
+	}
+
+	// Job Management
+	public Counters runJob(JobConf conf) throws IOException {
+		if (sizer != null) {
+			sizer.size(conf);
+		}
+
+		if (engine != null) {
+			Counters counters = engine.runJob(conf);
+			end(engine.getJobId(), true);
+
+			report.add(CURRENTSTAGE, ROUND, STEP, engine.getJobId(),
+					System.currentTimeMillis() - JOBSTARTTIME, counters);
+
+			return counters;
+		}
+
+		// delete the output directory if it exists already
+		FileSystem.get(conf).delete(FileOutputFormat.getOutputPath(conf), true);
+
+		RunningJob job = JobClient.runJob(conf);
+		end(job.getID().toString(), job.isSuccessful());
+
+		report.add(CURRENTSTAGE, ROUND, STEP, job.getID().toString(),
+				System.currentTimeMillis() - JOBSTARTTIME, job.getCounters());
+
+		if (sizer != null) {
+			sizer.observe(conf, job.getCounters());
+		}
+
+		return job.getCounters();
 	}
 
 	// Stage Management
@@ -95,6 +157,7 @@ public class CloudEC extends Configured implements Tool {
 
 	public boolean runStage(String stage) {
 		CURRENTSTAGE = stage;
+		ROUND = 0;
 
 		if (Config.STARTSTAGE == null || Config.STARTSTAGE.equals(stage)) {
 			RUNSTAGE = true;
@@ -115,6 +178,11 @@ public class CloudEC extends Configured implements Tool {
 
 	// File Management
 	public void cleanup(String path) throws IOException {
+		if (engine != null) {
+			engine.delete(path);
+			return;
+		}
+
 		FileSystem.get(baseconf).delete(new Path(path), true);
 	}
 
@@ -122,22 +190,91 @@ public class CloudEC extends Configured implements Tool {
 			throws IOException {
 		msg("  Save result to " + npath + "\n");
 
+		if (engine != null) {
+			engine.delete(base + npath);
+			engine.rename(base + opath, base + npath);
+			return;
+		}
+
 		FileSystem.get(baseconf).delete(new Path(base + npath), true);
 		FileSystem.get(baseconf).rename(new Path(base + opath),
 				new Path(base + npath));
 	}
 
+	// Stage Cache
+	public StageManifest manifest(String stage, String name, String input,
+			String output) throws IOException {
+		FileSystem fs = (engine == null) ? FileSystem.get(baseconf) : null;
+
+		StageManifest manifest = new StageManifest(fs, Config.hadoopTmpPath
+				+ name + ".manifest");
+		manifest.setInput(input);
+		manifest.setOutput(output);
+
+		// the parameters read by the jobs of the stage
+		if (stage.equals(preprocess)) {
+			manifest.setParam("K", Config.K);
+			manifest.setParam("PINCHCORRECT", Config.PINCHCORRECT);
+			manifest.setParam("SHAVE_IGNORE", Config.SHAVE_IGNORE);
+			manifest.setParam("INPUT_FORMAT", Config.INPUT_FORMAT);
+		} else if (stage.equals(pinchcorrect)) {
+			manifest.setParam("K", Config.K);
+		} else if (stage.equals(largekmerfilter)) {
+			manifest.setParam("K", Config.K);
+			manifest.setParam("FILTER_P", Config.FILTER_P);
+			manifest.setParam("FILTER_S", Config.FILTER_S);
+			manifest.setParam("STACK_MIN", Config.STACK_MIN);
+			manifest.setParam("STACK_MAX", Config.STACK_MAX);
+		} else if (stage.equals(spreadcorrect)) {
+			manifest.setParam("K", Config.K);
+			manifest.setParam("ARM_SCHEME", Config.ARM_SCHEME);
+			manifest.setParam("ARM_L", Config.ARM_L);
+			manifest.setParam("ARM_H", Config.ARM_H);
+			manifest.setParam("STACK_MIN", Config.STACK_MIN);
+			manifest.setParam("STACK_MAX", Config.STACK_MAX);
+		} else if (stage.equals(uniquekmerfilter)) {
+			manifest.setParam("K", Config.K);
+		} else if (stage.equals(postprocess)) {
+			manifest.setParam("MERGE_IGNORE", Config.MERGE_IGNORE);
+		}
+
+		return manifest;
+	}
+
+	// Whether the output of the manifest is still valid, the stale manifest
+	// is removed if not
+	public boolean cached(StageManifest manifest) throws IOException {
+		if (Config.RESUME.equals("on") && manifest.matches()) {
+			return true;
+		}
+
+		manifest.delete();
+
+		return false;
+	}
+
 	// PreProcess
 	public void preprocess(String inputPath, String basePath, String loadreads)
 			throws Exception {
-		RunningJob job;
+		Counters job;
 
 		msg("\nPreProcess:");
 
+		StageManifest stage = manifest(preprocess, preprocess, inputPath,
+				basePath + loadreads);
+		if (cached(stage)) {
+			report.setInputBases(stage.getCounter("reads_goodbp"));
+			if (sizer != null && stage.getCounter("reads_good") > 0) {
+				sizer.setReadLength((double) stage.getCounter("reads_goodbp")
+						/ stage.getCounter("reads_good"));
+			}
+			msg("\n  Cached in " + loadreads + "\n");
+			return;
+		}
+
 		start("\n  Convert");
 		PreProcessConvert ppr = new PreProcessConvert();
-		job = ppr.run(inputPath, basePath + loadreads);
-		end(job);
+		job = runJob(ppr.createJob(inputPath, basePath + loadreads));
 
 		long reads_goodbp = counter(job, "reads_goodbp");
 		long reads_gccnts = counter(job, "reads_gccnts");
@@ -150,6 +287,11 @@ public class CloudEC extends Configured implements Tool {
 			throw new IOException("No good reads");
 		}
 
+		report.setInputBases(reads_goodbp);
+		if (sizer != null) {
+			sizer.setReadLength((double) reads_goodbp / reads_good);
+		}
+
 		String frac_reads = df.format(100.0 * reads_good / reads_all);
 		String frac_gccnt = df.format(100.0 * reads_gccnts / reads_goodbp);
 		msg(" [" + reads_good + " (" + frac_reads + "%) good_reads, "
@@ -159,15 +301,27 @@ public class CloudEC extends Configured implements Tool {
 		msg(" [" + frac_gccnt + "% gc content]");
 
 		msg("\n");
+
+		stage.setCounter("reads_goodbp", reads_goodbp);
+		stage.setCounter("reads_good", reads_good);
+		stage.save();
 	}
 
 	// PinchCorrect
 	public void pinchcorrect(String basePath, String input, String output)
 			throws Exception {
-		RunningJob job;
+		Counters job;
 
 		msg("\nPinchCorrect:");
 
+		StageManifest stage = manifest(pinchcorrect, output, basePath + input,
+				basePath + output);
+		stage.setParam("PCRUN", Config.PCRUN);
+		if (cached(stage)) {
+			msg("\n  Cached in " + output + "\n");
+			return;
+		}
+
 		String current = input;
 		long fix_char = 0;
 		long skip_char = 0;
@@ -176,21 +330,32 @@ public class CloudEC extends Configured implements Tool {
 
 		do {
 			round++;
+			ROUND = round;
+
+			StageManifest step = manifest(pinchcorrect, output + "." + round,
+					basePath + current, basePath + output + "." + round);
+			if (cached(step)) {
+				fix_char = step.getCounter("fix_char");
+				msg("\n  Cached in " + output + "." + round + "\t [" + fix_char
+						+ " fix_chars]");
+
+				current = output + "." + round;
+				continue;
+			}
 
 			start("\n  Recommend");
 			PinchCorrectRecommend pc = new PinchCorrectRecommend();
-			job = pc.run(basePath + current, basePath + output + "." + round
-					+".msg");
-			end(job);
+			job = runJob(pc.createJob(basePath + current, basePath + output
+					+ "." + round + ".msg"));
 
 			fix_char = counter(job, "fix_char");
 			msg(" [" + fix_char + " fix_chars]");
 
 			start("\n  Decision");
 			PinchCorrectDecision pcorr = new PinchCorrectDecision();
-			job = pcorr.run(basePath + current + "," + basePath + output + "."
-					+ round +".msg", basePath + output + "." + round);
-			end(job);
+			job = runJob(pcorr.createJob(basePath + current + "," + basePath
+					+ output + "." + round + ".msg", basePath + output + "."
+					+ round));
 
 			fix_char = counter(job, "fix_char");
 			skip_char = counter(job, "skip_char");
@@ -199,63 +364,198 @@ public class CloudEC extends Configured implements Tool {
 			msg(" [" + fix_read + " fix_reads]");
 
 			current = output + "." + round;
+
+			step.setCounter("fix_char", fix_char);
+			step.save();
 		} while (fix_char > 0 && round < Config.PCRUN);
 
 		msg("\n");
 
 		save_result(basePath, current, output);
+
+		stage.save();
 	}
 
 	// LargeKmerFilter
 	public void largekmerfilter(String basePath, String input, String output)
 			throws Exception {
-		RunningJob job;
+		Counters job = null;
 
 		msg("\nLargeKmerFilter:");
 
-		start("\n  CountKmers");
-		LargeKmerFilterCountKmers cik = new LargeKmerFilterCountKmers();
-		job = cik.run(basePath + input, basePath + output + ".ign");
-		end(job);
+		StageManifest stage = manifest(largekmerfilter, output, basePath
+				+ input, basePath + output);
+		if (cached(stage)) {
+			msg("\n  Cached in " + output + "\n");
+			return;
+		}
+
+		boolean join = true;
+
+		if (Config.LKF_COUNT.equals("on")) {
+			// every mapper loads the lists of kmers above STACK_MAX and in
+			// range, each of them occurs more than STACK_MAX, or at least
+			// STACK_MIN times in the windows of the reads
+			long windows = report.getInputBases()
+					* ((Config.FILTER_P ? 1 : 0) + (Config.FILTER_S ? 1 : 0));
+			long bytes = KmerSet.bytesFor(Config.STACK_MAX != -1 ? windows
+					/ (Config.STACK_MAX + 1) : 0)
+					+ KmerSet.bytesFor(Config.STACK_MIN > 1 ? windows
+							/ Config.STACK_MIN : 0);
+
+			// else join the kmers to the reads
+			if (bytes > Config.taskHeapBytes() / KMERSET_HEAP_SHARE) {
+				msg("\n  ListKmers skipped [up to " + bytes + " bytes]");
+			} else {
+				start("\n  ListKmers");
+				LargeKmerFilterListKmers lik = new LargeKmerFilterListKmers();
+				job = runJob(lik.createJob(basePath + input, basePath
+						+ output + ".ign"));
+
+				msg(" [" + counter(job, "hkmer") + " HKmer, "
+						+ counter(job, "lkmer") + " LKmer]");
+
+				start("\n  MarkReads");
+				LargeKmerFilterMarkReads mar = new LargeKmerFilterMarkReads();
+				job = runJob(mar.createJob(basePath + input, basePath
+						+ output + ".ign", basePath + output));
+				join = false;
+			}
+		}
 
-		msg(" [" + counter(job, "hkmer") + " HKmer, " + counter(job, "lkmer")
-				+ " LKmer]");
+		if (join) {
+			start("\n  CountKmers");
+			LargeKmerFilterCountKmers cik = new LargeKmerFilterCountKmers();
+			job = runJob(cik.createJob(basePath + input, basePath + output
+					+ ".ign"));
 
-		start("\n  TagReads");
-		LargeKmerFilterTagReads ail = new LargeKmerFilterTagReads();
-		job = ail.run(basePath + input + "," + basePath + output + ".ign",
-				basePath + output);
-		end(job);
+			msg(" [" + counter(job, "hkmer") + " HKmer, "
+					+ counter(job, "lkmer") + " LKmer]");
+
+			start("\n  TagReads");
+			LargeKmerFilterTagReads ail = new LargeKmerFilterTagReads();
+			job = runJob(ail.createJob(basePath + input + "," + basePath
+					+ output + ".ign", basePath + output));
+		}
+
+		msg(" [" + counter(job, "ignf_kmers") + " IGNF, "
+				+ counter(job, "ignp_kmers") + " IGNP]");
 
 		msg("\n");
+
+		stage.save();
+	}
+
+	// The per mille of the reads to sample for about SAMPLE_BASES bases
+	private static int sampleRate(long bases) {
+		if (bases <= 0) {
+			return 10;
+		}
+
+		return (int) Math.max(1, Math.min(SAMPLE_MAX, 1000 * SAMPLE_BASES
+				/ bases));
 	}
 
 	// SpreadCorrect
 	public void spreadcorrect(String basePath, String input, String output)
 			throws Exception {
 
-		RunningJob job;
+		Counters job;
 
 		msg("\nSpreadCorrect:");
 
+		StageManifest stage = manifest(spreadcorrect, output, basePath + input,
+				basePath + output);
+		stage.setParam("SCRUN", Config.SCRUN);
+		if (cached(stage)) {
+			msg("\n  Cached in " + output + "\n");
+			return;
+		}
+
 		String current = input;
 		long fix_char = 0;
 		long conflict = 0;
 		long confirm_char = 0;
 		long round = 0;
 
+		// the balance plan of the first round run, the kmers of the later
+		// rounds only differ at the corrected bases
+		String plan = null;
+
 		do {
 			round++;
+			ROUND = round;
+
+			StageManifest step = manifest(spreadcorrect, output + "." + round,
+					basePath + current, basePath + output + "." + round);
+			if (cached(step)) {
+				fix_char = step.getCounter("fix_char");
+				conflict = step.getCounter("conflict");
+				confirm_char = step.getCounter("confirms");
+				msg("\n  Cached in " + output + "." + round + "\t ["
+						+ confirm_char + " confirms, " + fix_char
+						+ " fix_chars, " + conflict + " conflicts]");
+
+				current = output + "." + round;
+				continue;
+			}
+
+			// the solid kmers, to drop the small stacks in the mappers
+			String sketch = null;
+			int sketchParts = 0;
+
+			if (Config.SC_PRUNE.equals("on") && Config.STACK_MIN > 1) {
+				sketch = basePath + output + "." + round + ".sketch";
+
+				start("\n  Sketch");
+				SpreadCorrectSketch sk = new SpreadCorrectSketch();
+				JobConf sketchJob = sk.createJob(basePath + current, sketch);
+				job = runJob(sketchJob);
+
+				long kmers = counter(job, "sketch_kmers");
+				long solid = counter(job, "solid_kmers");
+				msg(" [" + solid + " solid_kmers of " + kmers + "]");
+
+				if (solid == kmers) {
+					msg(" [nothing to prune, not used]");
+					sketch = null;
+				} else if (KmerFilter.bytesFor(solid) > Config.taskHeapBytes()
+						/ SKETCH_HEAP_SHARE) {
+					msg(" [too large, not used]");
+					sketch = null;
+				} else {
+					sketchParts = sketchJob.getInt("SKETCH_PARTS", 1);
+				}
+			}
 
-			start("\n  Recommend");
 			SpreadCorrectRecommend fe = new SpreadCorrectRecommend();
-			job = fe.run(basePath + current, basePath + output + "." + round
-					+ ".fe");
-			end(job);
+			JobConf recommend = fe.createJob(basePath + current, basePath
+					+ output + "." + round + ".fe", sketch, sketchParts);
+
+			// balance the stacks over the reducers by a sample of them
+			if (Config.SC_BALANCE.equals("on")) {
+				if (plan == null) {
+					plan = basePath + output + "." + round + ".plan";
+
+					start("\n  Sample");
+					SpreadCorrectSample sa = new SpreadCorrectSample();
+					job = runJob(sa.createJob(recommend, plan,
+							sampleRate(report.getInputBases())));
+					msg(" [" + counter(job, "sampled_keys") + " sampled_keys]");
+				}
+
+				KmerPartitioner.setPlan(recommend, plan);
+			}
+
+			start("\n  Recommend");
+			job = runJob(recommend);
 
 			fix_char = counter(job, "fix_char");
 			confirm_char = counter(job, "confirm_char");
 			msg(" [" + confirm_char + " confirms, " + fix_char + " fix_chars]");
+			if (sketch != null) {
+				msg(" [" + counter(job, "pruned_kmers") + " pruned_kmers]");
+			}
 
 			if (round > 1 && fix_char == 0) {
 				break;
@@ -263,9 +563,9 @@ public class CloudEC extends Configured implements Tool {
 
 			start("\n  Decision");
 			SpreadCorrectDecision corr = new SpreadCorrectDecision();
-			job = corr.run(basePath + current + "," + basePath + output + "."
-					+ round + ".fe", basePath + output + "." + round);
-			end(job);
+			job = runJob(corr.createJob(basePath + current + "," + basePath
+					+ output + "." + round + ".fe", basePath + output + "."
+					+ round));
 
 			fix_char = counter(job, "fix_char");
 			conflict = counter(job, "conflict");
@@ -274,44 +574,67 @@ public class CloudEC extends Configured implements Tool {
 					+ conflict + " conflicts]");
 
 			current = output + "." + round;
+
+			step.setCounter("fix_char", fix_char);
+			step.setCounter("conflict", conflict);
+			step.setCounter("confirms", confirm_char);
+			step.save();
 		} while (fix_char > 0 && round < Config.SCRUN);
 
 		msg("\n");
 
 		save_result(basePath, current, output);
+
+		stage.save();
 	}
 
 	// UniqueKmerFilter
 	public void uniquekmerfilter(String basePath, String input, String output)
 			throws Exception {
-		RunningJob job;
+		Counters job;
 
 		msg("\nUniqueKmerFilter:");
 
+		StageManifest stage = manifest(uniquekmerfilter, output, basePath
+				+ input, basePath + output);
+		if (cached(stage)) {
+			msg("\n  Cached in " + output + "\n");
+			return;
+		}
+
 		start("\n  CountKmers");
 		UniqueKmerFilterCountKmers fuk = new UniqueKmerFilterCountKmers();
-		job = fuk.run(basePath + input, basePath + output + ".fuk");
-		end(job);
+		job = runJob(fuk.createJob(basePath + input, basePath + output
+				+ ".fuk"));
 
 		start("\n  TagReads");
 		UniqueKmerFilterTagReads tur = new UniqueKmerFilterTagReads();
-		job = tur.run(basePath + input + "," + basePath + output + ".fuk",
-				basePath + output);
-		end(job);
+		job = runJob(tur.createJob(basePath + input + "," + basePath
+				+ output + ".fuk", basePath + output));
 
 		long unique_reads = counter(job, "unique_reads");
 		msg(" [" + unique_reads + " unique_reads]");
 
 		msg("\n");
+
+		stage.save();
 	}
 
 	// PostProcess
 	public void postprocess(String inputPath, String basePath, String input,
 			String output, String OutputPath) throws Exception {
-		RunningJob job;
+		Counters job;
 
 		msg("\nPostProcess:");
 
+		StageManifest stage = manifest(postprocess, output,
+				Config.MERGE_IGNORE.equals("on") ? inputPath + "," + basePath
+						+ input : basePath + input, OutputPath);
+		if (cached(stage)) {
+			msg("\n  Cached in " + OutputPath + "\n");
+			return;
+		}
+
 		String current = input;
 
 		if (Config.MERGE_IGNORE.equals("on")) {
@@ -319,9 +642,8 @@ public class CloudEC extends Configured implements Tool {
 
 			start("\n  Merge");
 			PostProcessMerge mo = new PostProcessMerge();
-			job = mo.run(inputPath + "," + basePath + input,
-					basePath + current);
-			end(job);
+			job = runJob(mo.createJob(inputPath, basePath + input, basePath
+					+ current));
 
 			long reads_ign = counter(job, "reads_ign");
 			long reads_ec = counter(job, "reads_ec");
@@ -333,8 +655,7 @@ public class CloudEC extends Configured implements Tool {
 
 		start("\n  Convert");
 		PostProcessConvert g2f = new PostProcessConvert();
-		job = g2f.run(basePath + current, OutputPath);
-		end(job);
+		job = runJob(g2f.createJob(basePath + current, OutputPath));
 
 		long unique_reads = counter(job, "unique_reads");
 		long output_reads = counter(job, "output_reads");
@@ -342,6 +663,8 @@ public class CloudEC extends Configured implements Tool {
 		msg(" [" + unique_reads + " unique_reads]");
 
 		msg("\n");
+
+		stage.save();
 	}
 
 	@Override
@@ -376,6 +699,49 @@ public class CloudEC extends Configured implements Tool {
 
 		ECstarttime = System.currentTimeMillis();
 
+		if (Config.LOCAL_THREADS > 0) {
+			engine = new LocalEngine(Config.LOCAL_THREADS);
+		}
+
+		// the engine keeps its outputs in memory, a partition per thread
+		if (Config.AUTO_MAPPERS || Config.AUTO_REDUCERS) {
+			if (engine != null) {
+				if (Config.AUTO_REDUCERS) {
+					Config.HADOOP_REDUCERS = Config.LOCAL_THREADS;
+				}
+			} else {
+				ClusterStatus cluster = new JobClient(baseconf)
+						.getClusterStatus();
+				sizer = new JobSizer(cluster.getMaxMapTasks(),
+						cluster.getMaxReduceTasks());
+			}
+		}
+
+		try {
+			runStages();
+		} finally {
+			if (engine != null) {
+				engine.close();
+			}
+		}
+
+		ECendtime = System.currentTimeMillis();
+
+		long ecduration = (ECendtime - ECstarttime) / 1000;
+
+		report.write(Config.localBasePath + "cloudec.report.json",
+				dfm.format(new Date(ECstarttime)), ECendtime - ECstarttime);
+
+		msg("\n");
+		msg("== Ending time " + dfm.format(new Date()) + "\n");
+		msg("== Duration: " + ecduration + " s, " + GLOBALNUMSTEPS
+				+ " total steps, CloudEC\n");
+
+		return 0;
+	}
+
+	// Runs the enabled stages, from Config.STARTSTAGE to Config.STOPSTAGE
+	public void runStages() throws Exception {
 		String currStage = Config.hadoopTmpPath;
 
 		if (runStage("preprocess")) {
@@ -416,17 +782,6 @@ public class CloudEC extends Configured implements Tool {
 					postprocess, Config.hadoopBasePath);
 		}
 		currStage = checkStageExit(null);
-
-		ECendtime = System.currentTimeMillis();
-
-		long ecduration = (ECendtime - ECstarttime) / 1000;
-
-		msg("\n");
-		msg("== Ending time " + dfm.format(new Date()) + "\n");
-		msg("== Duration: " + ecduration + " s, " + GLOBALNUMSTEPS
-				+ " total steps, CloudEC\n");
-
-		return 0;
 	}
 
 	public static void main(String[] args) throws Exception {
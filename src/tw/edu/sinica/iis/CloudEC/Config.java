@@ -23,6 +23,9 @@
 
 package tw.edu.sinica.iis.CloudEC;
 
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.GnuParser;
@@ -42,11 +45,20 @@ public class Config {
 	// hadoop options
 	public static int HADOOP_MAPPERS = 70;
 	public static int HADOOP_REDUCERS = 70;
+	// sized for each job unless -mtasks/-rtasks are given, see JobSizer
+	public static boolean AUTO_MAPPERS = true;
+	public static boolean AUTO_REDUCERS = true;
 	public static long HADOOP_TIMEOUT = 0;
 	public static String HADOOP_JAVAOPTS = "-Xmx950m";
 	public static boolean HADOOP_MOCOMP = true;
 	public static boolean HADOOP_OUTCOMP = true;
 
+	// local engine options
+	public static int LOCAL_THREADS = 0;
+	// MB of job data the local engine keeps in memory before it spills
+	// sorted segments to local disk, -1 for a quarter of the heap
+	public static int LOCAL_SPILL = -1;
+
 	// stage options
 	public static String STARTSTAGE = null;
 	public static String STOPSTAGE = null;
@@ -71,11 +83,35 @@ public class Config {
 	public static int STACK_MIN = 5;
 	public static int STACK_MAX = -1;
 
+	// MB of reads the stacks of a reduce task hold in memory before they
+	// spill to local disk
+	public static int STACK_SPILL = 64;
+
 	// stats
 	public static String RUN_STATS = null;
 	public static int PCRUN = 1;
 	public static int SCRUN = 2;
 
+	// SpreadCorrect drops the stacks below STACK_MIN before the shuffle
+	public static String SC_PRUNE = "off";
+
+	// SpreadCorrect partitions the stacks by a sample of their sizes
+	public static String SC_BALANCE = "on";
+
+	// SpreadCorrect sends super-kmers instead of single kmers
+	public static String SC_SUPER = "off";
+
+	// LargeKmerFilter counts the kmers first and tags the reads map-only, if
+	// its kmer lists surely fit in the heap of a mapper
+	public static String LKF_COUNT = "off";
+
+	// skip the stages and rounds whose manifest still matches
+	public static String RESUME = "on";
+
+	// format of the reads of -in: fastq, sfq, or auto (fastq for names
+	// ending with .fastq or .fq, sfq otherwise)
+	public static String INPUT_FORMAT = "auto";
+
 	// output status
 	public static String SHAVE_IGNORE = "on";
 	public static String MERGE_IGNORE = "off";
@@ -87,21 +123,35 @@ public class Config {
 	}
 
 	public static void validateConfiguration() {
-		int err = 0;
+		try {
+			checkConfiguration();
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	// Same as validateConfiguration, but throws an IllegalArgumentException
+	// with the errors instead of exiting, for the library API
+	public static void checkConfiguration() {
+		StringBuilder err = new StringBuilder();
 
 		if (RUN_STATS == null) {
 			if (hadoopBasePath == null) {
-				err++;
-				System.err.println("ERROR: -out is required");
+				err.append("ERROR: -out is required\n");
 			}
 			if (STARTSTAGE == null && hadoopReadPath == null) {
-				err++;
-				System.err.println("ERROR: -in is required");
+				err.append("ERROR: -in is required\n");
 			}
 		}
 
-		if (err > 0) {
-			System.exit(1);
+		if (K < 1 || K > KmerWritable.MAX_LENGTH) {
+			err.append("ERROR: -K must be between 1 and "
+					+ KmerWritable.MAX_LENGTH + "\n");
+		}
+
+		if (err.length() > 0) {
+			throw new IllegalArgumentException(err.toString().trim());
 		}
 
 		if (!hadoopBasePath.endsWith("/")) {
@@ -155,6 +205,10 @@ public class Config {
 			// Hadoop 0.21 and later
 			conf.setBoolean("mapreduce.output.compress", true);
 
+			// the intermediate read store is written as SequenceFiles
+			conf.set("mapred.output.compression.type", "BLOCK");
+			conf.set("mapreduce.output.fileoutputformat.compress.type", "BLOCK");
+
 			if (conf.get("io.compression.codecs") != null) {
 				if (conf.get("io.compression.codecs").contains(CODECS.SNAPPY)) {
 					// Hadoop 0.20 and before
@@ -174,6 +228,7 @@ public class Config {
 
 		conf.setInt("STACK_MAX", STACK_MAX);
 		conf.setInt("STACK_MIN", STACK_MIN);
+		conf.setInt("STACK_SPILL", STACK_SPILL);
 		conf.setInt("K", K);
 
 		conf.set("ARM_SCHEME", ARM_SCHEME);
@@ -185,9 +240,43 @@ public class Config {
 		conf.setBoolean("FILTER_S", FILTER_S);
 
 		conf.set("SHAVE_IGNORE", SHAVE_IGNORE);
+		conf.set("INPUT_FORMAT", INPUT_FORMAT);
 		conf.set("MERGE_IGNORE", MERGE_IGNORE);
 	}
 
+	// The heap of a task: by the last -Xmx of HADOOP_JAVAOPTS, or the 200 MB
+	// of Hadoop without one, or a share of this JVM with -local
+	public static long taskHeapBytes() {
+		if (LOCAL_THREADS > 0) {
+			return Runtime.getRuntime().maxMemory() / LOCAL_THREADS;
+		}
+
+		long heap = 200L << 20;
+		Matcher m = Pattern.compile("-Xmx(\\d+)([kKmMgG]?)").matcher(
+				HADOOP_JAVAOPTS);
+
+		while (m.find()) {
+			heap = Long.parseLong(m.group(1));
+
+			switch (Character.toLowerCase(m.group(2).isEmpty() ? ' ' : m
+					.group(2).charAt(0))) {
+			case 'k':
+				heap <<= 10;
+				break;
+			case 'm':
+				heap <<= 20;
+				break;
+			case 'g':
+				heap <<= 30;
+				break;
+			default:
+				break;
+			}
+		}
+
+		return heap;
+	}
+
 	public static void printConfiguration() {
 		validateConfiguration();
 
@@ -197,10 +286,17 @@ public class Config {
 		CloudEC.msg("LOCAL_OUT: " + localBasePath + "\n");
 		CloudEC.msg("\n");
 
-		CloudEC.msg("HADOOP_MAPPERS    = " + HADOOP_MAPPERS + "\n");
-		CloudEC.msg("HADOOP_REDUCERS   = " + HADOOP_REDUCERS + "\n");
+		CloudEC.msg("HADOOP_MAPPERS    = "
+				+ (AUTO_MAPPERS ? "auto" : HADOOP_MAPPERS) + "\n");
+		CloudEC.msg("HADOOP_REDUCERS   = "
+				+ (AUTO_REDUCERS ? "auto" : HADOOP_REDUCERS) + "\n");
 		CloudEC.msg("HADOOP_JAVA_OPTS  = " + HADOOP_JAVAOPTS + "\n");
 		CloudEC.msg("HADOOP_TIMEOUT    = " + HADOOP_TIMEOUT + "\n");
+		if (LOCAL_THREADS > 0) {
+			CloudEC.msg("LOCAL_THREADS     = " + LOCAL_THREADS + "\n");
+			CloudEC.msg("LOCAL_SPILL       = "
+					+ (LOCAL_SPILL < 0 ? "auto" : LOCAL_SPILL + " MB") + "\n");
+		}
 		CloudEC.msg("\n");
 
 		if (STACK_MIN == -1 && STACK_MAX == -1) {
@@ -210,6 +306,7 @@ public class Config {
 			CloudEC.msg((STACK_MIN == -1 ? "NO BOUND" : STACK_MIN) + ", ");
 			CloudEC.msg((STACK_MAX == -1 ? "NO BOUND" : STACK_MAX) + "]\n");
 		}
+		CloudEC.msg("STACK SPILL = " + STACK_SPILL + " MB\n");
 		CloudEC.msg("KMER LENGTH = " + K + "\n");
 		CloudEC.msg("\n");
 
@@ -240,8 +337,14 @@ public class Config {
 
 		CloudEC.msg("RUNS PINCHCORRECT  = " + PCRUN + "\n");
 		CloudEC.msg("RUNS SPREADCORRECT = " + SCRUN + "\n");
+		CloudEC.msg("PRUNE SPREADCORRECT = " + SC_PRUNE + "\n");
+		CloudEC.msg("SUPER-KMER SPREADCORRECT = " + SC_SUPER + "\n");
+		CloudEC.msg("BALANCE SPREADCORRECT = " + SC_BALANCE + "\n");
+		CloudEC.msg("COUNT-FIRST LKF    = " + LKF_COUNT + "\n");
+		CloudEC.msg("RESUME FROM CACHE  = " + RESUME + "\n");
 		CloudEC.msg("\n");
 
+		CloudEC.msg("INPUT FORMAT       = " + INPUT_FORMAT + "\n");
 		CloudEC.msg("SHAVE IGNORE READ  = " + SHAVE_IGNORE + "\n");
 		CloudEC.msg("MERGE IGNORED READ = " + MERGE_IGNORE + "\n");
 
@@ -279,14 +382,14 @@ public class Config {
 				.withArgName("mtasks")
 				.hasArg()
 				.withDescription(
-						"Number of Map Tasks (default: " + HADOOP_MAPPERS + ")")
+						"Number of Map Tasks (default: auto)")
 				.create("mtasks"));
 		options.addOption(OptionBuilder
 				.withArgName("rtasks")
 				.hasArg()
 				.withDescription(
-						"Number of Reduce Tasks (default: " + HADOOP_REDUCERS
-								+ ")").create("rtasks"));
+						"Number of Reduce Tasks (default: auto)")
+				.create("rtasks"));
 		options.addOption(OptionBuilder
 				.withArgName("javaopts")
 				.hasArg()
@@ -312,6 +415,20 @@ public class Config {
 						"Compress MapReduce output (default: " + HADOOP_OUTCOMP
 								+ ")").create("outcomp"));
 
+		// local engine options
+		options.addOption(OptionBuilder
+				.withArgName("local")
+				.hasArg()
+				.withDescription(
+						"Run in a single JVM with the given number of threads (default: off)")
+				.create("local"));
+		options.addOption(OptionBuilder
+				.withArgName("localspill")
+				.hasArg()
+				.withDescription(
+						"MB of job data the local engine keeps in memory (default: a quarter of the heap)")
+				.create("localspill"));
+
 		// Stage control
 		options.addOption(OptionBuilder.withArgName("start").hasArg()
 				.withDescription("Start stage").create("start"));
@@ -339,6 +456,36 @@ public class Config {
 				.withDescription(
 						"Number of runs in the SpreadCorrect Stage (default: "
 								+ SCRUN + ")").create("scrun"));
+		options.addOption(OptionBuilder
+				.withArgName("scprune")
+				.hasArg()
+				.withDescription(
+						"Drop the stacks below stackmin before the shuffle in SpreadCorrect (default: "
+								+ SC_PRUNE + ")").create("scprune"));
+		options.addOption(OptionBuilder
+				.withArgName("scsuper")
+				.hasArg()
+				.withDescription(
+						"Send the kmers of a read sharing a minimizer as one record in SpreadCorrect (default: "
+								+ SC_SUPER + ")").create("scsuper"));
+		options.addOption(OptionBuilder
+				.withArgName("scbalance")
+				.hasArg()
+				.withDescription(
+						"Balance the stacks over the reducers by a sample in SpreadCorrect (default: "
+								+ SC_BALANCE + ")").create("scbalance"));
+		options.addOption(OptionBuilder
+				.withArgName("lkfcount")
+				.hasArg()
+				.withDescription(
+						"Count the kmers first and tag the reads without a shuffle in LargeKmerFilter (default: "
+								+ LKF_COUNT + ")").create("lkfcount"));
+		options.addOption(OptionBuilder
+				.withArgName("resume")
+				.hasArg()
+				.withDescription(
+						"Skip the stages whose manifest and output are unchanged (default: "
+								+ RESUME + ")").create("resume"));
 
 		// global parameters
 		options.addOption(OptionBuilder.withArgName("K").hasArg()
@@ -368,8 +515,20 @@ public class Config {
 				.withDescription(
 						"Minimum items of a readstack (default: " + STACK_MIN
 								+ ")").create("stackmin"));
+		options.addOption(OptionBuilder
+				.withArgName("stackspill")
+				.hasArg()
+				.withDescription(
+						"MB of readstacks a reducer keeps in memory (default: "
+								+ STACK_SPILL + ")").create("stackspill"));
 
 		// input status
+		options.addOption(OptionBuilder
+				.withArgName("informat")
+				.hasArg()
+				.withDescription(
+						"Format of the input reads, fastq, sfq or auto (default: "
+								+ INPUT_FORMAT + ")").create("informat"));
 		options.addOption(OptionBuilder
 				.withArgName("filterreads")
 				.hasArg()
@@ -415,6 +574,9 @@ public class Config {
 									+ "  -stackmin <size> : Minimum items of a readstack ["
 									+ STACK_MIN
 									+ "]\n"
+									+ "  -stackspill <MB> : MB of readstacks a reducer keeps in memory ["
+									+ STACK_SPILL
+									+ "]\n"
 									+ "\n"
 									+ "Scheme Options:\n"
 									+ "===============\n"
@@ -448,6 +610,24 @@ public class Config {
 									+ "  -scrun <number>            : Number of runs in the SpreadCorrect Stage ["
 									+ SCRUN
 									+ "]\n"
+									+ "  -scprune <on/off>          : Drop the stacks below stackmin before the shuffle in SpreadCorrect ["
+									+ SC_PRUNE
+									+ "]\n"
+									+ "  -scsuper <on/off>          : Send the kmers of a read sharing a minimizer as one record in SpreadCorrect ["
+									+ SC_SUPER
+									+ "]\n"
+									+ "  -scbalance <on/off>        : Balance the stacks over the reducers by a sample in SpreadCorrect ["
+									+ SC_BALANCE
+									+ "]\n"
+									+ "  -lkfcount <on/off>         : Count the kmers first and tag the reads without a shuffle in LargeKmerFilter ["
+									+ LKF_COUNT
+									+ "]\n"
+									+ "  -resume <on/off>           : Skip the stages whose manifest and output are unchanged ["
+									+ RESUME
+									+ "]\n"
+									+ "  -informat <fastq/sfq/auto> : Format of the input reads, auto takes *.fastq and *.fq as FastQ ["
+									+ INPUT_FORMAT
+									+ "]\n"
 									+ "  -filterreads <on/off>      : Filter (ignore) reads have N bases from input ["
 									+ SHAVE_IGNORE
 									+ "]\n"
@@ -460,12 +640,8 @@ public class Config {
 									+ "  -javaopts <opts>    : Hadoop Java Options ["
 									+ HADOOP_JAVAOPTS
 									+ "]\n"
-									+ "  -mtasks <number>    : Number of Map Tasks ["
-									+ HADOOP_MAPPERS
-									+ "]\n"
-									+ "  -rtasks <number>    : Number of Reduce Tasks ["
-									+ HADOOP_REDUCERS
-									+ "]\n"
+									+ "  -mtasks <number>    : Number of Map Tasks [auto]\n"
+									+ "  -rtasks <number>    : Number of Reduce Tasks [auto]\n"
 									+ "  -mocomp <on/off>    : Compress MapReduce intermediate data ["
 									+ (HADOOP_MOCOMP == true ? "on" : "off")
 									+ "]\n"
@@ -473,7 +649,12 @@ public class Config {
 									+ (HADOOP_OUTCOMP == true ? "on" : "off")
 									+ "]\n"
 									+ "  -timeout <usec>     : Hadoop task timeout ["
-									+ HADOOP_TIMEOUT + "]\n" + "\n");
+									+ HADOOP_TIMEOUT + "]\n" + "\n"
+									+ "Local Options:\n"
+									+ "===============\n"
+									+ "  -local <threads>    : Run all stages in a single JVM without Hadoop [off]\n"
+									+ "  -localspill <MB>    : MB of job data the local engine keeps in memory [heap/4]\n"
+									+ "\n");
 				}
 
 				System.exit(0);
@@ -490,10 +671,12 @@ public class Config {
 			if (line.hasOption("mtasks")) {
 				HADOOP_MAPPERS = Integer
 						.parseInt(line.getOptionValue("mtasks"));
+				AUTO_MAPPERS = false;
 			}
 			if (line.hasOption("rtasks")) {
 				HADOOP_REDUCERS = Integer.parseInt(line
 						.getOptionValue("rtasks"));
+				AUTO_REDUCERS = false;
 			}
 			if (line.hasOption("javaopts")) {
 				HADOOP_JAVAOPTS = line.getOptionValue("javaopts");
@@ -511,6 +694,12 @@ public class Config {
 			if (line.hasOption("timeout")) {
 				HADOOP_TIMEOUT = Long.parseLong(line.getOptionValue("timeout"));
 			}
+			if (line.hasOption("local")) {
+				LOCAL_THREADS = Integer.parseInt(line.getOptionValue("local"));
+			}
+			if (line.hasOption("localspill")) {
+				LOCAL_SPILL = Integer.parseInt(line.getOptionValue("localspill"));
+			}
 			if (line.hasOption("K")) {
 				K = Integer.parseInt(line.getOptionValue("K"));
 			}
@@ -520,6 +709,9 @@ public class Config {
 			if (line.hasOption("stackmin")) {
 				STACK_MIN = Integer.parseInt(line.getOptionValue("stackmin"));
 			}
+			if (line.hasOption("stackspill")) {
+				STACK_SPILL = Integer.parseInt(line.getOptionValue("stackspill"));
+			}
 			if (line.hasOption("arm_scheme")) {
 				ARM_SCHEME = line.getOptionValue("arm_scheme").trim().toUpperCase();
 			}
@@ -559,6 +751,24 @@ public class Config {
 			if (line.hasOption("scrun")) {
 				SCRUN = Integer.parseInt(line.getOptionValue("scrun"));
 			}
+			if (line.hasOption("scprune")) {
+				SC_PRUNE = line.getOptionValue("scprune");
+			}
+			if (line.hasOption("scsuper")) {
+				SC_SUPER = line.getOptionValue("scsuper");
+			}
+			if (line.hasOption("scbalance")) {
+				SC_BALANCE = line.getOptionValue("scbalance");
+			}
+			if (line.hasOption("lkfcount")) {
+				LKF_COUNT = line.getOptionValue("lkfcount");
+			}
+			if (line.hasOption("resume")) {
+				RESUME = line.getOptionValue("resume");
+			}
+			if (line.hasOption("informat")) {
+				INPUT_FORMAT = line.getOptionValue("informat");
+			}
 			if (line.hasOption("filterreads")) {
 				SHAVE_IGNORE = line.getOptionValue("filterreads");
 			}
@@ -0,0 +1,473 @@
+/*
+ * (C) Copyright 2017 The CloudEC Project and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Contributors:
+ *      Wei-Chun Chung (wcchung@iis.sinica.edu.tw)
+ *      Chien-Chih Chen (rocky@iis.sinica.edu.tw)
+ * 
+ * CloudEC Project:
+ *      https://github.com/CSCLabTW/CloudEC/
+ */
+
+
+package tw.edu.sinica.iis.CloudEC;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.JobConfigurable;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.LineReader;
+
+// The 4-line records of FastQ files, keyed by the offset of their header.
+//
+// A split holds the records whose header starts in it. Past the start of a
+// split, the first header is the first line starting with '@' whose second
+// next line starts with '+': a QV line may start with '@', but then its
+// second next line is a sequence.
+//
+// Files of a compression codec are read whole by one split, except for BGZF
+// files and gzip files with a GzipIndex: their splits start at the first
+// block or checkpoint in them, see BlockFastqRecordReader.
+public class FastqInputFormat extends FileInputFormat<LongWritable, FastqWritable>
+		implements JobConfigurable {
+
+	private CompressionCodecFactory codecs = null;
+
+	@Override
+	public void configure(JobConf job) {
+		codecs = new CompressionCodecFactory(job);
+	}
+
+	@Override
+	protected boolean isSplitable(FileSystem fs, Path file) {
+		if (codecs.getCodec(file) == null) {
+			return true;
+		}
+
+		try {
+			return GzipSplitReader.isBgzf(fs, file)
+					|| fs.exists(GzipIndex.indexPath(file));
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public RecordReader<LongWritable, FastqWritable> getRecordReader(
+			InputSplit split, JobConf job, Reporter reporter) throws IOException {
+		reporter.setStatus(split.toString());
+
+		Path file = ((FileSplit) split).getPath();
+		FileSystem fs = file.getFileSystem(job);
+
+		if (GzipSplitReader.isBgzf(fs, file)) {
+			return new BlockFastqRecordReader(job, (FileSplit) split, null);
+		}
+
+		if (codecs.getCodec(file) != null) {
+			GzipIndex index = GzipIndex.read(fs, file);
+
+			if (index != null) {
+				return new BlockFastqRecordReader(job, (FileSplit) split, index);
+			}
+		}
+
+		return new FastqRecordReader(job, (FileSplit) split);
+	}
+
+	// Whether the reads at path are read as FastQ, by the -informat setting
+	public static boolean isFastq(final String format, final String path) {
+		if (format.equals("fastq")) {
+			return true;
+		} else if (format.equals("sfq")) {
+			return false;
+		}
+
+		// also compressed, e.g. reads.fastq.gz
+		String name = path.toLowerCase().replaceFirst("\\.(gz|bgz)$", "");
+
+		return name.endsWith(".fastq") || name.endsWith(".fq");
+	}
+
+	public static class FastqRecordReader implements
+			RecordReader<LongWritable, FastqWritable> {
+
+		private long start = 0;
+		private long end = 0;
+		private long pos = 0;
+
+		private FSDataInputStream fileIn = null;
+		private LineReader in = null;
+
+		private Text header = new Text();
+		private Text plus = new Text();
+
+		public FastqRecordReader(final JobConf job, final FileSplit split)
+				throws IOException {
+			start = split.getStart();
+			end = start + split.getLength();
+
+			Path file = split.getPath();
+			fileIn = file.getFileSystem(job).open(file);
+
+			CompressionCodec codec = new CompressionCodecFactory(job)
+					.getCodec(file);
+
+			if (codec != null) {
+				in = new LineReader(codec.createInputStream(fileIn), job);
+				end = Long.MAX_VALUE;
+				return;
+			}
+
+			if (start != 0) {
+				pos = sync(job);
+				fileIn.seek(pos);
+			}
+
+			in = new LineReader(fileIn, job);
+		}
+
+		// The offset of the first header at or after start, or end if the
+		// split has none
+		private long sync(final JobConf job) throws IOException {
+			fileIn.seek(start - 1);
+			LineReader reader = new LineReader(fileIn, job);
+
+			// the line that started before the split belongs to the last one
+			long offset = start - 1 + reader.readLine(plus);
+
+			// a header is at most 3 lines after any line
+			long[] offsets = new long[6];
+			char[] heads = new char[6];
+			int lines = 0;
+
+			for (; lines < offsets.length; lines++) {
+				int n = reader.readLine(plus);
+				if (n == 0) {
+					break;
+				}
+
+				offsets[lines] = offset;
+				heads[lines] = (plus.getLength() > 0) ? (char) plus.getBytes()[0]
+						: '\0';
+				offset += n;
+			}
+
+			for (int i = 0; i + 2 < lines; i++) {
+				if (heads[i] == '@' && heads[i + 2] == '+') {
+					return offsets[i];
+				}
+			}
+
+			return end;
+		}
+
+		private int readLine(final Text text) throws IOException {
+			int n = in.readLine(text);
+
+			if (n == 0) {
+				throw new IOException("Truncated FastQ record at " + pos);
+			}
+
+			return n;
+		}
+
+		@Override
+		public synchronized boolean next(LongWritable key, FastqWritable value)
+				throws IOException {
+			int n = 0;
+
+			// blank lines between the records are skipped
+			while (pos < end && (n = in.readLine(header)) > 0
+					&& header.getLength() == 0) {
+				pos += n;
+			}
+
+			if (pos >= end || n == 0) {
+				return false;
+			}
+
+			key.set(pos);
+
+			pos += n;
+			pos += readLine(value.getSEQ());
+			pos += readLine(plus);
+			pos += readLine(value.getQV());
+
+			if (header.getBytes()[0] != '@' || plus.getLength() == 0
+					|| plus.getBytes()[0] != '+') {
+				throw new IOException("Malformed FastQ record at " + key.get());
+			}
+
+			value.getId().set(header.getBytes(), 1, header.getLength() - 1);
+
+			return true;
+		}
+
+		@Override
+		public LongWritable createKey() {
+			return new LongWritable();
+		}
+
+		@Override
+		public FastqWritable createValue() {
+			return new FastqWritable();
+		}
+
+		@Override
+		public synchronized long getPos() throws IOException {
+			return pos;
+		}
+
+		@Override
+		public synchronized float getProgress() throws IOException {
+			if (end == Long.MAX_VALUE) {
+				return 0.0f;
+			}
+			if (start == end) {
+				return 0.0f;
+			}
+
+			return Math.min(1.0f, (pos - start) / (float) (end - start));
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			if (in != null) {
+				in.close();
+			}
+		}
+	}
+
+	// The records of a BGZF file, or of a gzip file with a GzipIndex, keyed by
+	// the file offset of the block or checkpoint their header is in.
+	//
+	// A split owns the blocks, or the data after the checkpoints, that start
+	// in it, and holds the records whose header follows a line break in data
+	// it owns; the first record of the file follows the start of the file.
+	// The last record of a split may end in data of the next one.
+	public static class BlockFastqRecordReader implements
+			RecordReader<LongWritable, FastqWritable> {
+
+		private long start = 0;
+		private long end = 0;
+
+		private GzipSplitReader in = null;
+
+		private final byte[] buf = new byte[1 << 16];
+		private int bufPos = 0;
+		private int bufLen = 0;
+		private long bufOwner = 0;
+
+		// owner of the line break before the next line
+		private long owner = 0;
+		private boolean done = false;
+
+		// lines read to find the first header, and their line breaks
+		private final Text[] ahead = new Text[6];
+		private final long[] aheadOwners = new long[6];
+		private int aheadPos = 0;
+		private int aheadLen = 0;
+
+		private Text header = new Text();
+		private Text plus = new Text();
+
+		public BlockFastqRecordReader(final JobConf job, final FileSplit split,
+				final GzipIndex index) throws IOException {
+			start = split.getStart();
+			end = start + split.getLength();
+
+			Path file = split.getPath();
+			FileSystem fs = file.getFileSystem(job);
+
+			in = new GzipSplitReader(fs.open(file), fs.getFileStatus(file)
+					.getLen(), start, index);
+			owner = in.getOwner();
+
+			if (owner >= end) {
+				done = true;
+			} else if (start != 0) {
+				sync();
+			}
+		}
+
+		// Skips to the first header after a line break of the split
+		private void sync() throws IOException {
+			// the line that started before belongs to the last split
+			if (!readLine(header)) {
+				done = true;
+				return;
+			}
+			long first = owner;
+
+			for (; aheadLen < ahead.length; aheadLen++) {
+				ahead[aheadLen] = new Text();
+
+				if (!readLine(ahead[aheadLen])) {
+					break;
+				}
+				aheadOwners[aheadLen] = owner;
+			}
+
+			for (int i = 0; i + 2 < aheadLen; i++) {
+				if (head(ahead[i]) == '@' && head(ahead[i + 2]) == '+') {
+					aheadPos = i;
+					owner = (i == 0) ? first : aheadOwners[i - 1];
+					return;
+				}
+			}
+
+			done = true;
+		}
+
+		private static int head(final Text line) {
+			return (line.getLength() > 0) ? line.getBytes()[0] : -1;
+		}
+
+		// Reads a line without its line break, sets owner to the owner of
+		// the line break, false at the end of the file
+		private boolean readLine(final Text line) throws IOException {
+			boolean any = false;
+
+			line.clear();
+
+			while (true) {
+				if (bufPos == bufLen) {
+					int n = in.read(buf, 0, buf.length);
+					if (n < 0) {
+						return any;
+					}
+
+					bufPos = 0;
+					bufLen = n;
+					bufOwner = in.getOwner();
+				}
+				any = true;
+
+				int i = bufPos;
+				while (i < bufLen && buf[i] != '\n') {
+					i++;
+				}
+				line.append(buf, bufPos, i - bufPos);
+
+				if (i < bufLen) {
+					bufPos = i + 1;
+					owner = bufOwner;
+
+					int len = line.getLength();
+					if (len > 0 && line.getBytes()[len - 1] == '\r') {
+						line.set(line.getBytes(), 0, len - 1);
+					}
+
+					return true;
+				}
+				bufPos = bufLen;
+			}
+		}
+
+		private boolean nextLine(final Text line) throws IOException {
+			if (aheadPos < aheadLen) {
+				line.set(ahead[aheadPos]);
+				owner = aheadOwners[aheadPos];
+				aheadPos++;
+
+				return true;
+			}
+
+			return readLine(line);
+		}
+
+		private void readRecordLine(final Text line, final long key)
+				throws IOException {
+			if (!nextLine(line)) {
+				throw new IOException("Truncated FastQ record at " + key);
+			}
+		}
+
+		@Override
+		public synchronized boolean next(LongWritable key, FastqWritable value)
+				throws IOException {
+			long before = 0;
+
+			// blank lines between the records are skipped
+			do {
+				before = owner;
+
+				if (done || before >= end || !nextLine(header)) {
+					done = true;
+					return false;
+				}
+			} while (header.getLength() == 0);
+
+			key.set(before);
+
+			readRecordLine(value.getSEQ(), before);
+			readRecordLine(plus, before);
+			readRecordLine(value.getQV(), before);
+
+			if (header.getBytes()[0] != '@' || plus.getLength() == 0
+					|| plus.getBytes()[0] != '+') {
+				throw new IOException("Malformed FastQ record at " + key.get());
+			}
+
+			value.getId().set(header.getBytes(), 1, header.getLength() - 1);
+
+			return true;
+		}
+
+		@Override
+		public LongWritable createKey() {
+			return new LongWritable();
+		}
+
+		@Override
+		public FastqWritable createValue() {
+			return new FastqWritable();
+		}
+
+		@Override
+		public synchronized long getPos() throws IOException {
+			return in.getPos();
+		}
+
+		@Override
+		public synchronized float getProgress() throws IOException {
+			if (start == end) {
+				return 0.0f;
+			}
+
+			return Math.min(1.0f, (in.getPos() - start) / (float) (end - start));
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			if (in != null) {
+				in.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * (C) Copyright 2017 The CloudEC Project and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Contributors:
+ *      Wei-Chun Chung (wcchung@iis.sinica.edu.tw)
+ *      Chien-Chih Chen (rocky@iis.sinica.edu.tw)
+ * 
+ * CloudEC Project:
+ *      https://github.com/CSCLabTW/CloudEC/
+ */
+
+
+package tw.edu.sinica.iis.CloudEC;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+
+// A raw read as given by FastqInputFormat: the id (the header without the
+// leading '@'), the bases and the ASCII QVs, as the bytes of the input.
+public class FastqWritable implements Writable {
+	private final Text id = new Text();
+	private final Text seq = new Text();
+	private final Text qv = new Text();
+
+	public Text getId() {
+		return id;
+	}
+
+	public Text getSEQ() {
+		return seq;
+	}
+
+	public Text getQV() {
+		return qv;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		id.write(out);
+		seq.write(out);
+		qv.write(out);
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		id.readFields(in);
+		seq.readFields(in);
+		qv.readFields(in);
+	}
+
+	@Override
+	public String toString() {
+		return id + "\t" + seq + "\t" + qv;
+	}
+}
@@ -0,0 +1,581 @@
+/*
+ * (C) Copyright 2017 The CloudEC Project and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Contributors:
+ *      Wei-Chun Chung (wcchung@iis.sinica.edu.tw)
+ *      Chien-Chih Chen (rocky@iis.sinica.edu.tw)
+ * 
+ * CloudEC Project:
+ *      https://github.com/CSCLabTW/CloudEC/
+ */
+
+
+package tw.edu.sinica.iis.CloudEC;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+// Decompression checkpoints of a plain gzip file, kept next to it in
+// <file>.gzidx, which let FastqInputFormat split the file.
+//
+// A checkpoint is the start of a deflate block: its byte and bit offset in
+// the file, the offset of its data in the decompressed file and of the gzip
+// member it is in, and the last 32 KB of data before it, which the block
+// may copy from. The index is made by one pass over the file:
+//     > hadoop tw.edu.sinica.iis.CloudEC.GzipIndex {FILENAME}.fastq.gz
+//
+// Serialized form: the magic and the number of checkpoints, then per
+// checkpoint the offsets and the window, compressed.
+public class GzipIndex extends Configured implements Tool {
+	public static final String SUFFIX = ".gzidx";
+
+	public static final int WINDOW = 32768;
+
+	// data between two checkpoints, a few for each split of a file
+	public static final long SPACING = 4L << 20;
+
+	private static final int MAGIC = 0x43454749;
+
+	public static class Checkpoint {
+		public final long in;
+		public final int bits;
+		public final long out;
+		public final long member;
+		public final byte[] window;
+
+		public Checkpoint(final long in1, final int bits1, final long out1,
+				final long member1, final byte[] window1) {
+			in = in1;
+			bits = bits1;
+			out = out1;
+			member = member1;
+			window = window1;
+		}
+	}
+
+	private final ArrayList<Checkpoint> points = new ArrayList<Checkpoint>();
+
+	public int size() {
+		return points.size();
+	}
+
+	public Checkpoint get(final int i) {
+		return points.get(i);
+	}
+
+	// The first checkpoint at or after offset in the file, size() if none
+	public int seek(final long offset) {
+		int lo = 0;
+		int hi = points.size();
+
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+
+			if (points.get(mid).in < offset) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+
+		return lo;
+	}
+
+	public static Path indexPath(final Path file) {
+		return file.suffix(SUFFIX);
+	}
+
+	// The index of file, or null if it has none
+	public static GzipIndex read(final FileSystem fs, final Path file)
+			throws IOException {
+		Path path = indexPath(file);
+
+		if (!fs.exists(path)) {
+			return null;
+		}
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				fs.open(path)));
+
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a gzip index: " + path);
+			}
+
+			GzipIndex index = new GzipIndex();
+			int n = in.readInt();
+			Inflater inflater = new Inflater();
+
+			for (int i = 0; i < n; i++) {
+				long in1 = in.readLong();
+				int bits1 = in.readUnsignedByte();
+				long out1 = in.readLong();
+				long member1 = in.readLong();
+
+				byte[] window1 = new byte[in.readInt()];
+				byte[] packed = new byte[in.readInt()];
+				in.readFully(packed);
+
+				inflater.reset();
+				inflater.setInput(packed);
+				try {
+					if (inflater.inflate(window1) != window1.length) {
+						throw new IOException("Corrupt gzip index: " + path);
+					}
+				} catch (DataFormatException e) {
+					throw new IOException("Corrupt gzip index: " + path, e);
+				}
+
+				index.points.add(new Checkpoint(in1, bits1, out1, member1,
+						window1));
+			}
+			inflater.end();
+
+			return index;
+		} finally {
+			in.close();
+		}
+	}
+
+	public void write(final FileSystem fs, final Path file) throws IOException {
+		DataOutputStream out = fs.create(indexPath(file), true);
+
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(points.size());
+
+			Deflater deflater = new Deflater();
+			byte[] packed = new byte[2 * WINDOW];
+
+			for (Checkpoint point : points) {
+				out.writeLong(point.in);
+				out.writeByte(point.bits);
+				out.writeLong(point.out);
+				out.writeLong(point.member);
+
+				deflater.reset();
+				deflater.setInput(point.window);
+				deflater.finish();
+				int n = deflater.deflate(packed);
+
+				out.writeInt(point.window.length);
+				out.writeInt(n);
+				out.write(packed, 0, n);
+			}
+			deflater.end();
+		} finally {
+			out.close();
+		}
+	}
+
+	// Inflates all members of a gzip stream, and takes a checkpoint at the
+	// first block after every SPACING bytes of data
+	public static GzipIndex build(final InputStream in, final long spacing)
+			throws IOException {
+		Scanner scanner = new Scanner(in, spacing);
+
+		scanner.scan();
+
+		return scanner.index;
+	}
+
+	// Canonical Huffman code, by the number of codes of each length and the
+	// symbols in code order
+	private static class Huffman {
+		final int[] count = new int[16];
+		final int[] symbol;
+
+		Huffman(final int n) {
+			symbol = new int[n];
+		}
+
+		// < 0 if over-subscribed, > 0 if incomplete
+		int set(final int[] lengths, final int off, final int n) {
+			int[] offs = new int[16];
+
+			Arrays.fill(count, 0);
+			for (int i = 0; i < n; i++) {
+				count[lengths[off + i]]++;
+			}
+			if (count[0] == n) {
+				return 0;
+			}
+
+			int left = 1;
+			for (int len = 1; len < 16; len++) {
+				left <<= 1;
+				left -= count[len];
+				if (left < 0) {
+					return left;
+				}
+			}
+
+			for (int len = 1; len < 15; len++) {
+				offs[len + 1] = offs[len] + count[len];
+			}
+			for (int i = 0; i < n; i++) {
+				if (lengths[off + i] != 0) {
+					symbol[offs[lengths[off + i]]++] = i;
+				}
+			}
+
+			return left;
+		}
+	}
+
+	private static final int[] LBASE = { 3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15,
+			17, 19, 23, 27, 31, 35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195,
+			227, 258 };
+	private static final int[] LEXT = { 0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2,
+			2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0 };
+	private static final int[] DBASE = { 1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33,
+			49, 65, 97, 129, 193, 257, 385, 513, 769, 1025, 1537, 2049, 3073,
+			4097, 6145, 8193, 12289, 16385, 24577 };
+	private static final int[] DEXT = { 0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5,
+			5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13 };
+	private static final int[] ORDER = { 16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11,
+			4, 12, 3, 13, 2, 14, 1, 15 };
+
+	// A plain inflater that knows where its blocks start, which
+	// java.util.zip.Inflater does not tell
+	private static class Scanner {
+		private final InputStream in;
+		private final long spacing;
+		private final GzipIndex index = new GzipIndex();
+
+		// bytes read, and the bits of the last ones not used yet
+		private long pos = 0;
+		private int bitbuf = 0;
+		private int bitcnt = 0;
+
+		private final byte[] window = new byte[WINDOW];
+		private long out = 0;
+		private long member = 0;
+		private long mark = 0;
+
+		private final Huffman fixedLit = new Huffman(288);
+		private final Huffman fixedDist = new Huffman(30);
+		private final Huffman lencode = new Huffman(288);
+		private final Huffman distcode = new Huffman(30);
+		private final int[] lengths = new int[320];
+
+		Scanner(final InputStream in1, final long spacing1) {
+			in = in1;
+			spacing = spacing1;
+
+			for (int i = 0; i < 288; i++) {
+				lengths[i] = (i < 144) ? 8 : (i < 256) ? 9 : (i < 280) ? 7 : 8;
+			}
+			fixedLit.set(lengths, 0, 288);
+
+			Arrays.fill(lengths, 0, 30, 5);
+			fixedDist.set(lengths, 0, 30);
+		}
+
+		private int read() throws IOException {
+			int b = in.read();
+
+			if (b < 0) {
+				throw new EOFException("Truncated gzip stream at " + pos);
+			}
+			pos++;
+
+			return b;
+		}
+
+		private int bits(final int n) throws IOException {
+			while (bitcnt < n) {
+				bitbuf |= read() << bitcnt;
+				bitcnt += 8;
+			}
+
+			int v = bitbuf & ((1 << n) - 1);
+			bitbuf >>>= n;
+			bitcnt -= n;
+
+			return v;
+		}
+
+		private void put(final int b) {
+			window[(int) out & (WINDOW - 1)] = (byte) b;
+			out++;
+		}
+
+		private int decode(final Huffman h) throws IOException {
+			int code = 0;
+			int first = 0;
+			int index1 = 0;
+
+			for (int len = 1; len < 16; len++) {
+				code |= bits(1);
+				int count = h.count[len];
+
+				if (code - count < first) {
+					return h.symbol[index1 + (code - first)];
+				}
+
+				index1 += count;
+				first += count;
+				first <<= 1;
+				code <<= 1;
+			}
+
+			throw new IOException("Invalid deflate code at " + pos);
+		}
+
+		void scan() throws IOException {
+			int id1;
+
+			while ((id1 = in.read()) >= 0) {
+				pos++;
+				header(id1);
+
+				member = out;
+				inflate();
+
+				// CRC32 and the data size modulo 2^32
+				bits(16);
+				bits(16);
+				if (bits(16) + (bits(16) << 16) != (int) (out - member)) {
+					throw new IOException("Corrupt gzip member at " + pos);
+				}
+			}
+		}
+
+		private void header(final int id1) throws IOException {
+			if (id1 != 0x1F || read() != 0x8B || read() != 8) {
+				throw new IOException("Not a gzip member at " + (pos - 1));
+			}
+
+			int flg = read();
+			for (int i = 0; i < 6; i++) {
+				read();
+			}
+
+			if ((flg & 0x04) != 0) {
+				int xlen = read() | (read() << 8);
+				for (int i = 0; i < xlen; i++) {
+					read();
+				}
+			}
+			if ((flg & 0x08) != 0) {
+				while (read() != 0) {
+				}
+			}
+			if ((flg & 0x10) != 0) {
+				while (read() != 0) {
+				}
+			}
+			if ((flg & 0x02) != 0) {
+				read();
+				read();
+			}
+		}
+
+		private void inflate() throws IOException {
+			int last;
+
+			do {
+				if (out - mark >= spacing) {
+					checkpoint();
+				}
+
+				last = bits(1);
+
+				switch (bits(2)) {
+				case 0:
+					stored();
+					break;
+				case 1:
+					codes(fixedLit, fixedDist);
+					break;
+				case 2:
+					dynamic();
+					break;
+				default:
+					throw new IOException("Invalid deflate block at " + pos);
+				}
+			} while (last == 0);
+
+			// the trailer starts at the next byte
+			bitbuf = 0;
+			bitcnt = 0;
+		}
+
+		private void checkpoint() {
+			long bitpos = 8 * pos - bitcnt;
+			byte[] w = new byte[(int) Math.min(out, WINDOW)];
+
+			for (int i = 0; i < w.length; i++) {
+				w[i] = window[(int) (out - w.length + i) & (WINDOW - 1)];
+			}
+
+			index.points.add(new Checkpoint(bitpos >>> 3, (int) (bitpos & 7),
+					out, member, w));
+			mark = out;
+		}
+
+		private void stored() throws IOException {
+			bitbuf = 0;
+			bitcnt = 0;
+
+			int len = bits(16);
+			if (bits(16) != (~len & 0xFFFF)) {
+				throw new IOException("Invalid stored block at " + pos);
+			}
+
+			for (int i = 0; i < len; i++) {
+				put(read());
+			}
+		}
+
+		private void dynamic() throws IOException {
+			int nlen = bits(5) + 257;
+			int ndist = bits(5) + 1;
+			int ncode = bits(4) + 4;
+
+			if (nlen > 286 || ndist > 30) {
+				throw new IOException("Invalid deflate block at " + pos);
+			}
+
+			Arrays.fill(lengths, 0);
+			for (int i = 0; i < ncode; i++) {
+				lengths[ORDER[i]] = bits(3);
+			}
+			if (lencode.set(lengths, 0, 19) != 0) {
+				throw new IOException("Invalid deflate block at " + pos);
+			}
+
+			int i = 0;
+			while (i < nlen + ndist) {
+				int sym = decode(lencode);
+
+				if (sym < 16) {
+					lengths[i++] = sym;
+					continue;
+				}
+
+				int len = 0;
+				if (sym == 16) {
+					if (i == 0) {
+						throw new IOException("Invalid deflate block at " + pos);
+					}
+					len = lengths[i - 1];
+					sym = 3 + bits(2);
+				} else if (sym == 17) {
+					sym = 3 + bits(3);
+				} else {
+					sym = 11 + bits(7);
+				}
+
+				if (i + sym > nlen + ndist) {
+					throw new IOException("Invalid deflate block at " + pos);
+				}
+				while (sym-- > 0) {
+					lengths[i++] = len;
+				}
+			}
+
+			// lencode is free again once the code lengths are read
+			if (lengths[256] == 0 || distcode.set(lengths, nlen, ndist) < 0
+					|| lencode.set(lengths, 0, nlen) < 0) {
+				throw new IOException("Invalid deflate block at " + pos);
+			}
+
+			codes(lencode, distcode);
+		}
+
+		private void codes(final Huffman lit, final Huffman dist)
+				throws IOException {
+			while (true) {
+				int sym = decode(lit);
+
+				if (sym < 256) {
+					put(sym);
+				} else if (sym == 256) {
+					return;
+				} else {
+					sym -= 257;
+					if (sym >= 29) {
+						throw new IOException("Invalid deflate code at " + pos);
+					}
+					int len = LBASE[sym] + bits(LEXT[sym]);
+
+					sym = decode(dist);
+					if (sym >= 30) {
+						throw new IOException("Invalid deflate code at " + pos);
+					}
+					int d = DBASE[sym] + bits(DEXT[sym]);
+
+					if (d > out - member) {
+						throw new IOException("Invalid deflate distance at "
+								+ pos);
+					}
+
+					for (int i = 0; i < len; i++) {
+						put(window[(int) (out - d) & (WINDOW - 1)]);
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public int run(String[] args) throws Exception {
+		for (String arg : args) {
+			Path file = new Path(arg);
+			FileSystem fs = file.getFileSystem(getConf());
+
+			long starttime = System.currentTimeMillis();
+
+			InputStream in = new BufferedInputStream(fs.open(file), 1 << 16);
+			GzipIndex index;
+			try {
+				index = build(in, SPACING);
+			} finally {
+				in.close();
+			}
+			index.write(fs, file);
+
+			long endtime = System.currentTimeMillis();
+
+			System.out.println(indexPath(file) + ": " + index.size()
+					+ " checkpoints, " + (endtime - starttime) / 1000.0 + " s");
+		}
+
+		return 0;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int res = ToolRunner.run(new Configuration(), new GzipIndex(), args);
+		System.exit(res);
+	}
+}
@@ -0,0 +1,366 @@
+/*
+ * (C) Copyright 2017 The CloudEC Project and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Contributors:
+ *      Wei-Chun Chung (wcchung@iis.sinica.edu.tw)
+ *      Chien-Chih Chen (rocky@iis.sinica.edu.tw)
+ * 
+ * CloudEC Project:
+ *      https://github.com/CSCLabTW/CloudEC/
+ */
+
+package tw.edu.sinica.iis.CloudEC;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+// Inflates a gzip file from the first point at or after an offset where
+// inflating can start without the data before it: a block of a BGZF file,
+// or a checkpoint of the GzipIndex of a plain gzip file.
+//
+// BGZF (the gzip of bgzip) is a series of gzip members of at most 64 KB
+// each, with the member size in a 'BC' extra field. A block starts at a
+// member header, which is searched for, and is checked by the header of the
+// next member. A checkpoint may start at any bit of a byte; as Inflater can
+// only start at a byte, its input is shifted by these bits.
+//
+// read() never returns data of two such points. getOwner() gives the file
+// offset of the point the last data is after.
+public class GzipSplitReader implements Closeable {
+	private static final int BUFFER = 1 << 16;
+
+	private static final int BGZF_HEADER = 18;
+
+	private final FSDataInputStream in;
+	private final long length;
+	private final GzipIndex index;
+
+	// the next checkpoint of the index
+	private int next = 0;
+
+	// file data [rawPos, rawPos + rawLen), the stream is at the end of it
+	private final byte[] raw = new byte[BUFFER];
+	private long rawPos = 0;
+	private int rawLen = 0;
+
+	// input of the member, shifted by some bits if it started at a checkpoint
+	private final Inflater inflater = new Inflater(true);
+	private final byte[] shifted = new byte[BUFFER];
+	private int shift = 0;
+	private long base = 0;
+	private long feed = 0;
+
+	private long out = 0;
+	private long member = 0;
+	private long owner = 0;
+	private boolean eof = false;
+
+	public GzipSplitReader(final FSDataInputStream in1, final long length1,
+			final long start, final GzipIndex index1) throws IOException {
+		in = in1;
+		length = length1;
+		index = index1;
+
+		if (start == 0) {
+			begin(0);
+		} else if (index == null) {
+			begin(findBlock(start));
+		} else {
+			next = index.seek(start);
+
+			if (next == index.size()) {
+				owner = length;
+				eof = true;
+				return;
+			}
+
+			GzipIndex.Checkpoint point = index.get(next++);
+
+			shift = point.bits;
+			base = point.in;
+			feed = point.in;
+			out = point.out;
+			member = point.member;
+			owner = point.in;
+
+			if (point.window.length > 0) {
+				inflater.setDictionary(point.window);
+			}
+		}
+	}
+
+	// Whether file is BGZF, by the header of its first block
+	public static boolean isBgzf(final FileSystem fs, final Path file)
+			throws IOException {
+		byte[] header = new byte[BGZF_HEADER];
+		FSDataInputStream in = fs.open(file);
+
+		try {
+			in.readFully(0, header);
+		} catch (IOException e) {
+			return false;
+		} finally {
+			in.close();
+		}
+
+		return isBgzfHeader(header, 0);
+	}
+
+	private static boolean isBgzfHeader(final byte[] b, final int i) {
+		return b[i] == 0x1F && b[i + 1] == (byte) 0x8B && b[i + 2] == 8
+				&& b[i + 3] == 4 && b[i + 10] == 6 && b[i + 11] == 0
+				&& b[i + 12] == 'B' && b[i + 13] == 'C' && b[i + 14] == 2
+				&& b[i + 15] == 0;
+	}
+
+	// Makes raw hold [pos, pos + n), false if the file ends before
+	private boolean fill(final long pos, final int n) throws IOException {
+		if (pos >= rawPos && pos + n <= rawPos + rawLen) {
+			return true;
+		}
+
+		if (pos >= rawPos && pos <= rawPos + rawLen) {
+			int skip = (int) (pos - rawPos);
+			System.arraycopy(raw, skip, raw, 0, rawLen - skip);
+			rawLen -= skip;
+		} else {
+			in.seek(pos);
+			rawLen = 0;
+		}
+		rawPos = pos;
+
+		while (rawLen < n) {
+			int r = in.read(raw, rawLen, raw.length - rawLen);
+			if (r < 0) {
+				return false;
+			}
+			rawLen += r;
+		}
+
+		return true;
+	}
+
+	private int rawByte(final long pos) throws IOException {
+		if (!fill(pos, 1)) {
+			throw new IOException("Truncated gzip member at " + pos);
+		}
+
+		return raw[(int) (pos - rawPos)] & 0xFF;
+	}
+
+	// The first BGZF block at or after pos, or the file length if none
+	private long findBlock(long pos) throws IOException {
+		for (; fill(pos, BGZF_HEADER); pos++) {
+			if (!isBgzfHeader(raw, (int) (pos - rawPos))) {
+				continue;
+			}
+
+			// the block size - 1, then the next block or the end of the file
+			long nextBlock = pos + 1
+					+ (rawByte(pos + 16) | (rawByte(pos + 17) << 8));
+
+			if (nextBlock == length) {
+				return pos;
+			}
+			if (nextBlock < length && fill(nextBlock, 4)) {
+				int i = (int) (nextBlock - rawPos);
+
+				if (raw[i] == 0x1F && raw[i + 1] == (byte) 0x8B
+						&& raw[i + 2] == 8 && raw[i + 3] == 4) {
+					return pos;
+				}
+			}
+
+			fill(pos, BGZF_HEADER);
+		}
+
+		return length;
+	}
+
+	// Starts the member at pos
+	private void begin(final long pos) throws IOException {
+		if (pos >= length) {
+			owner = length;
+			eof = true;
+			return;
+		}
+
+		if (rawByte(pos) != 0x1F || rawByte(pos + 1) != 0x8B
+				|| rawByte(pos + 2) != 8) {
+			throw new IOException("Not a gzip member at " + pos);
+		}
+
+		int flg = rawByte(pos + 3);
+		long p = pos + 10;
+
+		if ((flg & 0x04) != 0) {
+			p += 2 + (rawByte(p) | (rawByte(p + 1) << 8));
+		}
+		if ((flg & 0x08) != 0) {
+			while (rawByte(p++) != 0) {
+			}
+		}
+		if ((flg & 0x10) != 0) {
+			while (rawByte(p++) != 0) {
+			}
+		}
+		if ((flg & 0x02) != 0) {
+			p += 2;
+		}
+
+		inflater.reset();
+		shift = 0;
+		base = p;
+		feed = p;
+		member = out;
+
+		if (index == null) {
+			owner = pos;
+		}
+	}
+
+	// Gives the inflater the input after feed
+	private void feed() throws IOException {
+		if (shift == 0) {
+			if (!fill(feed, 1)) {
+				throw new IOException("Truncated gzip member at " + feed);
+			}
+
+			int i = (int) (feed - rawPos);
+			int n = rawLen - i;
+
+			inflater.setInput(raw, i, n);
+			feed += n;
+			return;
+		}
+
+		// byte k of the input is the bits from shift on of bytes k and k + 1
+		int n;
+		if (fill(feed, 2)) {
+			n = Math.min(rawLen - (int) (feed - rawPos) - 1, shifted.length);
+		} else if (fill(feed, 1)) {
+			n = 1;
+		} else {
+			throw new IOException("Truncated gzip member at " + feed);
+		}
+
+		int i = (int) (feed - rawPos);
+		for (int k = 0; k < n; k++, i++) {
+			int hi = (i + 1 < rawLen) ? raw[i + 1] << (8 - shift) : 0;
+			shifted[k] = (byte) (((raw[i] & 0xFF) >>> shift) | hi);
+		}
+
+		inflater.setInput(shifted, 0, n);
+		feed += n;
+	}
+
+	// Checks the trailer of the member and starts the next one
+	private void end() throws IOException {
+		long used = feed - inflater.getRemaining() - base;
+		long trailer = base + used;
+
+		// the last bit is in the last byte used of the shifted input, the
+		// member ends in that byte of the file or in the next one
+		if (shift != 0 && !isTrailer(trailer)) {
+			trailer++;
+		}
+		if (!isTrailer(trailer)) {
+			throw new IOException("Corrupt gzip member before " + trailer);
+		}
+
+		begin(trailer + 8);
+	}
+
+	// Whether the trailer at pos has the data size of the member, and is
+	// followed by the end of the file or by the next member
+	private boolean isTrailer(final long pos) throws IOException {
+		if (pos + 8 > length) {
+			return false;
+		}
+
+		long size = rawByte(pos + 4) | (rawByte(pos + 5) << 8)
+				| (rawByte(pos + 6) << 16) | ((long) rawByte(pos + 7) << 24);
+
+		if (size != ((out - member) & 0xFFFFFFFFL)) {
+			return false;
+		}
+
+		return pos + 8 == length
+				|| (pos + 10 <= length && rawByte(pos + 8) == 0x1F
+						&& rawByte(pos + 9) == 0x8B);
+	}
+
+	// Reads up to len bytes of data after one point, -1 at the end
+	public int read(final byte[] b, final int off, final int len)
+			throws IOException {
+		while (!eof) {
+			if (inflater.finished()) {
+				end();
+				continue;
+			}
+
+			int max = len;
+			if (index != null && next < index.size()) {
+				GzipIndex.Checkpoint point = index.get(next);
+
+				if (out == point.out) {
+					owner = point.in;
+					next++;
+					continue;
+				}
+				max = (int) Math.min(len, point.out - out);
+			}
+
+			if (inflater.needsInput()) {
+				feed();
+			}
+
+			int n;
+			try {
+				n = inflater.inflate(b, off, max);
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupt gzip member before " + feed, e);
+			}
+
+			if (n > 0) {
+				out += n;
+				return n;
+			}
+		}
+
+		return -1;
+	}
+
+	public long getOwner() {
+		return owner;
+	}
+
+	// The offset in the file up to which the input is read
+	public long getPos() {
+		return eof ? length : feed;
+	}
+
+	@Override
+	public void close() throws IOException {
+		inflater.end();
+		in.close();
+	}
+}
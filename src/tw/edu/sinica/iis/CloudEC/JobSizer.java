@@ -0,0 +1,188 @@
+/*
+ * (C) Copyright 2017 The CloudEC Project and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Contributors:
+ *      Wei-Chun Chung (wcchung@iis.sinica.edu.tw)
+ *      Chien-Chih Chen (rocky@iis.sinica.edu.tw)
+ * 
+ * CloudEC Project:
+ *      https://github.com/CSCLabTW/CloudEC/
+ */
+
+
+package tw.edu.sinica.iis.CloudEC;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Task;
+import org.apache.hadoop.util.StringUtils;
+import org.apache.log4j.Logger;
+
+// Sizes the map and reduce tasks of a job from the size of its input and
+// the expected map output.
+//
+// The map output is the input times the output/input ratio last observed
+// for the same tool (an earlier round), or else for a job with the same
+// kind of map output key (an earlier stage). Only the jobs that shuffle to
+// several reducers stand for their kind, a sample or a single summary says
+// little about a full shuffle. Kmer keyed jobs emit about
+// L - K + 1 records per read, read keyed jobs about one. The split size
+// keeps the output of a map task within its sort buffer, and the reducers
+// get about REDUCE_BYTES each, in full waves of the reduce slots.
+public class JobSizer {
+	private static final Logger sLogger = Logger.getLogger(JobSizer.class);
+
+	private static final long REDUCE_BYTES = 256L << 20;
+
+	// size of a kmer record relative to its read, if nothing was observed
+	private static final double KMER_RECORD = 0.25;
+
+	private final int mapSlots;
+	private final int reduceSlots;
+
+	private double readLength = 0;
+
+	// map output / input bytes, by tool and by map output key class
+	private final Map<String, Double> ratios = new HashMap<String, Double>();
+
+	// input bytes of the last sized job
+	private long inputBytes = 0;
+
+	public JobSizer(final int mapSlots1, final int reduceSlots1) {
+		mapSlots = Math.max(1, mapSlots1);
+		reduceSlots = Math.max(1, reduceSlots1);
+	}
+
+	public void setReadLength(final double length) {
+		readLength = length;
+	}
+
+	private static String tool(final JobConf conf) {
+		return conf.getJobName().split(" ")[0];
+	}
+
+	private static String kind(final JobConf conf) {
+		return conf.getMapOutputKeyClass().getName();
+	}
+
+	private double ratio(final JobConf conf) {
+		if (ratios.containsKey(tool(conf))) {
+			return ratios.get(tool(conf));
+		}
+		if (ratios.containsKey(kind(conf))) {
+			return ratios.get(kind(conf));
+		}
+
+		if (conf.getMapOutputKeyClass() == KmerWritable.class) {
+			return Math.max(1, readLength - Config.K + 1) * KMER_RECORD;
+		}
+
+		return 1.0;
+	}
+
+	public void size(final JobConf conf) throws IOException {
+		inputBytes = inputBytes(conf);
+
+		if (inputBytes == 0) {
+			return;
+		}
+
+		double ratio = ratio(conf);
+		long output = (long) (inputBytes * ratio);
+
+		if (Config.AUTO_MAPPERS) {
+			long sortBytes = (long) ((conf.getInt("io.sort.mb", 100) << 20) * conf
+					.getFloat("io.sort.spill.percent", 0.8f));
+
+			// a hint, FileInputFormat still splits at the block size
+			conf.setNumMapTasks((int) Math.max(mapSlots,
+					(output + sortBytes - 1) / sortBytes));
+		}
+
+		// map only jobs and jobs with a single output keep theirs
+		if (Config.AUTO_REDUCERS && conf.getNumReduceTasks() > 1) {
+			long reduces = Math.max(1, (output + REDUCE_BYTES - 1)
+					/ REDUCE_BYTES);
+
+			if (reduces > reduceSlots) {
+				reduces = (reduces + reduceSlots - 1) / reduceSlots
+						* reduceSlots;
+			}
+
+			conf.setNumReduceTasks((int) reduces);
+		}
+
+		sLogger.info("Sizing " + tool(conf) + ": "
+				+ StringUtils.humanReadableInt(inputBytes) + " input, ratio "
+				+ String.format("%.2f", ratio) + ", " + conf.getNumMapTasks()
+				+ " maps, " + conf.getNumReduceTasks() + " reduces");
+	}
+
+	// Remember the output/input ratio of the job sized last
+	public void observe(final JobConf conf, final Counters counters) {
+		long output = counters.getCounter(Task.Counter.MAP_OUTPUT_BYTES);
+
+		if (inputBytes > 0 && output > 0) {
+			double ratio = (double) output / inputBytes;
+
+			ratios.put(tool(conf), ratio);
+			if (conf.getNumReduceTasks() > 1) {
+				ratios.put(kind(conf), ratio);
+			}
+		}
+	}
+
+	private static long inputBytes(final JobConf conf) throws IOException {
+		List<Path> paths = new ArrayList<Path>();
+
+		String formatMap = conf.get("mapred.input.dir.formats");
+
+		if (formatMap != null) {
+			// paths added with MultipleInputs
+			for (String mapping : formatMap.split(",")) {
+				paths.add(new Path(mapping.split(";")[0]));
+			}
+		} else {
+			for (Path path : FileInputFormat.getInputPaths(conf)) {
+				paths.add(path);
+			}
+		}
+
+		long bytes = 0;
+
+		for (Path path : paths) {
+			FileSystem fs = path.getFileSystem(conf);
+			FileStatus[] matches = fs.globStatus(path);
+
+			if (matches != null) {
+				for (FileStatus status : matches) {
+					bytes += fs.getContentSummary(status.getPath()).getLength();
+				}
+			}
+		}
+
+		return bytes;
+	}
+}
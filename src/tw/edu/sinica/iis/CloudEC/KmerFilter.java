@@ -0,0 +1,187 @@
+/*
+ * (C) Copyright 2017 The CloudEC Project and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Contributors:
+ *      Wei-Chun Chung (wcchung@iis.sinica.edu.tw)
+ *      Chien-Chih Chen (rocky@iis.sinica.edu.tw)
+ * 
+ * CloudEC Project:
+ *      https://github.com/CSCLabTW/CloudEC/
+ */
+
+
+package tw.edu.sinica.iis.CloudEC;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordReader;
+
+// A Bloom filter of kmers. It may report a kmer that was never added (about
+// 1% of the time at the default size), but never misses one that was.
+//
+// A kmer is hashed once to 64 bits, and the probes are derived from both
+// halves of the hash (double hashing). A filter too large for one reducer
+// is split into parts by the hash, see SpreadCorrectSketch.
+public class KmerFilter implements Writable {
+	private static final int BITS_PER_KMER = 10;
+	private static final int PROBES = 7;
+
+	private long nbits = 0;
+	private long[] bits = new long[0];
+
+	public KmerFilter() {
+	}
+
+	// An empty filter for about n kmers
+	public KmerFilter(final long n) {
+		long words = Math.max(1, (n * BITS_PER_KMER + 63) >>> 6);
+
+		nbits = words << 6;
+		bits = new long[(int) words];
+	}
+
+	// The heap of a filter for n kmers
+	public static long bytesFor(final long n) {
+		return Math.max(1, (n * BITS_PER_KMER + 63) >>> 6) << 3;
+	}
+
+	// The part of a hash among parts, from the high bits of another mix of
+	// it so that the probes within a part stay uniform
+	public static int part(final long hash, final int parts) {
+		return (int) (((hash * 0x9E3779B97F4A7C15L) >>> 33) % parts);
+	}
+
+	public static long hash(final KmerWritable kmer) {
+		long h = kmer.getHi() * 0x9E3779B97F4A7C15L;
+
+		h ^= kmer.getLo() + ((long) kmer.getLength() << 57);
+		h ^= (h >>> 33);
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= (h >>> 33);
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= (h >>> 33);
+
+		return h;
+	}
+
+	public boolean isEmpty() {
+		return nbits == 0;
+	}
+
+	public void add(final long hash) {
+		long h1 = hash & 0xFFFFFFFFL;
+		long h2 = hash >>> 32;
+
+		for (int i = 0; i < PROBES; i++) {
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % nbits;
+			bits[(int) (bit >>> 6)] |= 1L << bit;
+		}
+	}
+
+	public boolean contains(final long hash) {
+		if (nbits == 0) {
+			return false;
+		}
+
+		long h1 = hash & 0xFFFFFFFFL;
+		long h2 = hash >>> 32;
+
+		for (int i = 0; i < PROBES; i++) {
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % nbits;
+			if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	public boolean contains(final KmerWritable kmer) {
+		return contains(hash(kmer));
+	}
+
+	// Load the filter written by the job at path, see LocalEngine.openOutput
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public static KmerFilter load(final JobConf conf, final String path)
+			throws IOException {
+		KmerFilter filter = new KmerFilter();
+		RecordReader reader = LocalEngine.openOutput(conf, path);
+
+		try {
+			Object key = reader.createKey();
+			Object value = reader.createValue();
+
+			if (reader.next(key, value)) {
+				filter = (KmerFilter) value;
+			}
+		} finally {
+			reader.close();
+		}
+
+		return filter;
+	}
+
+	// Load the filters of parts written by the job at path keyed by their
+	// part, a part without one gets an empty filter
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public static KmerFilter[] loadParts(final JobConf conf,
+			final String path, final int parts) throws IOException {
+		KmerFilter[] filters = new KmerFilter[parts];
+		RecordReader reader = LocalEngine.openOutput(conf, path);
+
+		try {
+			IntWritable part = new IntWritable();
+			KmerFilter filter = new KmerFilter();
+
+			while (reader.next(part, filter)) {
+				filters[part.get()] = filter;
+				filter = new KmerFilter();
+			}
+		} finally {
+			reader.close();
+		}
+
+		for (int i = 0; i < parts; i++) {
+			if (filters[i] == null) {
+				filters[i] = new KmerFilter();
+			}
+		}
+
+		return filters;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		WritableUtils.writeVLong(out, nbits);
+		for (int i = 0; i < (int) (nbits >>> 6); i++) {
+			out.writeLong(bits[i]);
+		}
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		nbits = WritableUtils.readVLong(in);
+		bits = new long[(int) (nbits >>> 6)];
+		for (int i = 0; i < bits.length; i++) {
+			bits[i] = in.readLong();
+		}
+	}
+}
@@ -0,0 +1,243 @@
+/*
+ * (C) Copyright 2017 The CloudEC Project and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Contributors:
+ *      Wei-Chun Chung (wcchung@iis.sinica.edu.tw)
+ *      Chien-Chih Chen (rocky@iis.sinica.edu.tw)
+ * 
+ * CloudEC Project:
+ *      https://github.com/CSCLabTW/CloudEC/
+ */
+
+package tw.edu.sinica.iis.CloudEC;
+
+// Rolls a window of K bases over the 2-bit encoding of a read, in O(1) per
+// shift, and yields the canonical k-mer (the smaller one of the forward and
+// the reverse complement k-mer) of each window without N bases.
+//
+// The window is kept as two halves of K / 2 and K - K / 2 bases, each with
+// its forward and reverse complement words. In gapped mode, the halves are
+// separated by one base which is not part of the k-mer (the window spans
+// K + 1 bases), as used by PinchCorrect.
+public class KmerIterator {
+	private final int K;
+	private final int gap;
+
+	// lengths of the left and right halves
+	private final int lenL;
+	private final int lenR;
+
+	private final long maskL;
+	private final long maskR;
+
+	private ReadNodeWritable node = null;
+	private int length = 0;
+
+	// start of the current window
+	private int pos = 0;
+
+	// forward and reverse complement words of both halves
+	private long fwdL = 0;
+	private long rcL = 0;
+	private long fwdR = 0;
+	private long rcR = 0;
+
+	// number of bases without N at the end of both halves
+	private int runL = 0;
+	private int runR = 0;
+
+	// the current k-mer as 128-bit words
+	private long fwdHi = 0;
+	private long fwdLo = 0;
+	private long rcHi = 0;
+	private long rcLo = 0;
+
+	private int compare = 0;
+
+	public KmerIterator(final int k, final boolean gapped) {
+		K = k;
+		gap = gapped ? 1 : 0;
+
+		lenL = K / 2;
+		lenR = K - lenL;
+
+		maskL = mask(lenL);
+		maskR = mask(lenR);
+	}
+
+	private static long mask(final int bases) {
+		return (bases >= 32) ? -1L : ((1L << (2 * bases)) - 1);
+	}
+
+	// Number of bases covered by a window
+	public int getWindow() {
+		return K + gap;
+	}
+
+	public void reset(final ReadNodeWritable node1) {
+		node = node1;
+		length = node.getLen();
+
+		prime(0);
+	}
+
+	// Start over from the window at start
+	private void prime(final int start) {
+		fwdL = rcL = fwdR = rcR = 0;
+		runL = runR = 0;
+
+		pos = start - 1;
+
+		// feed all but the last base of both halves
+		for (int i = start; i < start + lenL - 1 && i < length; i++) {
+			runL = pushL(i);
+		}
+
+		for (int i = start + lenL + gap; i < start + getWindow() - 1
+				&& i < length; i++) {
+			runR = pushR(i);
+		}
+	}
+
+	// Make next() continue from the window at target, the windows in
+	// between are rolled over (or dropped if the jump is long) silently
+	public void seek(final int target) {
+		if (target - pos - 1 > getWindow()) {
+			prime(target);
+			return;
+		}
+
+		while (pos < target - 1) {
+			if (++pos <= length - getWindow()) {
+				shift();
+			}
+		}
+	}
+
+	private void shift() {
+		if (lenL > 0) {
+			runL = pushL(pos + lenL - 1);
+		}
+		runR = pushR(pos + getWindow() - 1);
+	}
+
+	private int pushL(final int i) {
+		if (node.isN(i)) {
+			fwdL = (fwdL << 2) & maskL;
+			rcL = rcL >>> 2;
+
+			return 0;
+		}
+
+		int code = node.getCode(i);
+
+		fwdL = ((fwdL << 2) | code) & maskL;
+		rcL = (rcL >>> 2) | ((long) (3 - code) << (2 * (lenL - 1)));
+
+		return runL + 1;
+	}
+
+	private int pushR(final int i) {
+		if (node.isN(i)) {
+			fwdR = (fwdR << 2) & maskR;
+			rcR = rcR >>> 2;
+
+			return 0;
+		}
+
+		int code = node.getCode(i);
+
+		fwdR = ((fwdR << 2) | code) & maskR;
+		rcR = (rcR >>> 2) | ((long) (3 - code) << (2 * (lenR - 1)));
+
+		return runR + 1;
+	}
+
+	// Move to the next window without N bases, false if there is none
+	public boolean next() {
+		while (++pos <= length - getWindow()) {
+			shift();
+
+			if (runL >= lenL && runR >= lenR) {
+				combine();
+
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	// fwd = L . R, rc = rc(R) . rc(L)
+	private void combine() {
+		int shiftR = 2 * lenR;
+		int shiftL = 2 * lenL;
+
+		if (shiftR == 64) {
+			fwdHi = fwdL;
+			fwdLo = fwdR;
+		} else {
+			fwdHi = fwdL >>> (64 - shiftR);
+			fwdLo = fwdR | (fwdL << shiftR);
+		}
+
+		if (shiftL == 64) {
+			rcHi = rcR;
+			rcLo = rcL;
+		} else if (shiftL == 0) {
+			rcHi = 0;
+			rcLo = rcR;
+		} else {
+			rcHi = rcR >>> (64 - shiftL);
+			rcLo = rcL | (rcR << shiftL);
+		}
+
+		compare = Long.compareUnsigned(fwdHi, rcHi);
+		if (compare == 0) {
+			compare = Long.compareUnsigned(fwdLo, rcLo);
+		}
+	}
+
+	// Start of the current window in the read
+	public int getPos() {
+		return pos;
+	}
+
+	// The forward k-mer is the canonical one
+	public boolean isForward() {
+		return compare < 0;
+	}
+
+	// The forward and the reverse complement k-mers are the same
+	public boolean isPalindrome() {
+		return compare == 0;
+	}
+
+	public void getForward(final KmerWritable kmer, final byte tag) {
+		kmer.set(K, fwdHi, fwdLo, tag);
+	}
+
+	public void getReverse(final KmerWritable kmer, final byte tag) {
+		kmer.set(K, rcHi, rcLo, tag);
+	}
+
+	public void getCanonical(final KmerWritable kmer, final byte tag) {
+		if (compare < 0) {
+			getForward(kmer, tag);
+		} else {
+			getReverse(kmer, tag);
+		}
+	}
+}
@@ -0,0 +1,225 @@
+/*
+ * (C) Copyright 2017 The CloudEC Project and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Contributors:
+ *      Wei-Chun Chung (wcchung@iis.sinica.edu.tw)
+ *      Chien-Chih Chen (rocky@iis.sinica.edu.tw)
+ * 
+ * CloudEC Project:
+ *      https://github.com/CSCLabTW/CloudEC/
+ */
+
+
+package tw.edu.sinica.iis.CloudEC;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Partitioner;
+import org.apache.hadoop.mapred.RecordReader;
+
+// Partitions kmer keys by a plan sampled from the map output, see
+// SpreadCorrectSample, so that the reducers get about the same number of
+// records.
+//
+// The keys are hashed into BUCKETS buckets, and the heaviest sampled keys
+// are placed on their own. Both are assigned to the partitions largest
+// first, each to the least loaded partition. All records of a key still go
+// to one reducer, only the reducer changes. Without a plan, keys are
+// partitioned by their hash as with the HashPartitioner.
+public class KmerPartitioner implements Partitioner<KmerWritable, Writable> {
+	public static final int BUCKETS = 1 << 14;
+
+	private Plan plan = null;
+
+	private int partitions = 0;
+	private int[] bucketParts = null;
+	private Map<KmerWritable, Integer> heavyParts = null;
+
+	// Partition the job by the plan written at path
+	public static void setPlan(final JobConf conf, final String path) {
+		conf.set("KMER_PARTITIONS", path);
+		conf.setPartitionerClass(KmerPartitioner.class);
+	}
+
+	@Override
+	public void configure(JobConf job) {
+		try {
+			if (job.get("KMER_PARTITIONS") != null) {
+				plan = Plan.load(job, job.get("KMER_PARTITIONS"));
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static int bucket(final KmerWritable key) {
+		return (key.hashCode() & Integer.MAX_VALUE) % BUCKETS;
+	}
+
+	@Override
+	public int getPartition(KmerWritable key, Writable value, int numPartitions) {
+		if (plan == null) {
+			return (key.hashCode() & Integer.MAX_VALUE) % numPartitions;
+		}
+
+		if (partitions != numPartitions) {
+			assign(numPartitions);
+		}
+
+		Integer part = heavyParts.get(key);
+
+		return (part != null) ? part : bucketParts[bucket(key)];
+	}
+
+	// Largest first onto the least loaded partition, ties by index
+	private void assign(final int numPartitions) {
+		int items = BUCKETS + plan.heavy.length;
+		Integer[] order = new Integer[items];
+		final long[] loads = new long[items];
+
+		for (int i = 0; i < items; i++) {
+			order[i] = i;
+			loads[i] = (i < BUCKETS) ? plan.buckets[i] : plan.heavyLoads[i
+					- BUCKETS];
+		}
+
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				if (loads[a] != loads[b]) {
+					return (loads[a] > loads[b]) ? -1 : 1;
+				}
+				return a.compareTo(b);
+			}
+		});
+
+		final long[] partLoads = new long[numPartitions];
+		PriorityQueue<Integer> queue = new PriorityQueue<Integer>(
+				numPartitions, new Comparator<Integer>() {
+					@Override
+					public int compare(Integer a, Integer b) {
+						if (partLoads[a] != partLoads[b]) {
+							return (partLoads[a] < partLoads[b]) ? -1 : 1;
+						}
+						return a.compareTo(b);
+					}
+				});
+		for (int p = 0; p < numPartitions; p++) {
+			queue.add(p);
+		}
+
+		bucketParts = new int[BUCKETS];
+		heavyParts = new HashMap<KmerWritable, Integer>();
+
+		for (int i : order) {
+			int p = queue.poll();
+
+			if (i < BUCKETS) {
+				bucketParts[i] = p;
+			} else {
+				heavyParts.put(plan.heavy[i - BUCKETS], p);
+			}
+
+			// empty buckets still spread round robin
+			partLoads[p] += Math.max(1, loads[i]);
+			queue.add(p);
+		}
+
+		partitions = numPartitions;
+	}
+
+	// The sampled records per bucket, and the heaviest keys on their own
+	public static class Plan implements Writable {
+		private long[] buckets = new long[BUCKETS];
+		private KmerWritable[] heavy = new KmerWritable[0];
+		private long[] heavyLoads = new long[0];
+
+		public Plan() {
+		}
+
+		public Plan(final long[] buckets1, final KmerWritable[] heavy1,
+				final long[] heavyLoads1) {
+			buckets = buckets1;
+			heavy = heavy1;
+			heavyLoads = heavyLoads1;
+		}
+
+		public static void addBucket(final long[] buckets,
+				final KmerWritable key, final long load) {
+			buckets[bucket(key)] += load;
+		}
+
+		// Load the plan written by the job at path, see
+		// LocalEngine.openOutput
+		@SuppressWarnings({ "rawtypes", "unchecked" })
+		public static Plan load(final JobConf conf, final String path)
+				throws IOException {
+			Plan plan = new Plan();
+			RecordReader reader = LocalEngine.openOutput(conf, path);
+
+			try {
+				Object key = reader.createKey();
+				Object value = reader.createValue();
+
+				if (reader.next(key, value)) {
+					plan = (Plan) value;
+				}
+			} finally {
+				reader.close();
+			}
+
+			return plan;
+		}
+
+		@Override
+		public void write(DataOutput out) throws IOException {
+			for (int i = 0; i < BUCKETS; i++) {
+				WritableUtils.writeVLong(out, buckets[i]);
+			}
+
+			WritableUtils.writeVInt(out, heavy.length);
+			for (int i = 0; i < heavy.length; i++) {
+				heavy[i].write(out);
+				WritableUtils.writeVLong(out, heavyLoads[i]);
+			}
+		}
+
+		@Override
+		public void readFields(DataInput in) throws IOException {
+			for (int i = 0; i < BUCKETS; i++) {
+				buckets[i] = WritableUtils.readVLong(in);
+			}
+
+			int n = WritableUtils.readVInt(in);
+			heavy = new KmerWritable[n];
+			heavyLoads = new long[n];
+			for (int i = 0; i < n; i++) {
+				heavy[i] = new KmerWritable();
+				heavy[i].readFields(in);
+				heavyLoads[i] = WritableUtils.readVLong(in);
+			}
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * (C) Copyright 2017 The CloudEC Project and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Contributors:
+ *      Wei-Chun Chung (wcchung@iis.sinica.edu.tw)
+ *      Chien-Chih Chen (rocky@iis.sinica.edu.tw)
+ * 
+ * CloudEC Project:
+ *      https://github.com/CSCLabTW/CloudEC/
+ */
+
+
+package tw.edu.sinica.iis.CloudEC;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+// The occurrences of a kmer, as far as UniqueKmerFilter cares: the ids of
+// the reads while there are at most Utils.UNIQUE_READ of them, or else only
+// that the kmer is saturated. A saturated kmer is written as a single byte.
+public class KmerReadsWritable implements Writable {
+	private static final int SATURATED = Utils.UNIQUE_READ + 1;
+
+	private int count = 0;
+	private final Text[] ids = new Text[Utils.UNIQUE_READ];
+
+	public KmerReadsWritable() {
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = new Text();
+		}
+	}
+
+	public void clear() {
+		count = 0;
+	}
+
+	public boolean isSaturated() {
+		return count == SATURATED;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public Text getId(final int i) {
+		return ids[i];
+	}
+
+	public void add(final Text id) {
+		if (count < ids.length) {
+			ids[count].set(id);
+		}
+		count = Math.min(count + 1, SATURATED);
+	}
+
+	public void addAll(final KmerReadsWritable other) {
+		if (other.isSaturated()) {
+			count = SATURATED;
+			return;
+		}
+
+		for (int i = 0; i < other.count && !isSaturated(); i++) {
+			add(other.ids[i]);
+		}
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		WritableUtils.writeVInt(out, count);
+
+		if (!isSaturated()) {
+			for (int i = 0; i < count; i++) {
+				ids[i].write(out);
+			}
+		}
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		count = WritableUtils.readVInt(in);
+
+		if (!isSaturated()) {
+			for (int i = 0; i < count; i++) {
+				ids[i].readFields(in);
+			}
+		}
+	}
+}
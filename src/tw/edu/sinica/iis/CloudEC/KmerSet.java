@@ -0,0 +1,163 @@
+/*
+ * (C) Copyright 2017 The CloudEC Project and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Contributors:
+ *      Wei-Chun Chung (wcchung@iis.sinica.edu.tw)
+ *      Chien-Chih Chen (rocky@iis.sinica.edu.tw)
+ * 
+ * CloudEC Project:
+ *      https://github.com/CSCLabTW/CloudEC/
+ */
+
+
+package tw.edu.sinica.iis.CloudEC;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordReader;
+
+// An exact set of kmers (with their tags), unlike KmerFilter it never
+// reports a kmer that was not added. The kmers are kept packed in an open
+// addressing table of 18 bytes per slot, at most half full, so 36 to 72
+// bytes per kmer. While the table doubles, the old one is still live, see
+// bytesFor().
+public class KmerSet {
+	private static final int SLOT_BYTES = 8 + 8 + 2;
+
+	private int size = 0;
+	private int mask = 0;
+
+	private long[] his = null;
+	private long[] los = null;
+	// tag << 7 | length, 0 for an empty slot
+	private short[] heads = null;
+
+	public KmerSet() {
+		alloc(16);
+	}
+
+	private void alloc(final int slots) {
+		mask = slots - 1;
+		his = new long[slots];
+		los = new long[slots];
+		heads = new short[slots];
+	}
+
+	private static short head(final KmerWritable kmer) {
+		return (short) ((kmer.getTag() << 7) | kmer.getLength());
+	}
+
+	public int size() {
+		return size;
+	}
+
+	// The peak heap of a set of n kmers, the table and the half as large
+	// one it grew from
+	public static long bytesFor(final long n) {
+		long slots = 16;
+		while (slots < 2 * n) {
+			slots *= 2;
+		}
+
+		return SLOT_BYTES * (slots + slots / 2);
+	}
+
+	private int find(final short head, final long hi, final long lo,
+			final int hash) {
+		int i = hash & mask;
+
+		while (heads[i] != 0
+				&& (heads[i] != head || his[i] != hi || los[i] != lo)) {
+			i = (i + 1) & mask;
+		}
+
+		return i;
+	}
+
+	public void add(final KmerWritable kmer) {
+		short head = head(kmer);
+		int i = find(head, kmer.getHi(), kmer.getLo(), kmer.hashCode());
+
+		if (heads[i] != 0) {
+			return;
+		}
+
+		heads[i] = head;
+		his[i] = kmer.getHi();
+		los[i] = kmer.getLo();
+
+		// keep the table at most half full
+		if (++size * 2 > heads.length) {
+			rehash();
+		}
+	}
+
+	private void rehash() {
+		long[] oldHis = his;
+		long[] oldLos = los;
+		short[] oldHeads = heads;
+		KmerWritable kmer = new KmerWritable();
+
+		alloc(oldHeads.length * 2);
+
+		for (int j = 0; j < oldHeads.length; j++) {
+			if (oldHeads[j] != 0) {
+				kmer.set(oldHeads[j] & 0x7F, oldHis[j], oldLos[j],
+						(byte) (oldHeads[j] >>> 7));
+
+				int i = find(oldHeads[j], oldHis[j], oldLos[j],
+						kmer.hashCode());
+				heads[i] = oldHeads[j];
+				his[i] = oldHis[j];
+				los[i] = oldLos[j];
+			}
+		}
+	}
+
+	public boolean contains(final KmerWritable kmer) {
+		if (size == 0) {
+			return false;
+		}
+
+		return heads[find(head(kmer), kmer.getHi(), kmer.getLo(),
+				kmer.hashCode())] != 0;
+	}
+
+	// Load the kmers (the keys) written by the job at path with the given
+	// value, see LocalEngine.openOutput
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public static KmerSet load(final JobConf conf, final String path,
+			final Writable select) throws IOException {
+		KmerSet set = new KmerSet();
+		RecordReader reader = LocalEngine.openOutput(conf, path);
+
+		try {
+			Object key = reader.createKey();
+			Object value = reader.createValue();
+
+			while (reader.next(key, value)) {
+				if (value.equals(select)) {
+					set.add((KmerWritable) key);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+
+		return set;
+	}
+}
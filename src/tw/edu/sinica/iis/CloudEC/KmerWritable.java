@@ -0,0 +1,252 @@
+/*
+ * (C) Copyright 2017 The CloudEC Project and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Contributors:
+ *      Wei-Chun Chung (wcchung@iis.sinica.edu.tw)
+ *      Chien-Chih Chen (rocky@iis.sinica.edu.tw)
+ * 
+ * CloudEC Project:
+ *      https://github.com/CSCLabTW/CloudEC/
+ */
+
+package tw.edu.sinica.iis.CloudEC;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+
+// A k-mer key packed as 2 bits per base (A=0, C=1, G=2, T=3).
+//
+// Serialized form: one header byte (tag in the upper 2 bits, length - 1 in
+// the lower 6 bits), followed by one long for K <= 32, or two longs for
+// K <= 64. The first base is the most significant one, so comparing the
+// serialized bytes gives the same order as comparing the plain strings.
+public class KmerWritable implements WritableComparable<KmerWritable> {
+	// Tag codes of a kmer
+	public static final byte TAG_NONE = 0;
+	public static final byte TAG_IGNF = 1;
+	public static final byte TAG_IGNP = 2;
+
+	public static final int MAX_LENGTH = 64;
+
+	private static final int WORD_BASES = 32;
+
+	private static final char[] code2base = { 'A', 'C', 'G', 'T' };
+
+	private byte tag = TAG_NONE;
+	private int length = 0;
+
+	// bases [0, length - 32) in hi and the last (up to) 32 bases in lo
+	private long hi = 0;
+	private long lo = 0;
+
+	public KmerWritable() {
+	}
+
+	public KmerWritable(final String kmer) throws IOException {
+		set(kmer, TAG_NONE);
+	}
+
+	public KmerWritable(final String kmer, final byte tag1) throws IOException {
+		set(kmer, tag1);
+	}
+
+	public static int base2code(final char base) {
+		switch (base) {
+		case 'A':
+			return 0;
+		case 'C':
+			return 1;
+		case 'G':
+			return 2;
+		case 'T':
+			return 3;
+		default:
+			return -1;
+		}
+	}
+
+	public static char code2base(final int code) {
+		return code2base[code];
+	}
+
+	public void set(final String kmer, final byte tag1) throws IOException {
+		int l = kmer.length();
+
+		if (l < 1 || l > MAX_LENGTH) {
+			throw new IOException("Unsupported kmer length: " + l);
+		}
+
+		long h = 0;
+		long w = 0;
+
+		for (int i = 0; i < l; i++) {
+			int code = base2code(kmer.charAt(i));
+
+			if (code < 0) {
+				throw new IOException("Unsupported kmer base: " + kmer);
+			}
+
+			h = (h << 2) | (w >>> 62);
+			w = (w << 2) | code;
+		}
+
+		tag = tag1;
+		length = l;
+		hi = h;
+		lo = w;
+	}
+
+	// Set from packed words, see KmerIterator
+	public void set(final int length1, final long hi1, final long lo1,
+			final byte tag1) {
+		tag = tag1;
+		length = length1;
+		hi = hi1;
+		lo = lo1;
+	}
+
+	public void set(final KmerWritable other) {
+		tag = other.tag;
+		length = other.length;
+		hi = other.hi;
+		lo = other.lo;
+	}
+
+	public byte getTag() {
+		return tag;
+	}
+
+	public void setTag(final byte tag1) {
+		tag = tag1;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public long getHi() {
+		return hi;
+	}
+
+	public long getLo() {
+		return lo;
+	}
+
+	public char charAt(final int i) {
+		int shift = 2 * (length - 1 - i);
+
+		if (shift >= 64) {
+			return code2base[(int) (hi >>> (shift - 64)) & 0x03];
+		}
+
+		return code2base[(int) (lo >>> shift) & 0x03];
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeByte((tag << 6) | (length - 1));
+
+		if (length > WORD_BASES) {
+			out.writeLong(hi);
+		}
+		out.writeLong(lo);
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		int header = in.readUnsignedByte();
+
+		tag = (byte) (header >>> 6);
+		length = (header & 0x3F) + 1;
+
+		hi = (length > WORD_BASES) ? in.readLong() : 0;
+		lo = in.readLong();
+	}
+
+	private int header() {
+		return (tag << 6) | (length - 1);
+	}
+
+	@Override
+	public int compareTo(KmerWritable other) {
+		if (header() != other.header()) {
+			return (header() < other.header()) ? -1 : 1;
+		}
+
+		int cmp = Long.compareUnsigned(hi, other.hi);
+		if (cmp != 0) {
+			return cmp;
+		}
+
+		return Long.compareUnsigned(lo, other.lo);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof KmerWritable)) {
+			return false;
+		}
+
+		KmerWritable other = (KmerWritable) o;
+
+		return tag == other.tag && length == other.length && hi == other.hi
+				&& lo == other.lo;
+	}
+
+	@Override
+	public int hashCode() {
+		// mix all bits, the HashPartitioner only looks at the lower ones
+		long h = (hi * 0x9E3779B97F4A7C15L) ^ lo ^ ((long) header() << 56);
+
+		h ^= (h >>> 33);
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= (h >>> 33);
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= (h >>> 33);
+
+		return (int) h;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(length);
+
+		for (int i = 0; i < length; i++) {
+			sb.append(charAt(i));
+		}
+
+		return sb.toString();
+	}
+
+	// Compare serialized kmers without deserializing them
+	public static class Comparator extends WritableComparator {
+		public Comparator() {
+			super(KmerWritable.class);
+		}
+
+		@Override
+		public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+			return compareBytes(b1, s1, l1, b2, s2, l2);
+		}
+	}
+
+	static {
+		WritableComparator.define(KmerWritable.class, new Comparator());
+	}
+}
@@ -31,7 +31,6 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.FileInputFormat;
 import org.apache.hadoop.mapred.FileOutputFormat;
@@ -43,8 +42,8 @@ import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.RunningJob;
-import org.apache.hadoop.mapred.TextInputFormat;
-import org.apache.hadoop.mapred.TextOutputFormat;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.log4j.Logger;
@@ -54,92 +53,79 @@ public class LargeKmerFilterCountKmers extends Configured implements Tool {
 			.getLogger(LargeKmerFilterCountKmers.class);
 
 	public static class LargeKmerFilterCountKmersMapper extends MapReduceBase implements
-			Mapper<LongWritable, Text, Text, Text> {
+			Mapper<Text, ReadNodeWritable, KmerWritable, Text> {
 
 		public static int K = 0;
 
 		public static boolean FILTER_P = true;
 		public static boolean FILTER_S = true;
 
+		private KmerIterator kmersP = null;
+		private KmerIterator kmersS = null;
+		private KmerWritable kmer = new KmerWritable();
+
+		// the emitted value is built in place
+		private Text value = new Text();
+		private RecordBuffer record = new RecordBuffer();
+
+		private AllocationCounter alloc = new AllocationCounter();
+
 		@Override
 		public void configure(JobConf job) {
 			K = job.getInt("K", 0);
 
 			FILTER_P = job.getBoolean("FILTER_P", true);
 			FILTER_S = job.getBoolean("FILTER_S", true);
+
+			kmersP = new KmerIterator(K, true);
+			kmersS = new KmerIterator(K, false);
 		}
 
 		@Override
-		public void map(LongWritable lineid, Text nodetxt,
-				OutputCollector<Text, Text> output, Reporter reporter)
+		public void map(Text nodeid, ReadNodeWritable node,
+				OutputCollector<KmerWritable, Text> output, Reporter reporter)
 				throws IOException {
 
-			Utils node = new Utils();
-			node.fromNodeMsg(nodetxt.toString());
-
-			String nodeStr = node.getSEQ();
+			node.setNodeId(nodeid);
 
 			// generate (k+1)-mers for PinchCorrect
 			if (FILTER_P) {
-				int end = nodeStr.length() - (K + 1) + 1;
-				for (int i = 0; i < end; i++) {
-					String window_f = nodeStr.substring(i, i + (K / 2))
-							+ nodeStr.substring(i + (K / 2) + 1, i + K + 1);
-					String window_r = Utils.rcSEQ(window_f);
-
-					if (window_f.contains("N")) {
-						continue;
-					}
-
-					int compare = window_f.compareTo(window_r);
-					if (compare < 0) {
-						output.collect(
-								new Text(Utils.MSGIGNP
-										+ Utils.seqEncode(window_f)),
-								new Text(node.getNodeId() + "\t" + i));
-					} else {
-						output.collect(
-								new Text(Utils.MSGIGNP
-										+ Utils.seqEncode(window_r)),
-								new Text(node.getNodeId() + "\t" + i));
-					}
+				kmersP.reset(node);
+				while (kmersP.next()) {
+					kmersP.getCanonical(kmer, KmerWritable.TAG_IGNP);
+
+					record.clear().append(nodeid).append('\t');
+					record.append(kmersP.getPos()).get(value);
+					output.collect(kmer, value);
 				}
 			}
 
 			// generate k-mers for FindError
 			if (FILTER_S) {
-				int end = nodeStr.length() - K + 1;
-				for (int i = 0; i < end; i++) {
-					String window_f = nodeStr.substring(i, i + K);
-					String window_r = Utils.rcSEQ(window_f);
-
-					if (window_f.contains("N")) {
-						continue;
-					}
-
-					int compare = window_f.compareTo(window_r);
-					if (compare < 0) {
-						output.collect(
-								new Text(Utils.MSGIGNF
-										+ Utils.seqEncode(window_f)),
-								new Text(node.getNodeId() + "\t" + i));
-					} else {
-						output.collect(
-								new Text(Utils.MSGIGNF
-										+ Utils.seqEncode(window_r)),
-								new Text(node.getNodeId() + "\t" + i));
-					}
+				kmersS.reset(node);
+				while (kmersS.next()) {
+					kmersS.getCanonical(kmer, KmerWritable.TAG_IGNF);
+
+					record.clear().append(nodeid).append('\t');
+					record.append(kmersS.getPos()).get(value);
+					output.collect(kmer, value);
 				}
 			}
+
+			alloc.count(reporter);
 		}
 	}
 
 	public static class LargeKmerFilterCountKmersReducer extends MapReduceBase implements
-			Reducer<Text, Text, Text, Text> {
+			Reducer<KmerWritable, Text, Text, Text> {
 
 		public static int StackMax = 0;
 		public static int StackMin = 0;
 
+		private Text readid = new Text();
+		private Text value = new Text();
+		private RecordBuffer record = new RecordBuffer();
+
 		@Override
 		public void configure(JobConf job) {
 			StackMax = job.getInt("STACK_MAX", 0);
@@ -147,7 +133,7 @@ public class LargeKmerFilterCountKmers extends Configured implements Tool {
 		}
 
 		@Override
-		public void reduce(Text prefix, Iterator<Text> iter,
+		public void reduce(KmerWritable prefix, Iterator<Text> iter,
 				OutputCollector<Text, Text> output, Reporter reporter)
 				throws IOException {
 
@@ -160,14 +146,18 @@ public class LargeKmerFilterCountKmers extends Configured implements Tool {
 			if ((StackMax != -1 && kmerlist.size() > StackMax)
 					|| (StackMin != -1 && kmerlist.size() < StackMin)) {
 				// Ignore message type: PinchCorrect (P) or FindError (F)
-				String IGNType = prefix.toString().substring(0, 1);
+				String IGNType = (prefix.getTag() == KmerWritable.TAG_IGNP) ? Utils.MSGIGNP
+						: Utils.MSGIGNF;
 
 				for (String s : kmerlist) {
 					// data: [0]=id, [1]=pos
 					String[] data = s.split("\t");
 
-					output.collect(new Text(data[0]), new Text(IGNType + "\t"
-							+ data[1]));
+					readid.set(data[0]);
+					record.clear().append(IGNType).append('\t');
+					record.append(data[1]).get(value);
+
+					output.collect(readid, value);
 				}
 
 				if (StackMax != -1 && kmerlist.size() > StackMax) {
@@ -181,7 +171,7 @@ public class LargeKmerFilterCountKmers extends Configured implements Tool {
 		}
 	}
 
-	public RunningJob run(String inputPath, String outputPath) throws Exception {
+	public JobConf createJob(String inputPath, String outputPath) {
 		sLogger.info("Tool name: " + LargeKmerFilterCountKmers.class.getSimpleName() + "  [2/5]");
 		sLogger.info(" - input: " + inputPath);
 		sLogger.info(" - output: " + outputPath);
@@ -194,10 +184,10 @@ public class LargeKmerFilterCountKmers extends Configured implements Tool {
 		FileInputFormat.addInputPath(conf, new Path(inputPath));
 		FileOutputFormat.setOutputPath(conf, new Path(outputPath));
 
-		conf.setInputFormat(TextInputFormat.class);
-		conf.setOutputFormat(TextOutputFormat.class);
+		conf.setInputFormat(SequenceFileInputFormat.class);
+		conf.setOutputFormat(SequenceFileOutputFormat.class);
 
-		conf.setMapOutputKeyClass(Text.class);
+		conf.setMapOutputKeyClass(KmerWritable.class);
 		conf.setMapOutputValueClass(Text.class);
 
 		conf.setOutputKeyClass(Text.class);
@@ -206,6 +196,12 @@ public class LargeKmerFilterCountKmers extends Configured implements Tool {
 		conf.setMapperClass(LargeKmerFilterCountKmersMapper.class);
 		conf.setReducerClass(LargeKmerFilterCountKmersReducer.class);
 
+		return conf;
+	}
+
+	public RunningJob run(String inputPath, String outputPath) throws Exception {
+		JobConf conf = createJob(inputPath, outputPath);
+
 		// delete the output directory if it exists already
 		FileSystem.get(conf).delete(new Path(outputPath), true);
 
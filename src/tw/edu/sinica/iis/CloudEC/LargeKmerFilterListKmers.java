@@ -0,0 +1,235 @@
+/*
+ * (C) Copyright 2017 The CloudEC Project and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Contributors:
+ *      Wei-Chun Chung (wcchung@iis.sinica.edu.tw)
+ *      Chien-Chih Chen (rocky@iis.sinica.edu.tw)
+ * 
+ * CloudEC Project:
+ *      https://github.com/CSCLabTW/CloudEC/
+ */
+
+
+package tw.edu.sinica.iis.CloudEC;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BooleanWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.VIntWritable;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.RunningJob;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.log4j.Logger;
+
+// The count-first variant of LargeKmerFilterCountKmers: only the number of
+// occurrences of each kmer is shuffled. The kmers above STACK_MAX are
+// written out for LargeKmerFilterMarkReads (with true), and so are the
+// kmers in [STACK_MIN, STACK_MAX] (with false) if STACK_MIN drops any.
+// Those are far fewer than the error kmers below STACK_MIN, a kmer that is
+// in neither list is one of them.
+public class LargeKmerFilterListKmers extends Configured implements Tool {
+	private static final Logger sLogger = Logger
+			.getLogger(LargeKmerFilterListKmers.class);
+
+	public static class LargeKmerFilterListKmersMapper extends MapReduceBase implements
+			Mapper<Text, ReadNodeWritable, KmerWritable, VIntWritable> {
+
+		public static int K = 0;
+
+		public static boolean FILTER_P = true;
+		public static boolean FILTER_S = true;
+
+		private KmerIterator kmersP = null;
+		private KmerIterator kmersS = null;
+		private KmerWritable kmer = new KmerWritable();
+		private VIntWritable one = new VIntWritable(1);
+
+		@Override
+		public void configure(JobConf job) {
+			K = job.getInt("K", 0);
+
+			FILTER_P = job.getBoolean("FILTER_P", true);
+			FILTER_S = job.getBoolean("FILTER_S", true);
+
+			kmersP = new KmerIterator(K, true);
+			kmersS = new KmerIterator(K, false);
+		}
+
+		@Override
+		public void map(Text nodeid, ReadNodeWritable node,
+				OutputCollector<KmerWritable, VIntWritable> output,
+				Reporter reporter) throws IOException {
+
+			// (k+1)-mers for PinchCorrect
+			if (FILTER_P) {
+				kmersP.reset(node);
+				while (kmersP.next()) {
+					kmersP.getCanonical(kmer, KmerWritable.TAG_IGNP);
+					output.collect(kmer, one);
+				}
+			}
+
+			// k-mers for FindError
+			if (FILTER_S) {
+				kmersS.reset(node);
+				while (kmersS.next()) {
+					kmersS.getCanonical(kmer, KmerWritable.TAG_IGNF);
+					output.collect(kmer, one);
+				}
+			}
+		}
+	}
+
+	public static class LargeKmerFilterListKmersCombiner extends MapReduceBase
+			implements
+			Reducer<KmerWritable, VIntWritable, KmerWritable, VIntWritable> {
+
+		private VIntWritable count = new VIntWritable();
+
+		@Override
+		public void reduce(KmerWritable prefix, Iterator<VIntWritable> iter,
+				OutputCollector<KmerWritable, VIntWritable> output,
+				Reporter reporter) throws IOException {
+
+			int sum = 0;
+			while (iter.hasNext()) {
+				sum += iter.next().get();
+			}
+
+			count.set(sum);
+			output.collect(prefix, count);
+		}
+	}
+
+	public static class LargeKmerFilterListKmersReducer extends MapReduceBase implements
+			Reducer<KmerWritable, VIntWritable, KmerWritable, BooleanWritable> {
+
+		public static int StackMax = 0;
+		public static int StackMin = 0;
+
+		private BooleanWritable high = new BooleanWritable();
+
+		@Override
+		public void configure(JobConf job) {
+			StackMax = job.getInt("STACK_MAX", 0);
+			StackMin = job.getInt("STACK_MIN", 0);
+		}
+
+		@Override
+		public void reduce(KmerWritable prefix, Iterator<VIntWritable> iter,
+				OutputCollector<KmerWritable, BooleanWritable> output,
+				Reporter reporter) throws IOException {
+
+			int sum = 0;
+			while (iter.hasNext()) {
+				sum += iter.next().get();
+			}
+
+			if (StackMax != -1 && sum > StackMax) {
+				reporter.incrCounter("Brush", "hkmer", 1);
+				high.set(true);
+			} else if (StackMin != -1 && sum < StackMin) {
+				reporter.incrCounter("Brush", "lkmer", 1);
+				return;
+			} else if (StackMin > 1) {
+				high.set(false);
+			} else {
+				return;
+			}
+
+			output.collect(prefix, high);
+		}
+	}
+
+	public JobConf createJob(String inputPath, String outputPath) {
+		sLogger.info("Tool name: " + LargeKmerFilterListKmers.class.getSimpleName() + "  [2/5]");
+		sLogger.info(" - input: " + inputPath);
+		sLogger.info(" - output: " + outputPath);
+
+		JobConf conf = new JobConf(LargeKmerFilterListKmers.class);
+		conf.setJobName(LargeKmerFilterListKmers.class.getSimpleName() + " " + inputPath + " " + Config.K);
+
+		Config.initializeConfiguration(conf);
+
+		FileInputFormat.addInputPath(conf, new Path(inputPath));
+		FileOutputFormat.setOutputPath(conf, new Path(outputPath));
+
+		conf.setInputFormat(SequenceFileInputFormat.class);
+		conf.setOutputFormat(SequenceFileOutputFormat.class);
+
+		conf.setMapOutputKeyClass(KmerWritable.class);
+		conf.setMapOutputValueClass(VIntWritable.class);
+
+		conf.setOutputKeyClass(KmerWritable.class);
+		conf.setOutputValueClass(BooleanWritable.class);
+
+		conf.setMapperClass(LargeKmerFilterListKmersMapper.class);
+		conf.setCombinerClass(LargeKmerFilterListKmersCombiner.class);
+		conf.setReducerClass(LargeKmerFilterListKmersReducer.class);
+
+		return conf;
+	}
+
+	public RunningJob run(String inputPath, String outputPath) throws Exception {
+		JobConf conf = createJob(inputPath, outputPath);
+
+		// delete the output directory if it exists already
+		FileSystem.get(conf).delete(new Path(outputPath), true);
+
+		return JobClient.runJob(conf);
+	}
+
+	@Override
+	public int run(String[] args) throws Exception {
+		String inputPath = "";
+		String outputPath = "";
+		Config.K = 24;
+
+		long starttime = System.currentTimeMillis();
+
+		run(inputPath, outputPath);
+
+		long endtime = System.currentTimeMillis();
+
+		float diff = (float) ((endtime - starttime) / 1000.0);
+
+		System.out.println("Runtime: " + diff + " s");
+
+		return 0;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int res = ToolRunner.run(new Configuration(), new LargeKmerFilterListKmers(),
+				args);
+		System.exit(res);
+	}
+}
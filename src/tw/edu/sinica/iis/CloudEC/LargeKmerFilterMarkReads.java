@@ -0,0 +1,215 @@
+/*
+ * (C) Copyright 2017 The CloudEC Project and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Contributors:
+ *      Wei-Chun Chung (wcchung@iis.sinica.edu.tw)
+ *      Chien-Chih Chen (rocky@iis.sinica.edu.tw)
+ * 
+ * CloudEC Project:
+ *      https://github.com/CSCLabTW/CloudEC/
+ */
+
+
+package tw.edu.sinica.iis.CloudEC;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BooleanWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.RunningJob;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.log4j.Logger;
+
+// The count-first variant of LargeKmerFilterTagReads: a map-only job that
+// loads the kmers listed by LargeKmerFilterListKmers and sets the ignore
+// positions of each read from its own windows. A window is ignored if its
+// kmer is above STACK_MAX, or below STACK_MIN, i.e. not listed at all.
+public class LargeKmerFilterMarkReads extends Configured implements Tool {
+	private static final Logger sLogger = Logger
+			.getLogger(LargeKmerFilterMarkReads.class);
+
+	public static class LargeKmerFilterMarkReadsMapper extends MapReduceBase implements
+			Mapper<Text, ReadNodeWritable, Text, ReadNodeWritable> {
+
+		public static int K = 0;
+
+		public static boolean FILTER_P = true;
+		public static boolean FILTER_S = true;
+
+		private KmerIterator kmersP = null;
+		private KmerIterator kmersS = null;
+		private KmerWritable kmer = new KmerWritable();
+
+		public static int StackMin = 0;
+
+		// kmers above STACK_MAX, and in [STACK_MIN, STACK_MAX]
+		private KmerSet high = null;
+		private KmerSet solid = null;
+
+		private ArrayList<Integer> ignListF = new ArrayList<Integer>();
+		private ArrayList<Integer> ignListP = new ArrayList<Integer>();
+
+		@Override
+		public void configure(JobConf job) {
+			K = job.getInt("K", 0);
+
+			FILTER_P = job.getBoolean("FILTER_P", true);
+			FILTER_S = job.getBoolean("FILTER_S", true);
+
+			StackMin = job.getInt("STACK_MIN", 0);
+
+			kmersP = new KmerIterator(K, true);
+			kmersS = new KmerIterator(K, false);
+
+			try {
+				high = KmerSet.load(job, job.get("LKF_KMERS"),
+						new BooleanWritable(true));
+				solid = KmerSet.load(job, job.get("LKF_KMERS"),
+						new BooleanWritable(false));
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		public void map(Text nodeid, ReadNodeWritable node,
+				OutputCollector<Text, ReadNodeWritable> output,
+				Reporter reporter) throws IOException {
+
+			ignListF.clear();
+			ignListP.clear();
+
+			if (FILTER_P) {
+				kmersP.reset(node);
+				while (kmersP.next()) {
+					kmersP.getCanonical(kmer, KmerWritable.TAG_IGNP);
+
+					if (isIgnored(kmer)) {
+						ignListP.add(kmersP.getPos());
+					}
+				}
+			}
+
+			if (FILTER_S) {
+				kmersS.reset(node);
+				while (kmersS.next()) {
+					kmersS.getCanonical(kmer, KmerWritable.TAG_IGNF);
+
+					if (isIgnored(kmer)) {
+						ignListF.add(kmersS.getPos());
+					}
+				}
+			}
+
+			LargeKmerFilterTagReads.setIGN(node, K, ignListF, ignListP);
+
+			reporter.incrCounter("Brush", "ignf_kmers", node.getIGNCount(Utils.IGNF));
+			reporter.incrCounter("Brush", "ignp_kmers", node.getIGNCount(Utils.IGNP));
+
+			output.collect(nodeid, node);
+		}
+
+		private boolean isIgnored(final KmerWritable kmer) {
+			return high.contains(kmer)
+					|| (StackMin > 1 && !solid.contains(kmer));
+		}
+	}
+
+	public JobConf createJob(String inputPath, String kmersPath,
+			String outputPath) {
+		sLogger.info("Tool name: " + LargeKmerFilterMarkReads.class.getSimpleName() + " [2/5]");
+		sLogger.info(" - input: " + inputPath);
+		sLogger.info(" - kmers: " + kmersPath);
+		sLogger.info(" - output: " + outputPath);
+
+		JobConf conf = new JobConf(LargeKmerFilterMarkReads.class);
+		conf.setJobName(LargeKmerFilterMarkReads.class.getSimpleName() + " " + inputPath + " " + Config.K);
+
+		Config.initializeConfiguration(conf);
+
+		conf.set("LKF_KMERS", kmersPath);
+
+		FileInputFormat.addInputPath(conf, new Path(inputPath));
+		FileOutputFormat.setOutputPath(conf, new Path(outputPath));
+
+		conf.setInputFormat(SequenceFileInputFormat.class);
+		conf.setOutputFormat(SequenceFileOutputFormat.class);
+
+		conf.setMapOutputKeyClass(Text.class);
+		conf.setMapOutputValueClass(ReadNodeWritable.class);
+
+		conf.setOutputKeyClass(Text.class);
+		conf.setOutputValueClass(ReadNodeWritable.class);
+
+		conf.setMapperClass(LargeKmerFilterMarkReadsMapper.class);
+
+		// no shuffle, the reads are tagged in place
+		conf.setNumReduceTasks(0);
+
+		return conf;
+	}
+
+	public RunningJob run(String inputPath, String kmersPath,
+			String outputPath) throws Exception {
+		JobConf conf = createJob(inputPath, kmersPath, outputPath);
+
+		// delete the output directory if it exists already
+		FileSystem.get(conf).delete(new Path(outputPath), true);
+
+		return JobClient.runJob(conf);
+	}
+
+	@Override
+	public int run(String[] args) throws Exception {
+		String inputPath = "";
+		String kmersPath = "";
+		String outputPath = "";
+		Config.K = 24;
+
+		long starttime = System.currentTimeMillis();
+
+		run(inputPath, kmersPath, outputPath);
+
+		long endtime = System.currentTimeMillis();
+
+		float diff = (float) ((endtime - starttime) / 1000.0);
+
+		System.out.println("Runtime: " + diff + " s");
+
+		return 0;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int res = ToolRunner.run(new Configuration(), new LargeKmerFilterMarkReads(),
+				args);
+		System.exit(res);
+	}
+}
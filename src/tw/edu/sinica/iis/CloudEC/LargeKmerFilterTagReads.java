@@ -31,8 +31,8 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapred.FileInputFormat;
 import org.apache.hadoop.mapred.FileOutputFormat;
 import org.apache.hadoop.mapred.JobClient;
@@ -43,8 +43,8 @@ import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.RunningJob;
-import org.apache.hadoop.mapred.TextInputFormat;
-import org.apache.hadoop.mapred.TextOutputFormat;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.log4j.Logger;
@@ -54,20 +54,30 @@ public class LargeKmerFilterTagReads extends Configured implements Tool {
 			.getLogger(LargeKmerFilterTagReads.class);
 
 	public static class LargeKmerFilterTagReadsMapper extends MapReduceBase implements
-			Mapper<LongWritable, Text, Text, Text> {
+			Mapper<Text, Writable, NodeKeyWritable, NodeMsgWritable> {
+
+		private NodeKeyWritable key = new NodeKeyWritable();
+		private NodeMsgWritable msg = new NodeMsgWritable();
+
+		private AllocationCounter alloc = new AllocationCounter();
+
 		@Override
-		public void map(LongWritable lineid, Text nodetxt,
-				OutputCollector<Text, Text> output, Reporter reporter)
+		public void map(Text nodeid, Writable value,
+				OutputCollector<NodeKeyWritable, NodeMsgWritable> output,
+				Reporter reporter)
 				throws IOException {
 
-			String[] data = nodetxt.toString().split("\t", 2);
+			msg.set(value);
+			key.set(nodeid, msg.getType());
 
-			output.collect(new Text(data[0]), new Text(data[1]));
+			output.collect(key, msg);
+
+			alloc.count(reporter);
 		}
 	}
 
 	public static class LargeKmerFilterTagReadsReducer extends MapReduceBase implements
-			Reducer<Text, Text, Text, Text> {
+			Reducer<NodeKeyWritable, NodeMsgWritable, Text, ReadNodeWritable> {
 
 		public static int K = 0;
 
@@ -76,69 +86,74 @@ public class LargeKmerFilterTagReads extends Configured implements Tool {
 			K = job.getInt("K", 0);
 		}
 
+		private ArrayList<Integer> ignListF = new ArrayList<Integer>();
+		private ArrayList<Integer> ignListP = new ArrayList<Integer>();
+
 		@Override
-		public void reduce(Text prefix, Iterator<Text> iter,
-				OutputCollector<Text, Text> output, Reporter reporter)
+		public void reduce(NodeKeyWritable key, Iterator<NodeMsgWritable> iter,
+				OutputCollector<Text, ReadNodeWritable> output, Reporter reporter)
 				throws IOException {
 
-			Utils node = new Utils();
-			ArrayList<Integer> ignListF = new ArrayList<Integer>();
-			ArrayList<Integer> ignListP = new ArrayList<Integer>();
+			// the node sorts first, messages without it are dropped
+			NodeMsgWritable val = iter.next();
 
-			while (iter.hasNext()) {
-				String[] data = iter.next().toString().split("\t", 2);
-
-				if (data[0].equals(Utils.MSGNODE)) {
-					node.fromNodeMsg(prefix.toString() + "\t" + data[0] + "\t"
-							+ data[1]);
-				} else if (data[0].equals(Utils.MSGIGNF)) {
-					ignListF.add(Integer.parseInt(data[1]));
-				} else if (data[0].equals(Utils.MSGIGNP)) {
-					ignListP.add(Integer.parseInt(data[1]));
-				}
+			if (!val.isNode()) {
+				return;
 			}
 
-			// prepare for hex conversion
-			if (node.getLen() - K > 0) {
-				int len = node.getLen() - K + 1;
+			ReadNodeWritable node = val.getNode();
 
-				StringBuilder listF = new StringBuilder();
-				StringBuilder listP = new StringBuilder();
+			ignListF.clear();
+			ignListP.clear();
 
-				for (int i = 0; i < (int) (Math.ceil(len / 4.0) * 4); i++) {
-					listF.append('0');
-				}
-				for (int i = 0; i < (int) (Math.ceil((len - 1) / 4.0) * 4); i++) {
-					listP.append('0');
-				}
+			while (iter.hasNext()) {
+				val = iter.next();
 
-				// set up the ignore position
-				for (int i = 0; i < ignListF.size(); i++) {
-					listF.setCharAt(ignListF.get(i), '1');
-				}
-				for (int i = 0; i < ignListP.size(); i++) {
-					listP.setCharAt(ignListP.get(i), '1');
+				// multiple main node exists, it's an error
+				if (val.isNode()) {
+					return;
 				}
 
-				// append the ignore list to node
-				if (ignListF.size() > 0) {
-					node.setIGN(Utils.IGNF, Utils.str2hex(listF.toString()));
+				String[] data = val.getMessage().toString().split("\t", 2);
 
-				}
-				if (ignListP.size() > 0) {
-					node.setIGN(Utils.IGNP, Utils.str2hex(listP.toString()));
+				if (data[0].equals(Utils.MSGIGNF)) {
+					ignListF.add(Integer.parseInt(data[1]));
+				} else if (data[0].equals(Utils.MSGIGNP)) {
+					ignListP.add(Integer.parseInt(data[1]));
 				}
 			}
 
+			setIGN(node, K, ignListF, ignListP);
+
 			ignListF.clear();
 			ignListP.clear();
 
-			output.collect(new Text(node.getNodeId()),
-					new Text(node.toNodeMsg()));
+			reporter.incrCounter("Brush", "ignf_kmers", node.getIGNCount(Utils.IGNF));
+			reporter.incrCounter("Brush", "ignp_kmers", node.getIGNCount(Utils.IGNP));
+
+			output.collect(key.getId(), node);
 		}
 	}
 
-	public RunningJob run(String inputPath, String outputPath) throws Exception {
+	// Set up the ignore positions of a node, padded to a multiple of 4
+	public static void setIGN(final ReadNodeWritable node, final int K,
+			final ArrayList<Integer> ignListF, final ArrayList<Integer> ignListP) {
+		if (node.getLen() - K > 0) {
+			int len = node.getLen() - K + 1;
+
+			// append the ignore list to node
+			if (ignListF.size() > 0) {
+				node.setIGN(Utils.IGNF, (int) (Math.ceil(len / 4.0) * 4),
+						ignListF);
+			}
+			if (ignListP.size() > 0) {
+				node.setIGN(Utils.IGNP,
+						(int) (Math.ceil((len - 1) / 4.0) * 4), ignListP);
+			}
+		}
+	}
+
+	public JobConf createJob(String inputPath, String outputPath) {
 		sLogger.info("Tool name: " + LargeKmerFilterTagReads.class.getSimpleName() + " [2/5]");
 		sLogger.info(" - input: " + inputPath);
 		sLogger.info(" - output: " + outputPath);
@@ -151,18 +166,24 @@ public class LargeKmerFilterTagReads extends Configured implements Tool {
 		FileInputFormat.addInputPaths(conf, inputPath);
 		FileOutputFormat.setOutputPath(conf, new Path(outputPath));
 
-		conf.setInputFormat(TextInputFormat.class);
-		conf.setOutputFormat(TextOutputFormat.class);
+		conf.setInputFormat(SequenceFileInputFormat.class);
+		conf.setOutputFormat(SequenceFileOutputFormat.class);
 
-		conf.setMapOutputKeyClass(Text.class);
-		conf.setMapOutputValueClass(Text.class);
+		NodeKeyWritable.setJoin(conf);
+		conf.setMapOutputValueClass(NodeMsgWritable.class);
 
 		conf.setOutputKeyClass(Text.class);
-		conf.setOutputValueClass(Text.class);
+		conf.setOutputValueClass(ReadNodeWritable.class);
 
 		conf.setMapperClass(LargeKmerFilterTagReadsMapper.class);
 		conf.setReducerClass(LargeKmerFilterTagReadsReducer.class);
 
+		return conf;
+	}
+
+	public RunningJob run(String inputPath, String outputPath) throws Exception {
+		JobConf conf = createJob(inputPath, outputPath);
+
 		// delete the output directory if it exists already
 		FileSystem.get(conf).delete(new Path(outputPath), true);
 
@@ -0,0 +1,1694 @@
+/*
+ * (C) Copyright 2017 The CloudEC Project and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Contributors:
+ *      Wei-Chun Chung (wcchung@iis.sinica.edu.tw)
+ *      Chien-Chih Chen (rocky@iis.sinica.edu.tw)
+ * 
+ * CloudEC Project:
+ *      https://github.com/CSCLabTW/CloudEC/
+ */
+
+
+package tw.edu.sinica.iis.CloudEC;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalDirAllocator;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.InputFormat;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Partitioner;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.Task;
+import org.apache.hadoop.mapred.TextOutputFormat;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.log4j.Logger;
+
+// Runs the CloudEC jobs inside a single JVM, without a Hadoop cluster.
+//
+// The JobConf built by each stage tool is executed with the same Mapper,
+// Reducer, Partitioner and raw comparators as on Hadoop, so the corrections
+// are the same. Map outputs are kept as serialized records, sorted per
+// partition and merged for the reducers; map and reduce tasks run on a pool
+// of worker threads. A job output stays in memory under its output path and
+// is read from there by the next stage; beyond the memory budget of the
+// engine (-localspill), map and job outputs are spilled as sorted segments
+// to local files and read back sequentially. Input paths the engine has not
+// produced are read through the InputFormat of the job, and the outputs of
+// text jobs (the final FASTQ) are written to the file system.
+public class LocalEngine implements Closeable {
+	private static final Logger sLogger = Logger.getLogger(LocalEngine.class);
+
+	// paths of the in-memory runs of the library API
+	private static final String LOCAL_PATH = "/cloudec.local/";
+
+	// the engine running a job, to look up its in-memory outputs
+	private static final String ENGINE_KEY = "cloudec.local.engine";
+	private static final Map<String, LocalEngine> engines = new HashMap<String, LocalEngine>();
+
+	// the runs of correct() in this JVM, which set the static Config paths
+	private static final Object configLock = new Object();
+
+	// records of a spilled segment per entry of its file index
+	private static final int INDEX_STEP = 1024;
+	private static final int SPILL_BUFFER = 1 << 16;
+
+	// a task buffers at least this many bytes before it spills, and at most
+	// MERGE_FACTOR segments are merged at once, as io.sort.factor on Hadoop
+	private static final long MIN_SHARE = 1 << 20;
+	private static final int MERGE_FACTOR = 64;
+
+	private static final ThreadMXBean threadBean = ManagementFactory
+			.getThreadMXBean();
+	private static int engineCount = 0;
+
+	private final int threads;
+	private final long budget;
+	private final long share;
+	private final LocalDirAllocator spillDirs = new LocalDirAllocator(
+			"mapred.local.dir");
+	private final ExecutorService pool;
+	private final JobConf baseconf = new JobConf(LocalEngine.class);
+
+	private final Map<String, Dataset> datasets = new HashMap<String, Dataset>();
+	private final Set<String> captured = new HashSet<String>();
+
+	private final String name;
+
+	private int jobs = 0;
+	private String jobid = null;
+
+	// bytes of the segments the engine keeps in memory
+	private long resident = 0;
+
+	public LocalEngine(final int threads1) {
+		threads = Math.max(1, threads1);
+		budget = (Config.LOCAL_SPILL < 0) ? Runtime.getRuntime().maxMemory() / 4
+				: (long) Config.LOCAL_SPILL << 20;
+		share = Math.max(budget / threads, MIN_SHARE);
+
+		synchronized (engines) {
+			name = "engine-" + (++engineCount);
+			engines.put(name, this);
+		}
+
+		pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private int count = 0;
+
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "cloudec-local-" + (++count));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	@Override
+	public void close() {
+		pool.shutdown();
+		dropAll();
+
+		synchronized (engines) {
+			engines.remove(name);
+		}
+	}
+
+	public String getJobId() {
+		return jobid;
+	}
+
+	// A read of the library API, with phred+33 quality values
+	public static class Read {
+		private final String id;
+		private final String seq;
+		private final String qv;
+
+		public Read(final String id1, final String seq1, final String qv1) {
+			id = id1;
+			seq = seq1;
+			qv = qv1;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public String getSEQ() {
+			return seq;
+		}
+
+		public String getQV() {
+			return qv;
+		}
+
+		@Override
+		public String toString() {
+			return "@" + id + "\n" + seq + "\n+" + id + "\n" + qv;
+		}
+	}
+
+	// Corrects the reads with the options set in Config, and returns the
+	// reads CloudEC would write to its FASTQ output. A run sets the static
+	// Config paths, so the runs of all engines in this JVM take turns and
+	// correct() must not be called from a job of a run; other threads must
+	// not change Config meanwhile. Invalid options throw an
+	// IllegalArgumentException.
+	public Iterator<Read> correct(final Iterator<Read> reads) throws Exception {
+		synchronized (configLock) {
+			String readPath = Config.hadoopReadPath;
+			String basePath = Config.hadoopBasePath;
+			String tmpPath = Config.hadoopTmpPath;
+			String format = Config.INPUT_FORMAT;
+
+			try {
+				// the reads are handed to the jobs as SFQ lines
+				Config.INPUT_FORMAT = "sfq";
+				Config.hadoopReadPath = LOCAL_PATH + "reads";
+				Config.hadoopBasePath = LOCAL_PATH + "out";
+				Config.checkConfiguration();
+
+				Segment in = new Segment();
+				LongWritable offset = new LongWritable();
+				Text line = new Text();
+
+				while (reads.hasNext()) {
+					Read read = reads.next();
+
+					line.set(read.getId() + "\t" + read.getSEQ() + "\t"
+							+ read.getQV());
+					in.append(offset, line);
+					offset.set(offset.get() + line.getLength() + 1);
+					bound(in);
+				}
+
+				keep(in);
+				putDataset(qualify(Config.hadoopReadPath), new Dataset(
+						LongWritable.class, Text.class, new Segment[] { in }));
+
+				String output = qualify(Config.hadoopBasePath);
+				captured.add(output);
+
+				CloudEC ec = new CloudEC();
+				ec.engine = this;
+				ec.runStages();
+
+				// the iterator deletes the spilled segments of the result
+				Dataset result = datasets.remove(output);
+				if (result != null) {
+					for (Segment seg : result.segs) {
+						release(seg);
+					}
+				}
+
+				dropAll();
+				captured.clear();
+
+				return new ReadIterator(result);
+			} finally {
+				Config.hadoopReadPath = readPath;
+				Config.hadoopBasePath = basePath;
+				Config.hadoopTmpPath = tmpPath;
+				Config.INPUT_FORMAT = format;
+			}
+		}
+	}
+
+	// Memory of the job data: a finished segment stays in memory while the
+	// segments the engine keeps fit in the budget, and is spilled otherwise
+	private void keep(final Segment seg) throws IOException {
+		long bytes = seg.memory();
+
+		synchronized (this) {
+			if (resident + bytes <= budget) {
+				resident += bytes;
+				seg.held = bytes;
+				return;
+			}
+		}
+
+		spill(seg);
+		seg.finish();
+	}
+
+	// Spills a segment being written once it outgrows the share of a task
+	private void bound(final Segment seg) throws IOException {
+		if (seg.memory() > share) {
+			spill(seg);
+		}
+	}
+
+	private void spill(final Segment seg) throws IOException {
+		if (seg.file == null) {
+			seg.spill(spillFile());
+		}
+	}
+
+	// Merges consecutive segments into spilled ones until at most
+	// MERGE_FACTOR are left, records of equal keys stay in segment order
+	private List<Segment> compact(final List<Segment> segs,
+			final RawComparator<?> cmp) throws IOException {
+		List<Segment> in = segs;
+
+		while (in.size() > MERGE_FACTOR) {
+			List<Segment> out = new ArrayList<Segment>();
+
+			for (int i = 0; i < in.size(); i += MERGE_FACTOR) {
+				List<Segment> group = in.subList(i,
+						Math.min(in.size(), i + MERGE_FACTOR));
+
+				if (group.size() == 1) {
+					out.add(group.get(0));
+					continue;
+				}
+
+				Segment seg = new Segment();
+				spill(seg);
+
+				Merger merger = new Merger(
+						group.toArray(new Segment[group.size()]), cmp);
+				try {
+					while (merger.next()) {
+						seg.append(merger.cur);
+					}
+				} finally {
+					merger.close();
+				}
+
+				seg.finish();
+				for (Segment s : group) {
+					drop(s);
+				}
+				out.add(seg);
+			}
+
+			in = out;
+		}
+
+		return in;
+	}
+
+	private synchronized void release(final Segment seg) {
+		resident -= seg.held;
+		seg.held = 0;
+	}
+
+	private void drop(final Segment seg) {
+		release(seg);
+		seg.delete();
+	}
+
+	private void drop(final Dataset data) {
+		if (data != null) {
+			for (Segment seg : data.segs) {
+				drop(seg);
+			}
+		}
+	}
+
+	private void dropAll() {
+		for (Dataset data : datasets.values()) {
+			drop(data);
+		}
+		datasets.clear();
+	}
+
+	private void putDataset(final String path, final Dataset data) {
+		drop(datasets.put(path, data));
+	}
+
+	private File spillFile() throws IOException {
+		Path dir = spillDirs.getLocalPathForWrite("cloudec.local", baseconf);
+		File parent = new File(dir.toUri().getPath());
+
+		if (!parent.mkdirs() && !parent.isDirectory()) {
+			throw new IOException("Cannot create " + parent);
+		}
+
+		return File.createTempFile("segment", null, parent);
+	}
+
+	// File management of the in-memory outputs
+	private String qualify(final Path path) throws IOException {
+		return path.getFileSystem(baseconf).makeQualified(path).toString();
+	}
+
+	private String qualify(final String path) throws IOException {
+		return qualify(new Path(path));
+	}
+
+	public void delete(final String path) throws IOException {
+		drop(datasets.remove(qualify(path)));
+	}
+
+	public void rename(final String src, final String dst) throws IOException {
+		Dataset data = datasets.remove(qualify(src));
+
+		if (data == null) {
+			throw new IOException("No such local output: " + src);
+		}
+
+		putDataset(qualify(dst), data);
+	}
+
+	// Opens the output of an earlier job for side data, such as a filter
+	// read by the mappers: from the engine running the job in this JVM, or
+	// from the SequenceFiles of the output path otherwise
+	@SuppressWarnings("rawtypes")
+	public static RecordReader openOutput(final JobConf conf, final String path)
+			throws IOException {
+		LocalEngine engine = null;
+
+		if (conf.get(ENGINE_KEY) != null) {
+			synchronized (engines) {
+				engine = engines.get(conf.get(ENGINE_KEY));
+			}
+		}
+
+		if (engine != null) {
+			Dataset data = engine.datasets.get(engine.qualify(path));
+
+			if (data == null) {
+				throw new IOException("No such local output: " + path);
+			}
+
+			return new SegmentInput(null, data, data.segs).open(conf, null);
+		}
+
+		return new SequenceFilesReader(conf, new Path(path));
+	}
+
+	// Job execution
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public Counters runJob(final JobConf conf) throws IOException {
+		final int reduces = conf.getNumReduceTasks();
+		final Counters counters = new Counters();
+		final long gc = gcMillis();
+
+		jobid = String.format("job_engine_%04d", ++jobs);
+		sLogger.info("Running " + jobid + ": " + conf.getJobName());
+
+		conf.set(ENGINE_KEY, name);
+
+		// map phase
+		List<MapInput> inputs = getMapInputs(conf);
+		final Segment[][][] mapouts = new Segment[inputs.size()][][];
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+
+		for (int i = 0; i < inputs.size(); i++) {
+			final int task = i;
+			final MapInput input = inputs.get(i);
+
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					TaskReporter reporter = new TaskReporter();
+					mapouts[task] = runMap(conf, input, reduces, reporter);
+					reporter.flush(counters);
+					return null;
+				}
+			});
+		}
+
+		runTasks(tasks);
+
+		Segment[] outputs;
+
+		if (reduces == 0) {
+			outputs = new Segment[mapouts.length];
+
+			for (int i = 0; i < mapouts.length; i++) {
+				outputs[i] = mapouts[i][0][0];
+			}
+		} else {
+			// reduce phase
+			final Segment[] reduceouts = new Segment[reduces];
+			tasks.clear();
+
+			for (int i = 0; i < reduces; i++) {
+				final int part = i;
+				final List<Segment> runs = new ArrayList<Segment>();
+
+				for (int j = 0; j < mapouts.length; j++) {
+					runs.addAll(Arrays.asList(mapouts[j][part]));
+					mapouts[j][part] = null;
+				}
+
+				long shuffle = 0;
+				for (Segment seg : runs) {
+					shuffle += seg.bytes();
+				}
+				counters.incrCounter(Task.Counter.REDUCE_SHUFFLE_BYTES, shuffle);
+
+				tasks.add(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						TaskReporter reporter = new TaskReporter();
+						Reducer reducer = ReflectionUtils.newInstance(
+								conf.getReducerClass(), conf);
+						RawComparator cmp = conf.getOutputKeyComparator();
+						List<Segment> segs = runs;
+						Merger in = null;
+
+						try {
+							segs = compact(runs, cmp);
+							in = new Merger(segs.toArray(new Segment[segs
+									.size()]), cmp);
+							reduceouts[part] = runReduce(conf, reducer, in,
+									conf.getOutputValueGroupingComparator(),
+									false, reporter);
+						} finally {
+							if (in != null) {
+								in.close();
+							}
+							reducer.close();
+
+							for (Segment seg : runs) {
+								drop(seg);
+							}
+							for (Segment seg : segs) {
+								drop(seg);
+							}
+						}
+
+						keep(reduceouts[part]);
+						reporter.flush(counters);
+						return null;
+					}
+				});
+			}
+
+			runTasks(tasks);
+			outputs = reduceouts;
+		}
+
+		// the JVM wide GC time, the tasks share the heap
+		counters.incrCounter(Task.Counter.class.getName(), "GC_TIME_MILLIS",
+				gcMillis() - gc);
+
+		Path outPath = FileOutputFormat.getOutputPath(conf);
+		String output = qualify(outPath);
+		Dataset result = new Dataset(conf.getOutputKeyClass(),
+				conf.getOutputValueClass(), outputs);
+
+		if (conf.getOutputFormat() instanceof TextOutputFormat
+				&& !captured.contains(output)) {
+			try {
+				writeText(conf, outPath, result);
+			} finally {
+				drop(result);
+			}
+		} else {
+			putDataset(output, result);
+		}
+
+		return counters;
+	}
+
+	private static long gcMillis() {
+		long millis = 0;
+
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans()) {
+			millis += Math.max(0, gc.getCollectionTime());
+		}
+
+		return millis;
+	}
+
+	private void runTasks(final List<Callable<Void>> tasks)
+			throws IOException {
+		try {
+			for (Future<Void> f : pool.invokeAll(tasks)) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	// Returns the sorted runs of every partition, the last one in memory if
+	// it fits in the budget
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private Segment[][] runMap(final JobConf conf, final MapInput input,
+			final int reduces, final Reporter reporter) throws IOException {
+		final Segment[] parts = new Segment[Math.max(1, reduces)];
+		final List<List<Segment>> runs = new ArrayList<List<Segment>>();
+		for (int i = 0; i < parts.length; i++) {
+			parts[i] = new Segment();
+			runs.add(new ArrayList<Segment>());
+		}
+
+		final Partitioner partitioner = (reduces > 1) ? ReflectionUtils
+				.newInstance(conf.getPartitionerClass(), conf) : null;
+
+		final RawComparator cmp = conf.getOutputKeyComparator();
+		Class<? extends Reducer> combinerClass = conf.getCombinerClass();
+		final Reducer combiner = (combinerClass == null || reduces == 0) ? null
+				: ReflectionUtils.newInstance(combinerClass, conf);
+
+		OutputCollector collector = new OutputCollector<Writable, Writable>() {
+			// bytes of the partitions, with their record offsets
+			private long held = 0;
+
+			@Override
+			public void collect(Writable key, Writable value)
+					throws IOException {
+				int p = (partitioner == null) ? 0 : partitioner.getPartition(
+						key, value, parts.length);
+				int bytes = parts[p].append(key, value);
+
+				reporter.incrCounter(Task.Counter.MAP_OUTPUT_RECORDS, 1);
+				reporter.incrCounter(Task.Counter.MAP_OUTPUT_BYTES, bytes);
+
+				if (reduces == 0) {
+					bound(parts[0]);
+				} else if ((held += bytes + 12) > share) {
+					for (int i = 0; i < parts.length; i++) {
+						if (parts[i].size() > 0) {
+							Segment run = sort(conf, parts[i], cmp, combiner,
+									reporter);
+							spill(run);
+							run.finish();
+							runs.get(i).add(run);
+							runs.set(i, compact(runs.get(i), cmp));
+							parts[i] = new Segment();
+						}
+					}
+					held = 0;
+				}
+			}
+		};
+
+		Mapper mapper = ReflectionUtils.newInstance(input.mapper, conf);
+		RecordReader reader = input.open(conf, reporter);
+
+		try {
+			Object key = reader.createKey();
+			Object value = reader.createValue();
+
+			while (reader.next(key, value)) {
+				reporter.incrCounter(Task.Counter.MAP_INPUT_RECORDS, 1);
+				mapper.map(key, value, collector, reporter);
+			}
+		} finally {
+			reader.close();
+			mapper.close();
+		}
+
+		if (reduces == 0) {
+			keep(parts[0]);
+			return new Segment[][] { parts };
+		}
+
+		Segment[][] outs = new Segment[parts.length][];
+
+		for (int i = 0; i < parts.length; i++) {
+			Segment last = sort(conf, parts[i], cmp, combiner, reporter);
+			keep(last);
+			runs.get(i).add(last);
+			outs[i] = runs.get(i).toArray(new Segment[runs.get(i).size()]);
+		}
+
+		if (combiner != null) {
+			combiner.close();
+		}
+
+		return outs;
+	}
+
+	// Sorts a partition of a map output, through the combiner if any
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private Segment sort(final JobConf conf, final Segment part,
+			final RawComparator cmp, final Reducer combiner,
+			final Reporter reporter) throws IOException {
+		part.sort(cmp);
+
+		if (combiner == null) {
+			return part;
+		}
+
+		Merger in = new Merger(new Segment[] { part }, cmp);
+
+		try {
+			return runReduce(conf, combiner, in, cmp, true, reporter);
+		} finally {
+			in.close();
+		}
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private Segment runReduce(final JobConf conf, final Reducer reducer,
+			final Merger in, final RawComparator group, final boolean combine,
+			final Reporter reporter) throws IOException {
+		final Segment out = new Segment();
+
+		OutputCollector collector = new OutputCollector<Writable, Writable>() {
+			@Override
+			public void collect(Writable key, Writable value)
+					throws IOException {
+				out.append(key, value);
+				reporter.incrCounter(combine ? Task.Counter.COMBINE_OUTPUT_RECORDS
+						: Task.Counter.REDUCE_OUTPUT_RECORDS, 1);
+
+				if (!combine) {
+					bound(out);
+				}
+			}
+		};
+
+		reporter.incrCounter(combine ? Task.Counter.COMBINE_INPUT_RECORDS
+				: Task.Counter.REDUCE_INPUT_RECORDS, in.records());
+
+		Writable key = (Writable) ReflectionUtils.newInstance(
+				conf.getMapOutputKeyClass(), conf);
+		Writable value = (Writable) ReflectionUtils.newInstance(
+				conf.getMapOutputValueClass(), conf);
+		Values values = new Values(in, group, key, value);
+
+		while (values.nextGroup()) {
+			if (!combine) {
+				reporter.incrCounter(Task.Counter.REDUCE_INPUT_GROUPS, 1);
+			}
+			reducer.reduce(key, values, collector, reporter);
+		}
+
+		return out;
+	}
+
+	// Writes a text output the way TextOutputFormat does
+	private void writeText(final JobConf conf, final Path outPath,
+			final Dataset data) throws IOException {
+		FileSystem fs = outPath.getFileSystem(conf);
+		byte[] sep = conf.get("mapred.textoutputformat.separator", "\t")
+				.getBytes("UTF-8");
+
+		fs.delete(outPath, true);
+
+		Writable key = data.newKey(conf);
+		Writable value = data.newValue(conf);
+		DataInputBuffer in = new DataInputBuffer();
+
+		for (int i = 0; i < data.segs.length; i++) {
+			Segment seg = data.segs[i];
+			OutputStream os = new BufferedOutputStream(fs.create(new Path(
+					outPath, String.format("part-%05d", i))), 1 << 16);
+			Cursor cursor = seg.cursor(0, seg.size());
+
+			try {
+				while (cursor.next()) {
+					cursor.readKey(key, in);
+					writeText(os, key);
+
+					if (cursor.readValue(value, in) != null) {
+						os.write(sep);
+						writeText(os, value);
+					}
+
+					os.write('\n');
+				}
+			} finally {
+				cursor.close();
+				os.close();
+			}
+		}
+	}
+
+	private static void writeText(final OutputStream os, final Writable w)
+			throws IOException {
+		if (w instanceof Text) {
+			os.write(((Text) w).getBytes(), 0, ((Text) w).getLength());
+		} else {
+			os.write(w.toString().getBytes("UTF-8"));
+		}
+	}
+
+	// Map inputs: ranges of the in-memory outputs, or splits of the files
+	@SuppressWarnings("rawtypes")
+	private List<MapInput> getMapInputs(final JobConf conf) throws IOException {
+		Map<Path, Class<? extends InputFormat>> formats =
+				new HashMap<Path, Class<? extends InputFormat>>();
+		Map<Path, Class<? extends Mapper>> mappers =
+				new HashMap<Path, Class<? extends Mapper>>();
+		List<Path> paths = new ArrayList<Path>();
+
+		String formatMap = conf.get("mapred.input.dir.formats");
+		String mapperMap = conf.get("mapred.input.dir.mappers");
+
+		try {
+			if (formatMap != null) {
+				// paths added with MultipleInputs
+				for (String mapping : formatMap.split(",")) {
+					String[] split = mapping.split(";");
+					Path path = new Path(split[0]);
+
+					paths.add(path);
+					formats.put(path, conf.getClassByName(split[1])
+							.asSubclass(InputFormat.class));
+					mappers.put(path, conf.getMapperClass());
+				}
+
+				if (mapperMap != null) {
+					for (String mapping : mapperMap.split(",")) {
+						String[] split = mapping.split(";");
+
+						mappers.put(new Path(split[0]), conf.getClassByName(
+								split[1]).asSubclass(Mapper.class));
+					}
+				}
+			} else {
+				for (Path path : FileInputFormat.getInputPaths(conf)) {
+					paths.add(path);
+					formats.put(path, conf.getInputFormat().getClass());
+					mappers.put(path, conf.getMapperClass());
+				}
+			}
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+
+		List<MapInput> inputs = new ArrayList<MapInput>();
+
+		for (Path path : paths) {
+			Dataset data = datasets.get(qualify(path));
+
+			if (data != null) {
+				// split the partitions so that every thread gets some work
+				int chunks = Math.max(1, (threads + data.segs.length - 1)
+						/ Math.max(1, data.segs.length));
+
+				for (Segment seg : data.segs) {
+					int step = Math.max(1, (seg.size() + chunks - 1) / chunks);
+
+					for (int from = 0; from < seg.size(); from += step) {
+						inputs.add(new SegmentInput(mappers.get(path), data,
+								seg, from, Math.min(seg.size(), from + step)));
+					}
+				}
+			} else {
+				InputFormat format = ReflectionUtils.newInstance(
+						formats.get(path), conf);
+
+				JobConf job = new JobConf(conf);
+				FileInputFormat.setInputPaths(job, path);
+
+				for (InputSplit split : format.getSplits(job,
+						Math.max(1, conf.getNumMapTasks()))) {
+					inputs.add(new SplitInput(mappers.get(path), format, job,
+							split));
+				}
+			}
+		}
+
+		return inputs;
+	}
+
+	@SuppressWarnings("rawtypes")
+	private abstract static class MapInput {
+		private final Class<? extends Mapper> mapper;
+
+		MapInput(final Class<? extends Mapper> mapper1) {
+			mapper = mapper1;
+		}
+
+		abstract RecordReader open(JobConf conf, Reporter reporter)
+				throws IOException;
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static class SplitInput extends MapInput {
+		private final InputFormat format;
+		private final JobConf job;
+		private final InputSplit split;
+
+		SplitInput(final Class<? extends Mapper> mapper1,
+				final InputFormat format1, final JobConf job1,
+				final InputSplit split1) {
+			super(mapper1);
+			format = format1;
+			job = job1;
+			split = split1;
+		}
+
+		@Override
+		RecordReader open(final JobConf conf, final Reporter reporter)
+				throws IOException {
+			return format.getRecordReader(split, job, reporter);
+		}
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static class SegmentInput extends MapInput {
+		private final Dataset data;
+		private final Segment[] segs;
+		private final int from;
+		private final int to;
+
+		// records [from, to) of one segment
+		SegmentInput(final Class<? extends Mapper> mapper1,
+				final Dataset data1, final Segment seg1, final int from1,
+				final int to1) {
+			super(mapper1);
+			data = data1;
+			segs = new Segment[] { seg1 };
+			from = from1;
+			to = to1;
+		}
+
+		// all records of the segments
+		SegmentInput(final Class<? extends Mapper> mapper1,
+				final Dataset data1, final Segment[] segs1) {
+			super(mapper1);
+			data = data1;
+			segs = segs1;
+			from = 0;
+			to = -1;
+		}
+
+		@Override
+		RecordReader open(final JobConf conf, final Reporter reporter) {
+			return new RecordReader<Writable, Writable>() {
+				private final DataInputBuffer in = new DataInputBuffer();
+				private int seg = 0;
+				private int rec = 0;
+				private Cursor cursor = null;
+
+				@Override
+				public boolean next(Writable key, Writable value)
+						throws IOException {
+					while (seg < segs.length) {
+						if (cursor == null) {
+							cursor = segs[seg].cursor((seg == 0) ? from : 0,
+									(to < 0) ? segs[seg].size() : to);
+						}
+
+						if (cursor.next()) {
+							cursor.readKey(key, in);
+							cursor.readValue(value, in);
+							rec++;
+
+							return true;
+						}
+
+						cursor.close();
+						cursor = null;
+						seg++;
+					}
+
+					return false;
+				}
+
+				@Override
+				public Writable createKey() {
+					return data.newKey(conf);
+				}
+
+				@Override
+				public Writable createValue() {
+					return data.newValue(conf);
+				}
+
+				@Override
+				public long getPos() {
+					return rec;
+				}
+
+				@Override
+				public float getProgress() {
+					return (float) seg / segs.length;
+				}
+
+				@Override
+				public void close() throws IOException {
+					if (cursor != null) {
+						cursor.close();
+					}
+				}
+			};
+		}
+	}
+
+	// Records of all SequenceFiles in an output directory
+	@SuppressWarnings("rawtypes")
+	private static class SequenceFilesReader implements
+			RecordReader<Writable, Writable> {
+		private final JobConf conf;
+		private final FileSystem fs;
+		private final FileStatus[] files;
+
+		private int file = 0;
+		private SequenceFile.Reader reader = null;
+
+		SequenceFilesReader(final JobConf conf1, final Path path)
+				throws IOException {
+			conf = conf1;
+			fs = path.getFileSystem(conf);
+			files = fs.listStatus(path, new PathFilter() {
+				@Override
+				public boolean accept(Path p) {
+					return p.getName().startsWith("part-");
+				}
+			});
+
+			if (files.length > 0) {
+				reader = new SequenceFile.Reader(fs, files[0].getPath(), conf);
+			}
+		}
+
+		@Override
+		public boolean next(Writable key, Writable value) throws IOException {
+			while (reader != null) {
+				if (reader.next(key, value)) {
+					return true;
+				}
+
+				reader.close();
+				reader = (++file < files.length) ? new SequenceFile.Reader(fs,
+						files[file].getPath(), conf) : null;
+			}
+
+			return false;
+		}
+
+		@Override
+		public Writable createKey() {
+			if (reader == null) {
+				return NullWritable.get();
+			}
+
+			return (Writable) ReflectionUtils.newInstance(
+					reader.getKeyClass(), conf);
+		}
+
+		@Override
+		public Writable createValue() {
+			if (reader == null) {
+				return NullWritable.get();
+			}
+
+			return (Writable) ReflectionUtils.newInstance(
+					reader.getValueClass(), conf);
+		}
+
+		@Override
+		public long getPos() {
+			return file;
+		}
+
+		@Override
+		public float getProgress() {
+			return (files.length == 0) ? 1.0f : (float) file / files.length;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (reader != null) {
+				reader.close();
+			}
+		}
+	}
+
+	// The partitions of a job output
+	private static class Dataset {
+		private final Class<?> keyClass;
+		private final Class<?> valueClass;
+		private final Segment[] segs;
+
+		Dataset(final Class<?> keyClass1, final Class<?> valueClass1,
+				final Segment[] segs1) {
+			keyClass = keyClass1;
+			valueClass = valueClass1;
+			segs = segs1;
+		}
+
+		Writable newKey(final JobConf conf) {
+			return (Writable) ReflectionUtils.newInstance(keyClass, conf);
+		}
+
+		Writable newValue(final JobConf conf) {
+			return (Writable) ReflectionUtils.newInstance(valueClass, conf);
+		}
+	}
+
+	// Serialized records, each one stored as [key length][value length]
+	// [key][value], where a value length of -1 stands for a null value.
+	// A segment is built and sorted in memory. Spilling moves its records to
+	// a local file in their sorted order, later records are appended to the
+	// file, and cursors read them back sequentially
+	private static class Segment {
+		private DataOutputBuffer buf = new DataOutputBuffer();
+		private int[] offsets = new int[256];
+		private int count = 0;
+
+		// bytes of the segment counted in the memory of the engine
+		private long held = 0;
+
+		// the file of a spilled segment, with the file position of every
+		// INDEX_STEP-th record
+		private File file = null;
+		private DataOutputStream fileOut = null;
+		private long fileLength = 0;
+		private long[] index = null;
+
+		// returns the number of bytes of the record
+		int append(final Writable key, final Writable value)
+				throws IOException {
+			int start = buf.getLength();
+
+			buf.writeInt(0);
+			buf.writeInt(0);
+			key.write(buf);
+
+			int keyEnd = buf.getLength();
+			int valLen = -1;
+
+			if (value != null) {
+				value.write(buf);
+				valLen = buf.getLength() - keyEnd;
+			}
+
+			putInt(buf.getData(), start, keyEnd - start - 8);
+			putInt(buf.getData(), start + 4, valLen);
+
+			int bytes = buf.getLength() - start - 8;
+			added(start);
+
+			return bytes;
+		}
+
+		// appends the current record of a cursor
+		void append(final Cursor c) throws IOException {
+			int start = buf.getLength();
+
+			buf.writeInt(c.keyLength);
+			buf.writeInt(c.valueLength);
+			buf.write(c.data, c.keyStart,
+					c.keyLength + Math.max(0, c.valueLength));
+			added(start);
+		}
+
+		private void added(final int start) throws IOException {
+			if (file == null) {
+				if (count == offsets.length) {
+					offsets = Arrays.copyOf(offsets, count * 2);
+				}
+				offsets[count++] = start;
+			} else {
+				if (count % INDEX_STEP == 0) {
+					if (count / INDEX_STEP == index.length) {
+						index = Arrays.copyOf(index, index.length * 2);
+					}
+					index[count / INDEX_STEP] = fileLength + start;
+				}
+				count++;
+
+				if (buf.getLength() >= SPILL_BUFFER) {
+					flushBuffer();
+				}
+			}
+		}
+
+		int size() {
+			return count;
+		}
+
+		// serialized bytes of the records
+		long bytes() {
+			return fileLength + buf.getLength();
+		}
+
+		// heap bytes of the records and their offsets
+		long memory() {
+			return (file == null) ? buf.getLength() + 4L * count : buf
+					.getLength();
+		}
+
+		private static void putInt(final byte[] b, final int off, final int v) {
+			b[off] = (byte) (v >>> 24);
+			b[off + 1] = (byte) (v >>> 16);
+			b[off + 2] = (byte) (v >>> 8);
+			b[off + 3] = (byte) v;
+		}
+
+		void spill(final File file1) throws IOException {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(file1),
+							SPILL_BUFFER));
+			long[] idx = new long[count / INDEX_STEP + 1];
+			long pos = 0;
+			byte[] b = buf.getData();
+
+			try {
+				for (int rec = 0; rec < count; rec++) {
+					int off = offsets[rec];
+					int len = 8 + WritableComparator.readInt(b, off)
+							+ Math.max(0, WritableComparator.readInt(b, off + 4));
+
+					if (rec % INDEX_STEP == 0) {
+						idx[rec / INDEX_STEP] = pos;
+					}
+
+					out.write(b, off, len);
+					pos += len;
+				}
+			} catch (IOException e) {
+				out.close();
+				file1.delete();
+				throw e;
+			}
+
+			file = file1;
+			fileOut = out;
+			fileLength = pos;
+			index = idx;
+			buf = new DataOutputBuffer();
+			offsets = null;
+		}
+
+		private void flushBuffer() throws IOException {
+			fileOut.write(buf.getData(), 0, buf.getLength());
+			fileLength += buf.getLength();
+			buf.reset();
+		}
+
+		// Completes the file of a spilled segment before it is read
+		synchronized void finish() throws IOException {
+			if (fileOut != null) {
+				flushBuffer();
+				fileOut.close();
+				fileOut = null;
+			}
+		}
+
+		synchronized void delete() {
+			if (file != null) {
+				try {
+					if (fileOut != null) {
+						fileOut.close();
+					}
+				} catch (IOException e) {
+					sLogger.warn("Cannot close " + file, e);
+				}
+
+				fileOut = null;
+				file.delete();
+			}
+		}
+
+		Cursor cursor(final int from, final int to) throws IOException {
+			finish();
+			return new Cursor(this, from, to);
+		}
+
+		// stable merge sort of the records by their serialized keys, in memory
+		void sort(final RawComparator<?> cmp) {
+			int[] tmp = Arrays.copyOf(offsets, count);
+			mergeSort(cmp, tmp, offsets, 0, count);
+		}
+
+		private int compare(final RawComparator<?> cmp, final int off1,
+				final int off2) {
+			byte[] b = buf.getData();
+
+			return cmp.compare(b, off1 + 8, WritableComparator.readInt(b, off1),
+					b, off2 + 8, WritableComparator.readInt(b, off2));
+		}
+
+		private void mergeSort(final RawComparator<?> cmp, final int[] src,
+				final int[] dst, final int lo, final int hi) {
+			if (hi - lo < 8) {
+				for (int i = lo + 1; i < hi; i++) {
+					for (int j = i; j > lo && compare(cmp, dst[j - 1], dst[j]) > 0; j--) {
+						int t = dst[j];
+						dst[j] = dst[j - 1];
+						dst[j - 1] = t;
+					}
+				}
+				return;
+			}
+
+			int mid = (lo + hi) >>> 1;
+			mergeSort(cmp, dst, src, lo, mid);
+			mergeSort(cmp, dst, src, mid, hi);
+
+			for (int i = lo, p = lo, q = mid; i < hi; i++) {
+				if (q >= hi || (p < mid && compare(cmp, src[p], src[q]) <= 0)) {
+					dst[i] = src[p++];
+				} else {
+					dst[i] = src[q++];
+				}
+			}
+		}
+	}
+
+	// Reads the records [from, to) of a segment in order, the current one
+	// from the memory of the segment or from a buffer reused for every
+	// record of its file
+	private static class Cursor implements Closeable {
+		private final Segment seg;
+		private final int to;
+		private int rec;
+		private DataInputStream in = null;
+
+		private byte[] data;
+		private int keyStart;
+		private int keyLength;
+		private int valueLength;
+
+		Cursor(final Segment seg1, final int from, final int to1)
+				throws IOException {
+			seg = seg1;
+			to = to1;
+			rec = from;
+
+			if (seg.file != null && rec < to) {
+				FileInputStream file = new FileInputStream(seg.file);
+				file.getChannel().position(seg.index[from / INDEX_STEP]);
+
+				in = new DataInputStream(new BufferedInputStream(file,
+						SPILL_BUFFER));
+				data = new byte[256];
+
+				for (int i = from - from % INDEX_STEP; i < from; i++) {
+					read();
+				}
+			}
+		}
+
+		private void read() throws IOException {
+			keyLength = in.readInt();
+			valueLength = in.readInt();
+			keyStart = 0;
+
+			int len = keyLength + Math.max(0, valueLength);
+			if (data.length < len) {
+				data = new byte[Math.max(len, data.length * 2)];
+			}
+
+			in.readFully(data, 0, len);
+		}
+
+		boolean next() throws IOException {
+			if (rec >= to) {
+				close();
+				return false;
+			}
+
+			if (seg.file != null) {
+				read();
+			} else {
+				int off = seg.offsets[rec];
+
+				data = seg.buf.getData();
+				keyLength = WritableComparator.readInt(data, off);
+				valueLength = WritableComparator.readInt(data, off + 4);
+				keyStart = off + 8;
+			}
+
+			rec++;
+			return true;
+		}
+
+		void readKey(final Writable key, final DataInputBuffer buf)
+				throws IOException {
+			buf.reset(data, keyStart, keyLength);
+			key.readFields(buf);
+		}
+
+		Writable readValue(final Writable value, final DataInputBuffer buf)
+				throws IOException {
+			if (valueLength < 0) {
+				return null;
+			}
+
+			buf.reset(data, keyStart + keyLength, valueLength);
+			value.readFields(buf);
+
+			return value;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (in != null) {
+				in.close();
+				in = null;
+			}
+		}
+	}
+
+	// Merges sorted segments, records of equal keys in segment order
+	private static class Merger implements Closeable {
+		private final Segment[] segs;
+		private final Cursor[] cursors;
+		private final PriorityQueue<Integer> heap;
+
+		private Cursor cur = null;
+		private int last = -1;
+
+		int records() {
+			int n = 0;
+			for (Segment s : segs) {
+				n += s.size();
+			}
+
+			return n;
+		}
+
+		Merger(final Segment[] segs1, final RawComparator<?> cmp)
+				throws IOException {
+			segs = segs1;
+			cursors = new Cursor[segs.length];
+			heap = new PriorityQueue<Integer>(Math.max(1, segs.length),
+					new Comparator<Integer>() {
+						@Override
+						public int compare(Integer a, Integer b) {
+							Cursor ca = cursors[a];
+							Cursor cb = cursors[b];
+							int c = cmp.compare(ca.data, ca.keyStart,
+									ca.keyLength, cb.data, cb.keyStart,
+									cb.keyLength);
+
+							return (c != 0) ? c : a - b;
+						}
+					});
+
+			for (int i = 0; i < segs.length; i++) {
+				cursors[i] = segs[i].cursor(0, segs[i].size());
+
+				if (cursors[i].next()) {
+					heap.add(i);
+				}
+			}
+		}
+
+		boolean next() throws IOException {
+			if (last >= 0 && cursors[last].next()) {
+				heap.add(last);
+			}
+
+			if (heap.isEmpty()) {
+				last = -1;
+				cur = null;
+				return false;
+			}
+
+			last = heap.poll();
+			cur = cursors[last];
+
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			for (Cursor c : cursors) {
+				if (c != null) {
+					c.close();
+				}
+			}
+		}
+	}
+
+	// The values of one key group, deserialized into a reused instance
+	private static class Values implements Iterator<Writable> {
+		private final Merger in;
+		private final RawComparator<?> group;
+		private final Writable key;
+		private final Writable value;
+		private final DataInputBuffer buf = new DataInputBuffer();
+
+		private boolean more;
+		private boolean consumed = false;
+
+		// the key of the group, copied as a cursor reuses its buffer
+		private byte[] gkey = new byte[64];
+		private int glen = -1;
+
+		Values(final Merger in1, final RawComparator<?> group1,
+				final Writable key1, final Writable value1) throws IOException {
+			in = in1;
+			group = group1;
+			key = key1;
+			value = value1;
+			more = in.next();
+		}
+
+		boolean nextGroup() throws IOException {
+			// skip the values the reducer did not read
+			if (glen >= 0) {
+				while (hasNext()) {
+					consumed = true;
+				}
+			}
+
+			if (!more) {
+				return false;
+			}
+
+			Cursor c = in.cur;
+
+			glen = c.keyLength;
+			if (gkey.length < glen) {
+				gkey = new byte[Math.max(glen, gkey.length * 2)];
+			}
+			System.arraycopy(c.data, c.keyStart, gkey, 0, glen);
+			c.readKey(key, buf);
+
+			return true;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (!more) {
+				return false;
+			}
+
+			if (consumed) {
+				consumed = false;
+
+				try {
+					more = in.next();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+
+				if (!more) {
+					return false;
+				}
+			}
+
+			return group.compare(gkey, 0, glen, in.cur.data, in.cur.keyStart,
+					in.cur.keyLength) == 0;
+		}
+
+		@Override
+		public Writable next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+
+			consumed = true;
+
+			try {
+				// the key follows the values, as for secondary sorts on Hadoop
+				in.cur.readKey(key, buf);
+				return in.cur.readValue(value, buf);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	// Counters of a task, added to the job counters when the task is done
+	private static class TaskReporter implements Reporter {
+		private final Counters counters = new Counters();
+
+		// CPU time of the task thread, from the creation of the reporter
+		private final long cpu = threadBean.getCurrentThreadCpuTime();
+
+		void flush(final Counters job) {
+			counters.incrCounter(Task.Counter.CPU_MILLISECONDS,
+					(threadBean.getCurrentThreadCpuTime() - cpu) / 1000000);
+			job.incrAllCounters(counters);
+		}
+
+		@Override
+		public void progress() {
+		}
+
+		@Override
+		public void setStatus(String status) {
+		}
+
+		@Override
+		public Counters.Counter getCounter(Enum<?> name) {
+			return counters.findCounter(name);
+		}
+
+		@Override
+		public Counters.Counter getCounter(String group, String name) {
+			return counters.findCounter(group, name);
+		}
+
+		@Override
+		public void incrCounter(Enum<?> key, long amount) {
+			counters.incrCounter(key, amount);
+		}
+
+		@Override
+		public void incrCounter(String group, String counter, long amount) {
+			counters.incrCounter(group, counter, amount);
+		}
+
+		@Override
+		public InputSplit getInputSplit() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public float getProgress() {
+			return 0;
+		}
+	}
+
+	// Reads of the FASTQ records written by PostProcessConvert, the files of
+	// spilled segments are deleted once they are read
+	private static class ReadIterator implements Iterator<Read> {
+		private final Segment[] segs;
+		private final DataInputBuffer buf = new DataInputBuffer();
+		private final Text line = new Text();
+
+		private int seg = 0;
+		private int rec = 0;
+		private Cursor cursor = null;
+
+		ReadIterator(final Dataset data) {
+			segs = (data == null) ? new Segment[0] : data.segs;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (seg < segs.length && rec >= segs[seg].size()) {
+				try {
+					if (cursor != null) {
+						cursor.close();
+					}
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+
+				cursor = null;
+				segs[seg++].delete();
+				rec = 0;
+			}
+
+			return seg < segs.length;
+		}
+
+		private String line() throws IOException {
+			if (cursor == null) {
+				cursor = segs[seg].cursor(0, segs[seg].size());
+			}
+
+			cursor.next();
+			cursor.readKey(line, buf);
+			rec++;
+
+			return line.toString();
+		}
+
+		@Override
+		public Read next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+
+			try {
+				String id = line().substring(1);
+				String seq = line();
+				line();
+				String qv = line();
+
+				return new Read(id, seq, qv);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
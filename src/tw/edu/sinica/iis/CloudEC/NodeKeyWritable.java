@@ -0,0 +1,187 @@
+/*
+ * (C) Copyright 2017 The CloudEC Project and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Contributors:
+ *      Wei-Chun Chung (wcchung@iis.sinica.edu.tw)
+ *      Chien-Chih Chen (rocky@iis.sinica.edu.tw)
+ * 
+ * CloudEC Project:
+ *      https://github.com/CSCLabTW/CloudEC/
+ */
+
+
+package tw.edu.sinica.iis.CloudEC;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Partitioner;
+
+// The key of the read-keyed joins: the read id and the type of the value
+// (see NodeMsgWritable). The keys are sorted by id and then by type, but
+// partitioned and grouped by id only, so a reducer gets the node of a read
+// before all of its messages.
+//
+// Serialized form: the id as a Text, followed by the type byte.
+public class NodeKeyWritable implements WritableComparable<NodeKeyWritable> {
+	private final Text id = new Text();
+	private byte type = NodeMsgWritable.MESSAGE;
+
+	public NodeKeyWritable() {
+	}
+
+	// Join the reads and their messages of the job by NodeKeyWritable
+	public static void setJoin(final JobConf conf) {
+		conf.setMapOutputKeyClass(NodeKeyWritable.class);
+		conf.setPartitionerClass(IdPartitioner.class);
+		conf.setOutputValueGroupingComparator(IdComparator.class);
+	}
+
+	public void set(final Text id1, final byte type1) {
+		id.set(id1);
+		type = type1;
+	}
+
+	public Text getId() {
+		return id;
+	}
+
+	public byte getType() {
+		return type;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		id.write(out);
+		out.writeByte(type);
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		id.readFields(in);
+		type = in.readByte();
+	}
+
+	@Override
+	public int compareTo(NodeKeyWritable other) {
+		int cmp = id.compareTo(other.id);
+
+		if (cmp != 0) {
+			return cmp;
+		}
+
+		return type - other.type;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof NodeKeyWritable)) {
+			return false;
+		}
+
+		NodeKeyWritable other = (NodeKeyWritable) o;
+
+		return type == other.type && id.equals(other.id);
+	}
+
+	@Override
+	public int hashCode() {
+		return id.hashCode() * 31 + type;
+	}
+
+	@Override
+	public String toString() {
+		return id + "\t" + type;
+	}
+
+	// length of the serialized id, including its length
+	private static int idLength(final byte[] b, final int s) {
+		try {
+			return WritableUtils.decodeVIntSize(b[s])
+					+ WritableComparator.readVInt(b, s);
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	private static int compareIds(final byte[] b1, final int s1,
+			final byte[] b2, final int s2) {
+		int n1 = WritableUtils.decodeVIntSize(b1[s1]);
+		int n2 = WritableUtils.decodeVIntSize(b2[s2]);
+
+		return WritableComparator.compareBytes(b1, s1 + n1, idLength(b1, s1)
+				- n1, b2, s2 + n2, idLength(b2, s2) - n2);
+	}
+
+	// Compare serialized keys by id and type
+	public static class Comparator extends WritableComparator {
+		public Comparator() {
+			super(NodeKeyWritable.class);
+		}
+
+		@Override
+		public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+			int cmp = compareIds(b1, s1, b2, s2);
+
+			if (cmp != 0) {
+				return cmp;
+			}
+
+			return b1[s1 + idLength(b1, s1)] - b2[s2 + idLength(b2, s2)];
+		}
+	}
+
+	// Group serialized keys by id only
+	public static class IdComparator extends WritableComparator {
+		public IdComparator() {
+			super(NodeKeyWritable.class);
+		}
+
+		@Override
+		public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+			return compareIds(b1, s1, b2, s2);
+		}
+
+		@SuppressWarnings("rawtypes")
+		@Override
+		public int compare(WritableComparable a, WritableComparable b) {
+			return ((NodeKeyWritable) a).id.compareTo(((NodeKeyWritable) b).id);
+		}
+	}
+
+	// Partition by id only, as the HashPartitioner does with the id
+	public static class IdPartitioner implements
+			Partitioner<NodeKeyWritable, NodeMsgWritable> {
+		@Override
+		public void configure(JobConf job) {
+		}
+
+		@Override
+		public int getPartition(NodeKeyWritable key, NodeMsgWritable value,
+				int numPartitions) {
+			return (key.id.hashCode() & Integer.MAX_VALUE) % numPartitions;
+		}
+	}
+
+	static {
+		WritableComparator.define(NodeKeyWritable.class, new Comparator());
+	}
+}
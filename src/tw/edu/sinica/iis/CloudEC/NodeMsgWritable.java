@@ -0,0 +1,106 @@
+/*
+ * (C) Copyright 2017 The CloudEC Project and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Contributors:
+ *      Wei-Chun Chung (wcchung@iis.sinica.edu.tw)
+ *      Chien-Chih Chen (rocky@iis.sinica.edu.tw)
+ * 
+ * CloudEC Project:
+ *      https://github.com/CSCLabTW/CloudEC/
+ */
+
+package tw.edu.sinica.iis.CloudEC;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+
+// A value of the read-keyed joins: either the node itself, correction
+// votes or a text message (ignore entry, update) sent to it. The instances
+// read by readFields() are reused.
+public class NodeMsgWritable implements Writable {
+	public static final byte NODE = 0;
+	public static final byte MESSAGE = 1;
+	public static final byte VOTES = 2;
+
+	private byte type = MESSAGE;
+	private Writable value = null;
+
+	private final ReadNodeWritable node = new ReadNodeWritable();
+	private final Text msg = new Text();
+	private final VoteWritable votes = new VoteWritable();
+
+	public void set(final Writable val) throws IOException {
+		if (val instanceof ReadNodeWritable) {
+			type = NODE;
+		} else if (val instanceof Text) {
+			type = MESSAGE;
+		} else if (val instanceof VoteWritable) {
+			type = VOTES;
+		} else {
+			throw new IOException("Unknown value: " + val.getClass());
+		}
+
+		value = val;
+	}
+
+	public byte getType() {
+		return type;
+	}
+
+	public boolean isNode() {
+		return type == NODE;
+	}
+
+	public boolean isVotes() {
+		return type == VOTES;
+	}
+
+	public ReadNodeWritable getNode() {
+		return (ReadNodeWritable) value;
+	}
+
+	public Text getMessage() {
+		return (Text) value;
+	}
+
+	public VoteWritable getVotes() {
+		return (VoteWritable) value;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeByte(type);
+		value.write(out);
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		type = in.readByte();
+
+		if (type == NODE) {
+			value = node;
+		} else if (type == VOTES) {
+			value = votes;
+		} else {
+			value = msg;
+		}
+
+		value.readFields(in);
+	}
+}
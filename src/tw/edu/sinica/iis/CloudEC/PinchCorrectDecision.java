@@ -24,15 +24,14 @@
 package tw.edu.sinica.iis.CloudEC;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Iterator;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapred.FileInputFormat;
 import org.apache.hadoop.mapred.FileOutputFormat;
 import org.apache.hadoop.mapred.JobClient;
@@ -43,8 +42,8 @@ import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.RunningJob;
-import org.apache.hadoop.mapred.TextInputFormat;
-import org.apache.hadoop.mapred.TextOutputFormat;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.log4j.Logger;
@@ -53,22 +52,31 @@ public class PinchCorrectDecision extends Configured implements Tool {
 	private static final Logger sLogger = Logger.getLogger(PinchCorrectDecision.class);
 
 	public static class PinchCorrectDecisionMapper extends MapReduceBase implements
-			Mapper<LongWritable, Text, Text, Text> {
+			Mapper<Text, Writable, NodeKeyWritable, NodeMsgWritable> {
+
+		private NodeKeyWritable key = new NodeKeyWritable();
+		private NodeMsgWritable msg = new NodeMsgWritable();
+
+		private AllocationCounter alloc = new AllocationCounter();
 
 		@Override
-		public void map(LongWritable lineid, Text nodetxt,
-				OutputCollector<Text, Text> output, Reporter reporter)
+		public void map(Text nodeid, Writable value,
+				OutputCollector<NodeKeyWritable, NodeMsgWritable> output,
+				Reporter reporter)
 				throws IOException {
 
-			String vals[] = nodetxt.toString().split("\t", 2);
+			msg.set(value);
+			key.set(nodeid, msg.getType());
 
-			output.collect(new Text(vals[0]), new Text(vals[1]));
+			output.collect(key, msg);
+
+			alloc.count(reporter);
 		}
 	}
 
 	// FIXME: code need review
 	public static class PinchCorrectDecisionReducer extends MapReduceBase implements
-			Reducer<Text, Text, Text, Text> {
+			Reducer<NodeKeyWritable, NodeMsgWritable, Text, ReadNodeWritable> {
 
 		private static int K = 0;
 
@@ -77,76 +85,53 @@ public class PinchCorrectDecision extends Configured implements Tool {
 			K = job.getInt("K", 0);
 		}
 
-		public class Correct {
-			public char chr;
-			public int pos;
-
-			public Correct(int pos1, char chr1) throws IOException {
-				pos = pos1;
-				chr = chr1;
-			}
-		}
-
 		@Override
-		public void reduce(Text nodeid, Iterator<Text> iter,
-				OutputCollector<Text, Text> output, Reporter reporter)
+		public void reduce(NodeKeyWritable key, Iterator<NodeMsgWritable> iter,
+				OutputCollector<Text, ReadNodeWritable> output, Reporter reporter)
 				throws IOException {
-			Utils node = new Utils(nodeid.toString());
-
-			ArrayList<Correct> msgs = new ArrayList<Correct>();
-
-			int mainnode = 0;
-
-			while (iter.hasNext()) {
-				String[] vals = iter.next().toString().split("\t");
-
-				if (vals[0].equals(Utils.MSGNODE)) {
-					node.parseNodeMsg(vals, 0);
-					mainnode++;
-				} else if (vals[0].equals(Utils.MSGCORRECT)) {
-					String[] vals2 = Utils.corrDecode(vals[1]).split("X");
-
-					for (int i = 0; i < vals2.length; i++) {
-						if (vals2[i].length() != 0) {
-							for (Character c : vals2[i].toCharArray()) {
-								msgs.add(new Correct(i, c));
-							}
-						}
-					}
-				}
-			}
 
-			// zero or multiple main node exists, it's an error
-			if (mainnode != 1) {
-				msgs.clear();
+			// the node sorts first, votes without it are dropped
+			NodeMsgWritable val = iter.next();
 
+			if (!val.isNode()) {
 				return;
 			}
 
-			if (msgs.size() > 0) {
-				// array: [0]=A, [1]=T, [2]=C, [3]=G, [4]=Sum
-				int[][] array = new int[node.getLen()][5];
+			ReadNodeWritable node = val.getNode();
 
-				boolean[] skip = new boolean[node.getLen()];
+			// array: [0]=A, [1]=T, [2]=C, [3]=G, [4]=Sum
+			int[][] array = new int[node.getLen()][5];
+			int nvotes = 0;
 
-				for (int i = 0; i < node.getLen(); i++) {
-					skip[i] = false;
+			// the votes of all Recommend reducers are counted as they come
+			while (iter.hasNext()) {
+				val = iter.next();
 
-					for (int j = 0; j < 5; j++) {
-						array[i][j] = 0;
-					}
+				// multiple main node exists, it's an error
+				if (val.isNode()) {
+					return;
 				}
 
-				for (int i = 0; i < msgs.size(); i++) {
-					int pos = msgs.get(i).pos;
-					int base = Utils.char2idx(msgs.get(i).chr);
+				if (val.isVotes()) {
+					VoteWritable votes = val.getVotes();
+
+					for (int i = 0; i < votes.size(); i++) {
+						int pos = votes.getPos(i);
+						int base = votes.getBase(i);
 
-					array[pos][base]++;
+						array[pos][base]++;
 
-					if (base != Utils.char2idx('N')) {
-						array[pos][4]++;
+						if (base != Utils.char2idx('N')) {
+							array[pos][4]++;
+						}
 					}
+
+					nvotes += votes.size();
 				}
+			}
+
+			if (nvotes > 0) {
+				boolean[] skip = new boolean[node.getLen()];
 
 				// check if corrections are far away enough
 				for (int i = 0; i < array.length; i++) {
@@ -207,15 +192,13 @@ public class PinchCorrectDecision extends Configured implements Tool {
 				node.setQV(fix_qv.toString());
 			}
 
-			msgs.clear();
-
 			// TODO: remove filter data in the last run
 
-			output.collect(nodeid, new Text(node.toNodeMsg()));
+			output.collect(key.getId(), node);
 		}
 	}
 
-	public RunningJob run(String inputPath, String outputPath) throws Exception {
+	public JobConf createJob(String inputPath, String outputPath) {
 		sLogger.info("Tool name: " + PinchCorrectDecision.class.getSimpleName() + "  [1/5]");
 		sLogger.info(" - input: " + inputPath);
 		sLogger.info(" - output: " + outputPath);
@@ -228,18 +211,24 @@ public class PinchCorrectDecision extends Configured implements Tool {
 		FileInputFormat.addInputPaths(conf, inputPath);
 		FileOutputFormat.setOutputPath(conf, new Path(outputPath));
 
-		conf.setInputFormat(TextInputFormat.class);
-		conf.setOutputFormat(TextOutputFormat.class);
+		conf.setInputFormat(SequenceFileInputFormat.class);
+		conf.setOutputFormat(SequenceFileOutputFormat.class);
 
-		conf.setMapOutputKeyClass(Text.class);
-		conf.setMapOutputValueClass(Text.class);
+		NodeKeyWritable.setJoin(conf);
+		conf.setMapOutputValueClass(NodeMsgWritable.class);
 
 		conf.setOutputKeyClass(Text.class);
-		conf.setOutputValueClass(Text.class);
+		conf.setOutputValueClass(ReadNodeWritable.class);
 
 		conf.setMapperClass(PinchCorrectDecisionMapper.class);
 		conf.setReducerClass(PinchCorrectDecisionReducer.class);
 
+		return conf;
+	}
+
+	public RunningJob run(String inputPath, String outputPath) throws Exception {
+		JobConf conf = createJob(inputPath, outputPath);
+
 		// delete the output directory if it exists already
 		FileSystem.get(conf).delete(new Path(outputPath), true);
 
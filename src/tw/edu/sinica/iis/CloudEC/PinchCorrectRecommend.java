@@ -32,7 +32,6 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.FileInputFormat;
 import org.apache.hadoop.mapred.FileOutputFormat;
@@ -44,8 +43,8 @@ import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.RunningJob;
-import org.apache.hadoop.mapred.TextInputFormat;
-import org.apache.hadoop.mapred.TextOutputFormat;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.log4j.Logger;
@@ -54,71 +53,81 @@ public class PinchCorrectRecommend extends Configured implements Tool {
 	private static final Logger sLogger = Logger.getLogger(PinchCorrectRecommend.class);
 
 	public static class PinchCorrectRecommendMapper extends MapReduceBase implements
-			Mapper<LongWritable, Text, Text, Text> {
+			Mapper<Text, ReadNodeWritable, KmerWritable, Text> {
 
 		private static int K = 0;
 
+		private KmerIterator kmers = null;
+		private KmerWritable kmer = new KmerWritable();
+
+		// the emitted value is built in place
+		private Text value = new Text();
+		private RecordBuffer record = new RecordBuffer();
+
+		private AllocationCounter alloc = new AllocationCounter();
+
 		@Override
 		public void configure(JobConf job) {
 			K = job.getInt("K", 0);
+
+			kmers = new KmerIterator(K, true);
 		}
 
 		@Override
-		public void map(LongWritable lineid, Text nodetxt,
-				OutputCollector<Text, Text> output, Reporter reporter)
+		public void map(Text nodeid, ReadNodeWritable node,
+				OutputCollector<KmerWritable, Text> output, Reporter reporter)
 				throws IOException {
-			Utils node = new Utils();
-			node.fromNodeMsg(nodetxt.toString());
+			node.setNodeId(nodeid);
 
-			String nodeSEQ = node.getSEQ();
 			String nodeQV = node.getQV();
 
-			String nodeIGN = node.getIGN(Utils.IGNP);
+			long[] nodeIGN = node.getIGN(Utils.IGNP);
 
 			// Here we use a K-mer with a center gap for alignment
-			int end = nodeSEQ.length() - (K + 1) + 1;
-			for (int i = 0; i < end; i++) {
+			kmers.reset(node);
+			while (kmers.next()) {
+				int i = kmers.getPos();
 
-				// ignore kmers
-				if (nodeIGN != null && nodeIGN.charAt(i) == '1') {
+				// ignore kmers, blocks of ignored kmers are skipped at once
+				if (ReadNodeWritable.isIgnored(nodeIGN, i)) {
+					kmers.seek(ReadNodeWritable.nextNotIgnored(nodeIGN, i));
 					continue;
 				}
 
-				String window_f = nodeSEQ.substring(i, i + (K / 2))
-						+ nodeSEQ.substring(i + (K / 2) + 1, i + K + 1);
-				String window_r = Utils.rcSEQ(window_f);
-
-				if (window_f.contains("N")) {
+				if (kmers.isPalindrome()) {
 					continue;
 				}
 
 				int middle_pos = i + (K / 2);
 
-				int compare = window_f.compareTo(window_r);
-				if (compare < 0) {
-					output.collect(
-							new Text(Utils.seqEncode(window_f)),
-							new Text(node.getNodeId() + "\t" + "f" + "\t"
-									+ middle_pos + "\t"
-									+ nodeSEQ.charAt(middle_pos) + "\t"
-									+ nodeQV.charAt(middle_pos)
-									+ "\t" + nodeSEQ.length()));
-				} else if (compare > 0) {
-					output.collect(
-							new Text(Utils.seqEncode(window_r)),
-							new Text(node.getNodeId() + "\t" + "r" + "\t"
-									+ middle_pos + "\t"
-									+ Utils.rcSEQ(nodeSEQ.charAt(middle_pos)) + "\t"
-									+ nodeQV.charAt(middle_pos)
-									+ "\t" + nodeSEQ.length()));
+				kmers.getCanonical(kmer, KmerWritable.TAG_NONE);
+
+				record.clear().append(node.getId());
+
+				if (kmers.isForward()) {
+					record.append('\t').append('f');
+					record.append('\t').append(middle_pos);
+					record.append('\t').append(node.getBase(middle_pos));
+				} else {
+					record.append('\t').append('r');
+					record.append('\t').append(middle_pos);
+					record.append('\t').append(Utils.rcSEQ(node.getBase(middle_pos)));
 				}
+				record.append('\t').append(nodeQV.charAt(middle_pos));
+				record.append('\t').append(node.getLen());
+
+				record.get(value);
+				output.collect(kmer, value);
 			}
 
+			alloc.count(reporter);
 		}
 	}
 
 	public static class PinchCorrectRecommendReducer extends MapReduceBase implements
-			Reducer<Text, Text, Text, Text> {
+			Reducer<KmerWritable, Text, Text, VoteWritable> {
+
+		private Text readid = new Text();
 
 		public class ReadInfo {
 			public String id;
@@ -146,42 +155,13 @@ public class PinchCorrectRecommend extends Configured implements Tool {
 			}
 		}
 
-		public class SuggestInfo {
-			public StringBuilder[] info;
-
-			public SuggestInfo(final int size) {
-				info = new StringBuilder[size];
-			}
-
-			public void append(final int pos, final char suggest) {
-				if (info[pos] == null) {
-					info[pos] = new StringBuilder();
-				}
-				info[pos].append(suggest);
-			}
-
-			public String toString() {
-				StringBuilder sb = new StringBuilder();
-
-				for (StringBuilder s : info) {
-					if (s != null) {
-						sb.append(s.toString());
-					}
-					sb.append('X');
-				}
-				sb.deleteCharAt(sb.length() - 1);
-
-				return sb.toString();
-			}
-		}
-
 		@Override
-		public void reduce(Text prefix, Iterator<Text> iter,
-				OutputCollector<Text, Text> output, Reporter reporter)
+		public void reduce(KmerWritable prefix, Iterator<Text> iter,
+				OutputCollector<Text, VoteWritable> output, Reporter reporter)
 				throws IOException {
 
 			ArrayList<ReadInfo> readlist = new ArrayList<ReadInfo>();
-			HashMap<String, SuggestInfo> out_list = new HashMap<String, SuggestInfo>();
+			HashMap<String, VoteWritable> out_list = new HashMap<String, VoteWritable>();
 
 			while (iter.hasNext()) {
 				// vals: [0]=id, [1]=dir, [2]=pos, [3]=seq, [4]=qv, [5]=length
@@ -285,12 +265,12 @@ public class PinchCorrectRecommend extends Configured implements Tool {
 						}
 
 						// pos from mapper is always dir f
-						SuggestInfo tmp_corrects = out_list.get(readitem.id);
+						VoteWritable tmp_corrects = out_list.get(readitem.id);
 						if (tmp_corrects == null) {
-							tmp_corrects = new SuggestInfo(readitem.length);
+							tmp_corrects = new VoteWritable();
 							out_list.put(readitem.id, tmp_corrects);
 						}
-						tmp_corrects.append(readitem.pos, chr);
+						tmp_corrects.add(readitem.pos, chr);
 
 						reporter.incrCounter("Brush", "fix_char", 1);
 					}
@@ -299,17 +279,16 @@ public class PinchCorrectRecommend extends Configured implements Tool {
 
 			readlist.clear();
 
-			for (HashMap.Entry<String, SuggestInfo> entry : out_list.entrySet()) {
-				output.collect(new Text(entry.getKey()),
-						new Text(Utils.MSGCORRECT + "\t" + Utils
-								.corrEncode(entry.getValue().toString())));
+			for (HashMap.Entry<String, VoteWritable> entry : out_list.entrySet()) {
+				readid.set(entry.getKey());
+				output.collect(readid, entry.getValue());
 			}
 
 			out_list.clear();
 		}
 	}
 
-	public RunningJob run(String inputPath, String outputPath) throws Exception {
+	public JobConf createJob(String inputPath, String outputPath) {
 		sLogger.info("Tool name: " + PinchCorrectRecommend.class.getSimpleName() + "  [1/5]");
 		sLogger.info(" - input: " + inputPath);
 		sLogger.info(" - output: " + outputPath);
@@ -322,18 +301,24 @@ public class PinchCorrectRecommend extends Configured implements Tool {
 		FileInputFormat.addInputPath(conf, new Path(inputPath));
 		FileOutputFormat.setOutputPath(conf, new Path(outputPath));
 
-		conf.setInputFormat(TextInputFormat.class);
-		conf.setOutputFormat(TextOutputFormat.class);
+		conf.setInputFormat(SequenceFileInputFormat.class);
+		conf.setOutputFormat(SequenceFileOutputFormat.class);
 
-		conf.setMapOutputKeyClass(Text.class);
+		conf.setMapOutputKeyClass(KmerWritable.class);
 		conf.setMapOutputValueClass(Text.class);
 
 		conf.setOutputKeyClass(Text.class);
-		conf.setOutputValueClass(Text.class);
+		conf.setOutputValueClass(VoteWritable.class);
 
 		conf.setMapperClass(PinchCorrectRecommendMapper.class);
 		conf.setReducerClass(PinchCorrectRecommendReducer.class);
 
+		return conf;
+	}
+
+	public RunningJob run(String inputPath, String outputPath) throws Exception {
+		JobConf conf = createJob(inputPath, outputPath);
+
 		// delete the output directory if it exists already
 		FileSystem.get(conf).delete(new Path(outputPath), true);
 
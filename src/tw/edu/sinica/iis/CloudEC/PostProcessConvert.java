@@ -29,7 +29,6 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.FileInputFormat;
 import org.apache.hadoop.mapred.FileOutputFormat;
@@ -40,7 +39,7 @@ import org.apache.hadoop.mapred.Mapper;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.RunningJob;
-import org.apache.hadoop.mapred.TextInputFormat;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
 import org.apache.hadoop.mapred.TextOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
@@ -50,13 +49,12 @@ public class PostProcessConvert extends Configured implements Tool {
 	private static final Logger sLogger = Logger.getLogger(PostProcessConvert.class);
 
 	private static class PostProcessConvertMapper extends MapReduceBase implements
-			Mapper<LongWritable, Text, Text, Text> {
+			Mapper<Text, ReadNodeWritable, Text, Text> {
 		@Override
-		public void map(LongWritable lineid, Text nodetxt,
+		public void map(Text nodeid, ReadNodeWritable node,
 				OutputCollector<Text, Text> output, Reporter reporter)
 				throws IOException {
-			Utils node = new Utils();
-			node.fromNodeMsg(nodetxt.toString());
+			node.setNodeId(nodeid);
 
 			// do not output reads containing unique kmer
 			if (node.isUnique()) {
@@ -73,7 +71,7 @@ public class PostProcessConvert extends Configured implements Tool {
 		}
 	}
 
-	public RunningJob run(String inputPath, String outputPath) throws Exception {
+	public JobConf createJob(String inputPath, String outputPath) {
 		sLogger.info("Tool name: " + PostProcessConvert.class.getSimpleName() + " [5/5]");
 		sLogger.info(" - input: " + inputPath);
 		sLogger.info(" - output: " + outputPath);
@@ -84,7 +82,7 @@ public class PostProcessConvert extends Configured implements Tool {
 		FileInputFormat.addInputPath(conf, new Path(inputPath));
 		FileOutputFormat.setOutputPath(conf, new Path(outputPath));
 
-		conf.setInputFormat(TextInputFormat.class);
+		conf.setInputFormat(SequenceFileInputFormat.class);
 		conf.setOutputFormat(TextOutputFormat.class);
 
 		conf.setMapOutputKeyClass(Text.class);
@@ -104,6 +102,12 @@ public class PostProcessConvert extends Configured implements Tool {
 		// Hadoop 0.21 and later
 		conf.setBoolean("mapreduce.output.compress", false);
 
+		return conf;
+	}
+
+	public RunningJob run(String inputPath, String outputPath) throws Exception {
+		JobConf conf = createJob(inputPath, outputPath);
+
 		// delete the output directory if it exists already
 		FileSystem.get(conf).delete(new Path(outputPath), true);
 
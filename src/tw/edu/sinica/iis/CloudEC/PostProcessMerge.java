@@ -33,7 +33,6 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
-import org.apache.hadoop.mapred.FileInputFormat;
 import org.apache.hadoop.mapred.FileOutputFormat;
 import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
@@ -43,8 +42,10 @@ import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.RunningJob;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
 import org.apache.hadoop.mapred.TextInputFormat;
-import org.apache.hadoop.mapred.TextOutputFormat;
+import org.apache.hadoop.mapred.lib.MultipleInputs;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.log4j.Logger;
@@ -52,59 +53,136 @@ import org.apache.log4j.Logger;
 public class PostProcessMerge extends Configured implements Tool {
 	private static final Logger sLogger = Logger.getLogger(PostProcessMerge.class);
 
-	public static class PostProcessMergeMapper extends MapReduceBase implements
-			Mapper<LongWritable, Text, Text, Text> {
+	// the raw reads, in the SFQ text format
+	public static class PostProcessMergeReadMapper extends MapReduceBase
+			implements Mapper<LongWritable, Text, Text, NodeMsgWritable> {
+
+		private NodeMsgWritable msg = new NodeMsgWritable();
+
+		private Text nodeid = new Text();
+		private Text update = new Text();
+
+		private AllocationCounter alloc = new AllocationCounter();
 
 		@Override
 		public void map(LongWritable lineid, Text nodetxt,
-				OutputCollector<Text, Text> output, Reporter reporter)
+				OutputCollector<Text, NodeMsgWritable> output, Reporter reporter)
 				throws IOException {
 
-			String vals[] = nodetxt.toString().split("\t", 2);
+			// [0]=id, [1]=message, split in place
+			byte[] bytes = nodetxt.getBytes();
+			int len = nodetxt.getLength();
+
+			int tab = 0;
+			while (tab < len && bytes[tab] != '\t') {
+				tab++;
+			}
+			if (tab == len) {
+				throw new IOException("Malformed update: " + nodetxt);
+			}
 
-			output.collect(new Text(vals[0]), new Text(vals[1]));
+			nodeid.set(bytes, 0, tab);
+			update.set(bytes, tab + 1, len - tab - 1);
+
+			msg.set(update);
+
+			output.collect(nodeid, msg);
+
+			alloc.count(reporter);
+		}
+	}
+
+	// the raw reads, from FastqInputFormat
+	public static class PostProcessMergeFastqMapper extends MapReduceBase
+			implements Mapper<LongWritable, FastqWritable, Text, NodeMsgWritable> {
+
+		private NodeMsgWritable msg = new NodeMsgWritable();
+
+		private Text update = new Text();
+		private RecordBuffer record = new RecordBuffer();
+
+		private AllocationCounter alloc = new AllocationCounter();
+
+		@Override
+		public void map(LongWritable offset, FastqWritable read,
+				OutputCollector<Text, NodeMsgWritable> output, Reporter reporter)
+				throws IOException {
+
+			// the message of PostProcessMergeReadMapper: SEQ and QV
+			record.clear().append(read.getSEQ()).append('\t');
+			record.append(read.getQV()).get(update);
+
+			msg.set(update);
+
+			output.collect(read.getId(), msg);
+
+			alloc.count(reporter);
+		}
+	}
+
+	// the corrected reads, in the intermediate read store
+	public static class PostProcessMergeNodeMapper extends MapReduceBase
+			implements Mapper<Text, ReadNodeWritable, Text, NodeMsgWritable> {
+
+		private NodeMsgWritable msg = new NodeMsgWritable();
+
+		private AllocationCounter alloc = new AllocationCounter();
+
+		@Override
+		public void map(Text nodeid, ReadNodeWritable node,
+				OutputCollector<Text, NodeMsgWritable> output, Reporter reporter)
+				throws IOException {
+
+			msg.set(node);
+
+			output.collect(nodeid, msg);
+
+			alloc.count(reporter);
 		}
 	}
 
 	public static class PostProcessMergeReducer extends MapReduceBase
-			implements Reducer<Text, Text, Text, Text> {
+			implements Reducer<Text, NodeMsgWritable, Text, ReadNodeWritable> {
 
 		@Override
-		public void reduce(Text nodeid, Iterator<Text> iter,
-				OutputCollector<Text, Text> output, Reporter reporter)
+		public void reduce(Text nodeid, Iterator<NodeMsgWritable> iter,
+				OutputCollector<Text, ReadNodeWritable> output, Reporter reporter)
 				throws IOException {
 
-			ArrayList<Utils> data = new ArrayList<Utils>();
+			ArrayList<ReadNodeWritable> data = new ArrayList<ReadNodeWritable>();
 
 			int main = -1;
 
 			while (iter.hasNext()) {
-				String[] vals = iter.next().toString().split("\t");
+				NodeMsgWritable val = iter.next();
 
-				Utils node = new Utils(nodeid.toString());
+				ReadNodeWritable node;
 
-				if (vals[0].equals(Utils.MSGNODE)) {
-					node.parseNodeMsg(vals, 0);
+				if (val.isNode()) {
+					node = val.getNode();
 					main = data.size();
-				} else if (vals.length == 2) {
+				} else {
+					String[] vals = val.getMessage().toString().split("\t");
+
+					if (vals.length != 2) {
+						continue;
+					}
+
+					node = new ReadNodeWritable(nodeid.toString());
 					node.setSEQ(vals[0].toUpperCase());
 					node.setQV(Utils.qvInputConvert(vals[1]));
 					node.setCoverage(1);
-				} else {
-					continue;
 				}
 
 				data.add(node);
 			}
 
 			if (data.size() == 1) {
-				output.collect(new Text(data.get(0).getNodeId()),
-						new Text(data.get(0).toNodeMsg()));
+				output.collect(nodeid, data.get(0));
 
 				reporter.incrCounter("Brush", "reads_ign", 1);
 			} else if (data.size() == 2 && main != -1) {
-				output.collect(new Text(data.get(main).getNodeId()),
-						new Text(data.get(main).toNodeMsg()));
+				output.collect(nodeid, data.get(main));
 
 				reporter.incrCounter("Brush", "reads_ec", 1);
 			} else {
@@ -116,31 +194,45 @@ public class PostProcessMerge extends Configured implements Tool {
 		}
 	}
 
-	public RunningJob run(String inputPath, String outputPath) throws Exception {
+	public JobConf createJob(String readPath, String nodePath,
+			String outputPath) {
 		sLogger.info("Tool name: " + PostProcessMerge.class.getSimpleName() + " [5/5]");
-		sLogger.info(" - input: " + inputPath);
+		sLogger.info(" - input: " + readPath + "," + nodePath);
 		sLogger.info(" - output: " + outputPath);
 
 		JobConf conf = new JobConf(PostProcessMerge.class);
-		conf.setJobName(PostProcessMerge.class.getSimpleName() + " " + inputPath);
+		conf.setJobName(PostProcessMerge.class.getSimpleName() + " " + readPath + "," + nodePath);
 
 		Config.initializeConfiguration(conf);
 
-		FileInputFormat.addInputPaths(conf, inputPath);
+		if (FastqInputFormat.isFastq(Config.INPUT_FORMAT, readPath)) {
+			MultipleInputs.addInputPath(conf, new Path(readPath),
+					FastqInputFormat.class, PostProcessMergeFastqMapper.class);
+		} else {
+			MultipleInputs.addInputPath(conf, new Path(readPath),
+					TextInputFormat.class, PostProcessMergeReadMapper.class);
+		}
+		MultipleInputs.addInputPath(conf, new Path(nodePath),
+				SequenceFileInputFormat.class, PostProcessMergeNodeMapper.class);
 		FileOutputFormat.setOutputPath(conf, new Path(outputPath));
 
-		conf.setInputFormat(TextInputFormat.class);
-		conf.setOutputFormat(TextOutputFormat.class);
+		conf.setOutputFormat(SequenceFileOutputFormat.class);
 
 		conf.setMapOutputKeyClass(Text.class);
-		conf.setMapOutputValueClass(Text.class);
+		conf.setMapOutputValueClass(NodeMsgWritable.class);
 
 		conf.setOutputKeyClass(Text.class);
-		conf.setOutputValueClass(Text.class);
+		conf.setOutputValueClass(ReadNodeWritable.class);
 
-		conf.setMapperClass(PostProcessMergeMapper.class);
 		conf.setReducerClass(PostProcessMergeReducer.class);
 
+		return conf;
+	}
+
+	public RunningJob run(String readPath, String nodePath, String outputPath)
+			throws Exception {
+		JobConf conf = createJob(readPath, nodePath, outputPath);
+
 		// delete the output directory if it exists already
 		FileSystem.get(conf).delete(new Path(outputPath), true);
 
@@ -149,10 +241,11 @@ public class PostProcessMerge extends Configured implements Tool {
 
 	@Override
 	public int run(String[] args) throws Exception {
-		String inputPath = "";
+		String readPath = "";
+		String nodePath = "";
 		String outputPath = "";
 
-		run(inputPath, outputPath);
+		run(readPath, nodePath, outputPath);
 
 		return 0;
 	}
@@ -40,8 +40,8 @@ import org.apache.hadoop.mapred.Mapper;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.RunningJob;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
 import org.apache.hadoop.mapred.TextInputFormat;
-import org.apache.hadoop.mapred.TextOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.log4j.Logger;
@@ -50,13 +50,20 @@ public class PreProcessConvert extends Configured implements Tool {
 	private static final Logger sLogger = Logger
 			.getLogger(PreProcessConvert.class);
 
-	public static class PreProcessConvertMapper extends MapReduceBase implements
-			Mapper<LongWritable, Text, Text, Text> {
+	// Checks a raw read and converts it to the read store, for the mappers
+	// of both input formats
+	public abstract static class PreProcessConvertBase extends MapReduceBase {
 
 		private static int K = 0;
 		private static boolean PINCHCORRECT = true;
 		private static boolean FILTERREADS = true;
 
+		private ReadNodeWritable node = new ReadNodeWritable();
+
+		// upper case bases and clamped QVs of the read
+		private byte[] seqbuf = new byte[0];
+		private byte[] qvbuf = new byte[0];
+
 		@Override
 		public void configure(JobConf job) {
 			K = job.getInt("K", 0);
@@ -64,68 +71,159 @@ public class PreProcessConvert extends Configured implements Tool {
 			FILTERREADS = (job.get("SHAVE_IGNORE", "on").equals("on") ? true : false);
 		}
 
-		@Override
-		public void map(LongWritable lineid, Text nodetxt,
-				OutputCollector<Text, Text> output, Reporter reporter)
+		protected void convert(final Text tag, final Text seq, final Text qscore,
+				OutputCollector<Text, ReadNodeWritable> output, Reporter reporter)
 				throws IOException {
 
-			String[] fields = nodetxt.toString().split("\t");
-
-			if (fields.length != 3) {
-				return;
-			}
-
-			String tag = fields[0];
-			String seq = fields[1].toUpperCase();
-			String qscore = fields[2].toString();
+			int len = seq.getLength();
 
 			// filter out inconsistent reads
-			if (seq.length() != qscore.length()) {
+			if (len != qscore.getLength()) {
 				reporter.incrCounter("Brush", "reads_skipped", 1);
 				return;
 			}
 
 			// filter out read of length < K
-			if (seq.length() < K + (PINCHCORRECT ? 1 : 0)) {
+			if (len < K + (PINCHCORRECT ? 1 : 0)) {
 				reporter.incrCounter("Brush", "reads_skipped", 1);
 				return;
 			}
 
+			if (seqbuf.length < len) {
+				seqbuf = new byte[len];
+				qvbuf = new byte[len];
+			}
+
+			// one scan for the upper case and the counts of the bases
+			byte[] bytes = seq.getBytes();
+			int cnt_a = 0;
+			int cnt_n = 0;
+			int cnt_other = 0;
+
+			for (int i = 0; i < len; i++) {
+				byte base = bytes[i];
+
+				if (base >= 'a' && base <= 'z') {
+					base -= 'a' - 'A';
+				}
+				seqbuf[i] = base;
+
+				switch (base) {
+				case 'A':
+					cnt_a++;
+					break;
+				case 'C':
+				case 'G':
+				case 'T':
+					break;
+				case 'N':
+					cnt_n++;
+					cnt_other++;
+					break;
+				default:
+					cnt_other++;
+				}
+			}
+
 			// filter out sequences have N bases, or has highly N bases
 			if (FILTERREADS) {
-				if (seq.matches(".*[^ACGT].*")) {
+				if (cnt_other > 0) {
 					reporter.incrCounter("Brush", "reads_skipped", 1);
 					return;
 				}
 			} else {
-				if (Utils.seqIsPoly(seq, 'N')) {
+				if (Utils.seqIsPoly(cnt_n, len)) {
 					reporter.incrCounter("Brush", "reads_poly", 1);
 					return;
 				}
 			}
 
 			// filter out the poly-A reads
-			if (Utils.seqIsPoly(seq, 'A')) {
+			if (Utils.seqIsPoly(cnt_a, len)) {
 				reporter.incrCounter("Brush", "reads_poly", 1);
 				return;
 			}
 
 			// Convert read/qv to internal format, and emit
-			Utils node = new Utils(tag);
+			Utils.qvInputConvert(qscore.getBytes(), len, qvbuf);
 
-			node.setSEQ(seq);
-			node.setQV(Utils.qvInputConvert(qscore));
+			node.clear();
+			node.setNodeId(tag);
+			node.setSEQ(seqbuf, len);
+			node.setQV(qvbuf, len);
 			node.setCoverage(1);
 
 			reporter.incrCounter("Brush", "reads_good", 1);
 			reporter.incrCounter("Brush", "reads_goodbp", node.getLen());
 			reporter.incrCounter("Brush", "reads_gccnts", node.getGCCnt());
 
-			output.collect(new Text(node.getNodeId()), new Text(node.toNodeMsg()));
+			output.collect(node.getId(), node);
 		}
 	}
 
-	public RunningJob run(String inputPath, String outputPath) throws Exception {
+	// the reads in the SFQ text format: id, SEQ and QV separated by tabs
+	public static class PreProcessConvertMapper extends PreProcessConvertBase
+			implements Mapper<LongWritable, Text, Text, ReadNodeWritable> {
+
+		private Text tag = new Text();
+		private Text seq = new Text();
+		private Text qscore = new Text();
+
+		@Override
+		public void map(LongWritable lineid, Text nodetxt,
+				OutputCollector<Text, ReadNodeWritable> output, Reporter reporter)
+				throws IOException {
+
+			byte[] bytes = nodetxt.getBytes();
+			int len = nodetxt.getLength();
+
+			// trailing empty fields do not count, as in String.split()
+			while (len > 0 && bytes[len - 1] == '\t') {
+				len--;
+			}
+
+			int tab1 = -1;
+			int tab2 = -1;
+
+			for (int i = 0; i < len; i++) {
+				if (bytes[i] == '\t') {
+					if (tab1 < 0) {
+						tab1 = i;
+					} else if (tab2 < 0) {
+						tab2 = i;
+					} else {
+						return;
+					}
+				}
+			}
+
+			if (tab2 < 0) {
+				return;
+			}
+
+			tag.set(bytes, 0, tab1);
+			seq.set(bytes, tab1 + 1, tab2 - tab1 - 1);
+			qscore.set(bytes, tab2 + 1, len - tab2 - 1);
+
+			convert(tag, seq, qscore, output, reporter);
+		}
+	}
+
+	// the reads of FastqInputFormat
+	public static class PreProcessConvertFastqMapper extends
+			PreProcessConvertBase implements
+			Mapper<LongWritable, FastqWritable, Text, ReadNodeWritable> {
+
+		@Override
+		public void map(LongWritable offset, FastqWritable read,
+				OutputCollector<Text, ReadNodeWritable> output, Reporter reporter)
+				throws IOException {
+
+			convert(read.getId(), read.getSEQ(), read.getQV(), output, reporter);
+		}
+	}
+
+	public JobConf createJob(String inputPath, String outputPath) {
 		sLogger.info("Tool name: " + PreProcessConvert.class.getSimpleName() + " [0/5]");
 		sLogger.info(" - input: " + inputPath);
 		sLogger.info(" - output: " + outputPath);
@@ -138,18 +236,29 @@ public class PreProcessConvert extends Configured implements Tool {
 		FileInputFormat.addInputPath(conf, new Path(inputPath));
 		FileOutputFormat.setOutputPath(conf, new Path(outputPath));
 
-		conf.setInputFormat(TextInputFormat.class);
-		conf.setOutputFormat(TextOutputFormat.class);
+		if (FastqInputFormat.isFastq(Config.INPUT_FORMAT, inputPath)) {
+			conf.setInputFormat(FastqInputFormat.class);
+			conf.setMapperClass(PreProcessConvertFastqMapper.class);
+		} else {
+			conf.setInputFormat(TextInputFormat.class);
+			conf.setMapperClass(PreProcessConvertMapper.class);
+		}
+		conf.setOutputFormat(SequenceFileOutputFormat.class);
 
 		conf.setMapOutputKeyClass(Text.class);
-		conf.setMapOutputValueClass(Text.class);
+		conf.setMapOutputValueClass(ReadNodeWritable.class);
 
 		conf.setOutputKeyClass(Text.class);
-		conf.setOutputValueClass(Text.class);
+		conf.setOutputValueClass(ReadNodeWritable.class);
 
-		conf.setMapperClass(PreProcessConvertMapper.class);
 		conf.setNumReduceTasks(0);
 
+		return conf;
+	}
+
+	public RunningJob run(String inputPath, String outputPath) throws Exception {
+		JobConf conf = createJob(inputPath, outputPath);
+
 		// delete the output directory if it exists already
 		FileSystem.get(conf).delete(new Path(outputPath), true);
 
@@ -0,0 +1,665 @@
+/*
+ * (C) Copyright 2017 The CloudEC Project and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Contributors:
+ *      Wei-Chun Chung (wcchung@iis.sinica.edu.tw)
+ *      Chien-Chih Chen (rocky@iis.sinica.edu.tw)
+ * 
+ * CloudEC Project:
+ *      https://github.com/CSCLabTW/CloudEC/
+ */
+
+package tw.edu.sinica.iis.CloudEC;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.text.DecimalFormat;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+// A read (node) with typed fields, replacing the tab-separated node message.
+// Bases are kept as 2-bit codes (see KmerWritable) plus a mask of N bases.
+public class ReadNodeWritable implements Writable {
+	// Field flags of the binary form
+	private static final int HAS_QV = 0x01;
+	private static final int HAS_N = 0x02;
+	private static final int IS_UNIQUE = 0x04;
+	private static final int HAS_IGNF = 0x08;
+	private static final int HAS_IGNP = 0x10;
+
+	private static final char[] hex = { '0', '1', '2', '3', '4', '5', '6', '7',
+			'8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
+
+	private final Text id = new Text();
+
+	// sequence: 32 bases per word, base i at bits 2 * (i % 32)
+	private int length = 0;
+	private long[] seq = new long[0];
+
+	// N bases: 64 bases per word, base i at bit (i % 64)
+	private boolean hasN = false;
+	private long[] nmask = new long[0];
+
+	// QV: raw ASCII bytes, qvLength == -1 if there is no QV
+	private int qvLength = -1;
+	private byte[] qv = new byte[0];
+
+	private float coverage = 0;
+	private boolean unique = false;
+
+	// ignore lists: one bit per kmer position, ignXBits == 0 if absent
+	private int ignFBits = 0;
+	private long[] ignF = new long[0];
+	private int ignPBits = 0;
+	private long[] ignP = new long[0];
+
+	// decoded SEQ and QV, built on first use and dropped on any change
+	private String seqView = null;
+	private String qvView = null;
+
+	private DecimalFormat df = null;
+
+	public ReadNodeWritable() {
+	}
+
+	public ReadNodeWritable(final String nid) {
+		id.set(nid);
+	}
+
+	public void clear() {
+		id.clear();
+		length = 0;
+		hasN = false;
+		qvLength = -1;
+		coverage = 0;
+		unique = false;
+		ignFBits = 0;
+		ignPBits = 0;
+		seqView = null;
+		qvView = null;
+	}
+
+	private static long[] ensureWords(final long[] words, final int size) {
+		if (words.length >= size) {
+			return words;
+		}
+
+		return new long[Math.max(size, words.length * 2)];
+	}
+
+	private static void clearWords(final long[] words, final int size) {
+		for (int i = 0; i < size; i++) {
+			words[i] = 0;
+		}
+	}
+
+	/* helper functions */
+
+	public Text getId() {
+		return id;
+	}
+
+	public String getNodeId() {
+		return id.toString();
+	}
+
+	public void setNodeId(final String nid) {
+		id.set(nid);
+	}
+
+	public void setNodeId(final Text nid) {
+		id.set(nid);
+	}
+
+	public float getCoverage() {
+		return coverage;
+	}
+
+	public void setCoverage(final float cov) {
+		coverage = cov;
+	}
+
+	public int getLen() {
+		return length;
+	}
+
+	// 2-bit code of a base, only meaningful if !isN(i)
+	public int getCode(final int i) {
+		return (int) (seq[i >>> 5] >>> ((i & 0x1F) << 1)) & 0x03;
+	}
+
+	public boolean isN(final int i) {
+		return hasN && (nmask[i >>> 6] & (1L << i)) != 0;
+	}
+
+	public char getBase(final int i) {
+		if (isN(i)) {
+			return 'N';
+		}
+
+		return KmerWritable.code2base(getCode(i));
+	}
+
+	public String getSEQ() {
+		if (seqView != null) {
+			return seqView;
+		}
+
+		StringBuilder sb = new StringBuilder(length);
+
+		for (int i = 0; i < length; i++) {
+			sb.append(getBase(i));
+		}
+
+		seqView = sb.toString();
+
+		return seqView;
+	}
+
+	// Non-ACGT bases are stored as N
+	public void setSEQ(final String s) {
+		seqView = null;
+		length = s.length();
+
+		int words = (length + 31) >>> 5;
+		seq = ensureWords(seq, words);
+		clearWords(seq, words);
+
+		int nwords = (length + 63) >>> 6;
+		nmask = ensureWords(nmask, nwords);
+		clearWords(nmask, nwords);
+		hasN = false;
+
+		for (int i = 0; i < length; i++) {
+			int code = KmerWritable.base2code(s.charAt(i));
+
+			if (code < 0) {
+				nmask[i >>> 6] |= (1L << i);
+				hasN = true;
+			} else {
+				seq[i >>> 5] |= ((long) code) << ((i & 0x1F) << 1);
+			}
+		}
+	}
+
+	// The bases s[0, len) as ASCII, see setSEQ(String)
+	public void setSEQ(final byte[] s, final int len) {
+		seqView = null;
+		length = len;
+
+		int words = (length + 31) >>> 5;
+		seq = ensureWords(seq, words);
+		clearWords(seq, words);
+
+		int nwords = (length + 63) >>> 6;
+		nmask = ensureWords(nmask, nwords);
+		clearWords(nmask, nwords);
+		hasN = false;
+
+		for (int i = 0; i < length; i++) {
+			int code = KmerWritable.base2code((char) (s[i] & 0xFF));
+
+			if (code < 0) {
+				nmask[i >>> 6] |= (1L << i);
+				hasN = true;
+			} else {
+				seq[i >>> 5] |= ((long) code) << ((i & 0x1F) << 1);
+			}
+		}
+	}
+
+	// C (01) and G (10) are the codes with different bits, N bases are
+	// stored as A (00) and the unused bits of the last word are zero
+	public int getGCCnt() {
+		int gccnt = 0;
+		int words = (length + 31) >>> 5;
+
+		for (int i = 0; i < words; i++) {
+			gccnt += Long.bitCount((seq[i] ^ (seq[i] >>> 1))
+					& 0x5555555555555555L);
+		}
+
+		return gccnt;
+	}
+
+	public boolean containsQV() {
+		return qvLength >= 0;
+	}
+
+	public String getQV() {
+		if (qvLength < 0) {
+			return null;
+		}
+
+		if (qvView != null) {
+			return qvView;
+		}
+
+		StringBuilder sb = new StringBuilder(qvLength);
+
+		for (int i = 0; i < qvLength; i++) {
+			sb.append((char) qv[i]);
+		}
+
+		qvView = sb.toString();
+
+		return qvView;
+	}
+
+	public void setQV(final String q) {
+		qvView = null;
+		qvLength = q.length();
+
+		if (qv.length < qvLength) {
+			qv = new byte[Math.max(qvLength, qv.length * 2)];
+		}
+
+		for (int i = 0; i < qvLength; i++) {
+			qv[i] = (byte) q.charAt(i);
+		}
+	}
+
+	public void setQV(final byte[] q, final int len) {
+		qvView = null;
+		qvLength = len;
+
+		if (qv.length < qvLength) {
+			qv = new byte[Math.max(qvLength, qv.length * 2)];
+		}
+
+		System.arraycopy(q, 0, qv, 0, qvLength);
+	}
+
+	public void setQV(final int i, final char q) {
+		qvView = null;
+		qv[i] = (byte) q;
+	}
+
+	// Deflate, smooth and inflate the QV in place, see Utils.qvSmooth()
+	public void smoothQV() {
+		qvView = null;
+
+		if (qvLength > 0) {
+			Utils.qvSmooth(qv, qvLength, qv, true, true);
+		}
+	}
+
+	public void removeQV() {
+		qvView = null;
+		qvLength = -1;
+	}
+
+	public boolean isUnique() {
+		return unique;
+	}
+
+	public void setOrRemoveUnique(final boolean unique1) {
+		unique = unique1;
+	}
+
+	// Ignore list of IGNType, or null if the node has none
+	public long[] getIGN(final String IGNType) {
+		if (IGNType.equals(Utils.IGNF)) {
+			return (ignFBits > 0) ? ignF : null;
+		} else if (IGNType.equals(Utils.IGNP)) {
+			return (ignPBits > 0) ? ignP : null;
+		}
+
+		return null;
+	}
+
+	public static boolean isIgnored(final long[] ign, final int pos) {
+		return ign != null && (pos >>> 6) < ign.length
+				&& (ign[pos >>> 6] & (1L << pos)) != 0;
+	}
+
+	// First position >= pos which is not ignored, words of 64 ignored
+	// positions are skipped at once
+	public static int nextNotIgnored(final long[] ign, final int pos) {
+		if (ign == null || (pos >>> 6) >= ign.length) {
+			return pos;
+		}
+
+		int w = pos >>> 6;
+		long free = ~ign[w] & (-1L << pos);
+
+		while (free == 0) {
+			if (++w >= ign.length) {
+				return w << 6;
+			}
+
+			free = ~ign[w];
+		}
+
+		return (w << 6) + Long.numberOfTrailingZeros(free);
+	}
+
+	// Number of ignored positions of IGNType
+	public int getIGNCount(final String IGNType) {
+		long[] ign = getIGN(IGNType);
+
+		if (ign == null) {
+			return 0;
+		}
+
+		int cnt = 0;
+
+		for (int i = 0; i < ign.length; i++) {
+			cnt += Long.bitCount(ign[i]);
+		}
+
+		return cnt;
+	}
+
+	// Set up the ignore list of IGNType from positions (of nbits positions)
+	public void setIGN(final String IGNType, final int nbits,
+			final Iterable<Integer> positions) {
+		int words = (nbits + 63) >>> 6;
+
+		long[] ign = ensureWords(IGNType.equals(Utils.IGNF) ? ignF : ignP,
+				words);
+		clearWords(ign, ign.length);
+
+		for (int pos : positions) {
+			ign[pos >>> 6] |= (1L << pos);
+		}
+
+		if (IGNType.equals(Utils.IGNF)) {
+			ignF = ign;
+			ignFBits = nbits;
+		} else {
+			ignP = ign;
+			ignPBits = nbits;
+		}
+	}
+
+	public void removeIGN(final String IGNType) {
+		if (IGNType.equals(Utils.IGNF)) {
+			ignFBits = 0;
+		} else if (IGNType.equals(Utils.IGNP)) {
+			ignPBits = 0;
+		}
+	}
+
+	/* Text form, compatible with the node message */
+
+	private static void appendHex(final StringBuilder sb, final long[] ign,
+			final int nbits) {
+		for (int i = 0; i + 4 <= nbits; i += 4) {
+			int b = 0;
+
+			for (int j = i; j < i + 4; j++) {
+				b <<= 1;
+
+				if (isIgnored(ign, j)) {
+					b |= 0x01;
+				}
+			}
+
+			sb.append(hex[b]);
+		}
+	}
+
+	private static long[] parseHex(final String hexstr, long[] ign) {
+		int nbits = hexstr.length() * 4;
+
+		ign = ensureWords(ign, (nbits + 63) >>> 6);
+		clearWords(ign, ign.length);
+
+		for (int i = 0; i < hexstr.length(); i++) {
+			int c = hexstr.charAt(i) - '0';
+			if (c > 10) {
+				c = c - 7;
+			}
+
+			for (int j = 0; j < 4; j++) {
+				if ((c & (0x08 >>> j)) != 0) {
+					int pos = i * 4 + j;
+					ign[pos >>> 6] |= (1L << pos);
+				}
+			}
+		}
+
+		return ign;
+	}
+
+	private String formatCoverage() {
+		if (coverage == (int) coverage) {
+			return Integer.toString((int) coverage) + ".00";
+		}
+
+		if (df == null) {
+			df = new DecimalFormat("0.00");
+		}
+
+		return df.format(coverage);
+	}
+
+	public String toNodeMsg() {
+		return toNodeMsg(false);
+	}
+
+	public String toNodeMsg(final boolean outputNodeID) {
+		StringBuilder sb = new StringBuilder();
+
+		if (outputNodeID) {
+			sb.append(id.toString());
+			sb.append("\t");
+		}
+
+		sb.append(Utils.MSGNODE);
+
+		sb.append("\t*");
+		sb.append(Utils.SEQ);
+		sb.append("\t");
+		sb.append(Utils.seqEncode(getSEQ()));
+
+		if (containsQV()) {
+			sb.append("\t*");
+			sb.append(Utils.QV);
+			sb.append("\t");
+			sb.append(Utils.qvEncode(getQV()));
+		}
+
+		sb.append("\t*");
+		sb.append(Utils.COVERAGE);
+		sb.append("\t");
+		sb.append(formatCoverage());
+
+		if (unique) {
+			sb.append("\t*");
+			sb.append(Utils.UNIQUE);
+			sb.append("\t");
+			sb.append("1");
+		}
+
+		if (ignFBits > 0) {
+			sb.append("\t*");
+			sb.append(Utils.IGNF);
+			sb.append("\t");
+			appendHex(sb, ignF, ignFBits);
+		}
+
+		if (ignPBits > 0) {
+			sb.append("\t*");
+			sb.append(Utils.IGNP);
+			sb.append("\t");
+			appendHex(sb, ignP, ignPBits);
+		}
+
+		return sb.toString();
+	}
+
+	public void fromNodeMsg(final String nodestr) throws IOException {
+		String[] items = nodestr.split("\t");
+
+		id.set(items[0]);
+		parseNodeMsg(items, 1);
+	}
+
+	public void parseNodeMsg(final String[] items, int offset)
+			throws IOException {
+		if (!items[offset].equals(Utils.MSGNODE)) {
+			throw new IOException("Unknown code: " + items[offset]);
+		}
+
+		String id1 = id.toString();
+		clear();
+		id.set(id1);
+
+		String type = null;
+
+		offset++;
+
+		while (offset < items.length) {
+			if (items[offset].charAt(0) == '*' && items[offset].length() == 2) {
+				type = items[offset].substring(1);
+			} else if (type != null) {
+				if (type.equals(Utils.SEQ)) {
+					setSEQ(Utils.seqDecode(items[offset]));
+				} else if (type.equals(Utils.QV)) {
+					setQV(Utils.qvDecode(items[offset]));
+				} else if (type.equals(Utils.COVERAGE)) {
+					coverage = Float.parseFloat(items[offset]);
+				} else if (type.equals(Utils.UNIQUE)) {
+					unique = items[offset].equals("1");
+				} else if (type.equals(Utils.IGNF)) {
+					ignF = parseHex(items[offset], ignF);
+					ignFBits = items[offset].length() * 4;
+				} else if (type.equals(Utils.IGNP)) {
+					ignP = parseHex(items[offset], ignP);
+					ignPBits = items[offset].length() * 4;
+				}
+			}
+
+			offset++;
+		}
+	}
+
+	/* Binary form, the id is not included since it is the record key */
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		int flags = 0;
+		flags |= containsQV() ? HAS_QV : 0;
+		flags |= hasN ? HAS_N : 0;
+		flags |= unique ? IS_UNIQUE : 0;
+		flags |= (ignFBits > 0) ? HAS_IGNF : 0;
+		flags |= (ignPBits > 0) ? HAS_IGNP : 0;
+		out.writeByte(flags);
+
+		WritableUtils.writeVInt(out, length);
+		for (int i = 0; i < (length + 31) >>> 5; i++) {
+			out.writeLong(seq[i]);
+		}
+
+		if (hasN) {
+			for (int i = 0; i < (length + 63) >>> 6; i++) {
+				out.writeLong(nmask[i]);
+			}
+		}
+
+		if (containsQV()) {
+			WritableUtils.writeVInt(out, qvLength);
+			out.write(qv, 0, qvLength);
+		}
+
+		out.writeFloat(coverage);
+
+		if (ignFBits > 0) {
+			WritableUtils.writeVInt(out, ignFBits);
+			for (int i = 0; i < (ignFBits + 63) >>> 6; i++) {
+				out.writeLong(ignF[i]);
+			}
+		}
+
+		if (ignPBits > 0) {
+			WritableUtils.writeVInt(out, ignPBits);
+			for (int i = 0; i < (ignPBits + 63) >>> 6; i++) {
+				out.writeLong(ignP[i]);
+			}
+		}
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		seqView = null;
+		qvView = null;
+
+		int flags = in.readUnsignedByte();
+
+		length = WritableUtils.readVInt(in);
+		int words = (length + 31) >>> 5;
+		seq = ensureWords(seq, words);
+		for (int i = 0; i < words; i++) {
+			seq[i] = in.readLong();
+		}
+
+		hasN = (flags & HAS_N) != 0;
+		if (hasN) {
+			int nwords = (length + 63) >>> 6;
+			nmask = ensureWords(nmask, nwords);
+			for (int i = 0; i < nwords; i++) {
+				nmask[i] = in.readLong();
+			}
+		}
+
+		if ((flags & HAS_QV) != 0) {
+			qvLength = WritableUtils.readVInt(in);
+			if (qv.length < qvLength) {
+				qv = new byte[Math.max(qvLength, qv.length * 2)];
+			}
+			in.readFully(qv, 0, qvLength);
+		} else {
+			qvLength = -1;
+		}
+
+		coverage = in.readFloat();
+
+		unique = (flags & IS_UNIQUE) != 0;
+
+		ignFBits = 0;
+		if ((flags & HAS_IGNF) != 0) {
+			ignFBits = WritableUtils.readVInt(in);
+			ignF = readWords(in, ignF, (ignFBits + 63) >>> 6);
+		}
+
+		ignPBits = 0;
+		if ((flags & HAS_IGNP) != 0) {
+			ignPBits = WritableUtils.readVInt(in);
+			ignP = readWords(in, ignP, (ignPBits + 63) >>> 6);
+		}
+	}
+
+	private static long[] readWords(final DataInput in, long[] words,
+			final int size) throws IOException {
+		words = ensureWords(words, size);
+		clearWords(words, words.length);
+
+		for (int i = 0; i < size; i++) {
+			words[i] = in.readLong();
+		}
+
+		return words;
+	}
+
+	@Override
+	public String toString() {
+		return toNodeMsg(true);
+	}
+}
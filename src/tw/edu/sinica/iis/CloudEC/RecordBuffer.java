@@ -0,0 +1,115 @@
+/*
+ * (C) Copyright 2017 The CloudEC Project and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Contributors:
+ *      Wei-Chun Chung (wcchung@iis.sinica.edu.tw)
+ *      Chien-Chih Chen (rocky@iis.sinica.edu.tw)
+ * 
+ * CloudEC Project:
+ *      https://github.com/CSCLabTW/CloudEC/
+ */
+
+
+package tw.edu.sinica.iis.CloudEC;
+
+import java.nio.charset.StandardCharsets;
+
+import org.apache.hadoop.io.Text;
+
+// An ASCII record of tab-separated fields built in place, and handed to a
+// reusable Text, so emitting a record does not go through a String.
+public class RecordBuffer {
+	private byte[] buf = new byte[256];
+	private int len = 0;
+
+	public RecordBuffer clear() {
+		len = 0;
+		return this;
+	}
+
+	public int getLength() {
+		return len;
+	}
+
+	private void ensure(final int n) {
+		if (len + n > buf.length) {
+			byte[] tmp = new byte[Math.max(buf.length * 2, len + n)];
+			System.arraycopy(buf, 0, tmp, 0, len);
+			buf = tmp;
+		}
+	}
+
+	public RecordBuffer append(final char c) {
+		ensure(1);
+		buf[len++] = (byte) c;
+		return this;
+	}
+
+	// chars of s in [start, end), all of them ASCII
+	public RecordBuffer append(final CharSequence s, final int start,
+			final int end) {
+		ensure(end - start);
+		for (int i = start; i < end; i++) {
+			buf[len++] = (byte) s.charAt(i);
+		}
+		return this;
+	}
+
+	public RecordBuffer append(final CharSequence s) {
+		return append(s, 0, s.length());
+	}
+
+	// the UTF-8 bytes of t as they are
+	public RecordBuffer append(final Text t) {
+		ensure(t.getLength());
+		System.arraycopy(t.getBytes(), 0, buf, len, t.getLength());
+		len += t.getLength();
+		return this;
+	}
+
+	// decimal digits of v
+	public RecordBuffer append(final int v) {
+		ensure(11);
+
+		long x = v;
+		if (x < 0) {
+			buf[len++] = '-';
+			x = -x;
+		}
+
+		int start = len;
+		do {
+			buf[len++] = (byte) ('0' + x % 10);
+			x /= 10;
+		} while (x > 0);
+
+		for (int i = start, j = len - 1; i < j; i++, j--) {
+			byte tmp = buf[i];
+			buf[i] = buf[j];
+			buf[j] = tmp;
+		}
+
+		return this;
+	}
+
+	public void get(final Text text) {
+		text.set(buf, 0, len);
+	}
+
+	@Override
+	public String toString() {
+		return new String(buf, 0, len, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,296 @@
+/*
+ * (C) Copyright 2017 The CloudEC Project and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Contributors:
+ *      Wei-Chun Chung (wcchung@iis.sinica.edu.tw)
+ *      Chien-Chih Chen (rocky@iis.sinica.edu.tw)
+ * 
+ * CloudEC Project:
+ *      https://github.com/CSCLabTW/CloudEC/
+ */
+
+
+package tw.edu.sinica.iis.CloudEC;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.Task;
+
+// Counters of all jobs of a run, with the totals of each stage and each
+// round of it, written as JSON:
+//
+// { "start": ..., "duration_ms": ..., "input_bases": ...,
+//   "total": { "jobs", "duration_ms", "counters", "derived" },
+//   "stages": [ { "stage", <totals>, "rounds": [ { "round", <totals> } ],
+//                 "jobs": [ { "step", "round", "job", <totals> } ] } ] }
+//
+// The counters are grouped by their Hadoop group name. The derived ratios
+// are only given if their counters are there.
+public class RunReport {
+	private static final String TASK = Task.Counter.class.getName();
+
+	// counters of one job, or the sum of several
+	private static class Totals {
+		int jobs = 0;
+		long millis = 0;
+		private final Map<String, Map<String, Long>> counters = new TreeMap<String, Map<String, Long>>();
+
+		void add(final Totals other) {
+			jobs += other.jobs;
+			millis += other.millis;
+
+			for (Map.Entry<String, Map<String, Long>> group : other.counters
+					.entrySet()) {
+				for (Map.Entry<String, Long> c : group.getValue().entrySet()) {
+					add(group.getKey(), c.getKey(), c.getValue());
+				}
+			}
+		}
+
+		void add(final String group, final String name, final long value) {
+			Map<String, Long> g = counters.get(group);
+			if (g == null) {
+				g = new TreeMap<String, Long>();
+				counters.put(group, g);
+			}
+
+			Long v = g.get(name);
+			g.put(name, (v == null) ? value : v + value);
+		}
+
+		long get(final String group, final String name) {
+			Map<String, Long> g = counters.get(group);
+			Long v = (g == null) ? null : g.get(name);
+
+			return (v == null) ? -1 : v;
+		}
+	}
+
+	private static class Job extends Totals {
+		private String stage;
+		private long round;
+		private String step;
+		private String id;
+	}
+
+	private final ArrayList<Job> jobs = new ArrayList<Job>();
+
+	private long inputBases = 0;
+
+	public void setInputBases(final long bases) {
+		inputBases = bases;
+	}
+
+	public long getInputBases() {
+		return inputBases;
+	}
+
+	public synchronized void add(final String stage, final long round,
+			final String step, final String id, final long millis,
+			final Counters counters) {
+		Job job = new Job();
+		job.stage = stage;
+		job.round = round;
+		job.step = step;
+		job.id = id;
+		job.jobs = 1;
+		job.millis = millis;
+
+		for (Counters.Group group : counters) {
+			for (Counters.Counter c : group) {
+				job.add(group.getName(), c.getName(), c.getCounter());
+			}
+		}
+
+		jobs.add(job);
+	}
+
+	public void write(final String path, final String start,
+			final long millis) throws IOException {
+		Totals total = new Totals();
+		Map<String, Totals> stages = new LinkedHashMap<String, Totals>();
+		Map<String, Map<Long, Totals>> rounds = new LinkedHashMap<String, Map<Long, Totals>>();
+
+		for (Job job : jobs) {
+			total.add(job);
+
+			if (!stages.containsKey(job.stage)) {
+				stages.put(job.stage, new Totals());
+				rounds.put(job.stage, new TreeMap<Long, Totals>());
+			}
+			stages.get(job.stage).add(job);
+
+			if (job.round > 0) {
+				Map<Long, Totals> r = rounds.get(job.stage);
+				if (!r.containsKey(job.round)) {
+					r.put(job.round, new Totals());
+				}
+				r.get(job.round).add(job);
+			}
+		}
+
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("{\n");
+		sb.append("  \"start\": ").append(quote(start)).append(",\n");
+		sb.append("  \"duration_ms\": ").append(millis).append(",\n");
+		sb.append("  \"input_bases\": ").append(inputBases).append(",\n");
+		sb.append("  \"total\": {");
+		totals(sb, total, "    ");
+		sb.append("\n  },\n");
+		sb.append("  \"stages\": [");
+
+		String sep = "";
+		for (Map.Entry<String, Totals> stage : stages.entrySet()) {
+			sb.append(sep).append("\n    {\n");
+			sb.append("      \"stage\": ").append(quote(stage.getKey())).append(",");
+			totals(sb, stage.getValue(), "      ");
+
+			sb.append(",\n      \"rounds\": [");
+			String rsep = "";
+			for (Map.Entry<Long, Totals> round : rounds.get(stage.getKey())
+					.entrySet()) {
+				sb.append(rsep).append("\n        {\n");
+				sb.append("          \"round\": ").append(round.getKey()).append(",");
+				totals(sb, round.getValue(), "          ");
+				sb.append("\n        }");
+				rsep = ",";
+			}
+			sb.append(rsep.isEmpty() ? "]" : "\n      ]");
+
+			sb.append(",\n      \"jobs\": [");
+			String jsep = "";
+			for (Job job : jobs) {
+				if (!job.stage.equals(stage.getKey())) {
+					continue;
+				}
+
+				sb.append(jsep).append("\n        {\n");
+				sb.append("          \"step\": ").append(quote(job.step)).append(",\n");
+				sb.append("          \"round\": ").append(job.round).append(",\n");
+				sb.append("          \"job\": ").append(quote(job.id)).append(",");
+				totals(sb, job, "          ");
+				sb.append("\n        }");
+				jsep = ",";
+			}
+			sb.append(jsep.isEmpty() ? "]" : "\n      ]");
+
+			sb.append("\n    }");
+			sep = ",";
+		}
+		sb.append(sep.isEmpty() ? "]" : "\n  ]");
+		sb.append("\n}\n");
+
+		Writer out = new OutputStreamWriter(new FileOutputStream(path), "UTF-8");
+		try {
+			out.write(sb.toString());
+		} finally {
+			out.close();
+		}
+	}
+
+	private void totals(final StringBuilder sb, final Totals t,
+			final String indent) {
+		sb.append("\n").append(indent).append("\"jobs\": ").append(t.jobs).append(",");
+		sb.append("\n").append(indent).append("\"duration_ms\": ").append(t.millis).append(",");
+
+		sb.append("\n").append(indent).append("\"counters\": {");
+		String gsep = "";
+		for (Map.Entry<String, Map<String, Long>> group : t.counters.entrySet()) {
+			sb.append(gsep).append("\n").append(indent).append("  ")
+					.append(quote(group.getKey())).append(": {");
+			String csep = "";
+			for (Map.Entry<String, Long> c : group.getValue().entrySet()) {
+				sb.append(csep).append("\n").append(indent).append("    ")
+						.append(quote(c.getKey())).append(": ").append(c.getValue());
+				csep = ",";
+			}
+			sb.append("\n").append(indent).append("  }");
+			gsep = ",";
+		}
+		sb.append(gsep.isEmpty() ? "}" : "\n" + indent + "}").append(",");
+
+		// ratios for comparing runs of different sizes
+		Map<String, Double> derived = new LinkedHashMap<String, Double>();
+
+		long mapIn = t.get(TASK, "MAP_INPUT_RECORDS");
+		long mapOut = t.get(TASK, "MAP_OUTPUT_RECORDS");
+		long mapBytes = t.get(TASK, "MAP_OUTPUT_BYTES");
+		long shuffle = t.get(TASK, "REDUCE_SHUFFLE_BYTES");
+		long spilled = t.get(TASK, "SPILLED_RECORDS");
+		long cpu = t.get(TASK, "CPU_MILLISECONDS");
+		long allocBytes = t.get("Brush", "map_alloc_bytes");
+		long allocRecords = t.get("Brush", "map_alloc_records");
+
+		if (mapIn >= 0 && t.millis > 0) {
+			derived.put("records_per_second", 1000.0 * mapIn / t.millis);
+		}
+		if (shuffle >= 0 && inputBases > 0) {
+			derived.put("shuffle_bytes_per_base", (double) shuffle / inputBases);
+		}
+		if (mapBytes >= 0 && inputBases > 0) {
+			derived.put("map_output_bytes_per_base", (double) mapBytes / inputBases);
+		}
+		if (mapOut > 0 && mapIn > 0) {
+			derived.put("map_output_per_input_record", (double) mapOut / mapIn);
+		}
+		if (spilled >= 0 && mapOut > 0) {
+			derived.put("spilled_per_map_output_record", (double) spilled / mapOut);
+		}
+		if (cpu >= 0 && t.millis > 0) {
+			derived.put("cpu_ms_per_ms", (double) cpu / t.millis);
+		}
+		if (allocBytes >= 0 && allocRecords > 0) {
+			derived.put("map_alloc_bytes_per_input_record", (double) allocBytes / allocRecords);
+		}
+
+		sb.append("\n").append(indent).append("\"derived\": {");
+		String dsep = "";
+		for (Map.Entry<String, Double> d : derived.entrySet()) {
+			sb.append(dsep).append("\n").append(indent).append("  ")
+					.append(quote(d.getKey())).append(": ")
+					.append(String.format(Locale.ROOT, "%.4f", d.getValue()));
+			dsep = ",";
+		}
+		sb.append(dsep.isEmpty() ? "}" : "\n" + indent + "}");
+	}
+
+	private static String quote(final String s) {
+		StringBuilder sb = new StringBuilder("\"");
+
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+
+		return sb.append('"').toString();
+	}
+}
@@ -24,15 +24,14 @@
 package tw.edu.sinica.iis.CloudEC;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Iterator;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapred.FileInputFormat;
 import org.apache.hadoop.mapred.FileOutputFormat;
 import org.apache.hadoop.mapred.JobClient;
@@ -43,8 +42,8 @@ import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.RunningJob;
-import org.apache.hadoop.mapred.TextInputFormat;
-import org.apache.hadoop.mapred.TextOutputFormat;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.log4j.Logger;
@@ -53,93 +52,83 @@ public class SpreadCorrectDecision extends Configured implements Tool {
 	private static final Logger sLogger = Logger.getLogger(SpreadCorrectDecision.class);
 
 	public static class SpreadCorrectDecisionMapper extends MapReduceBase implements
-			Mapper<LongWritable, Text, Text, Text> {
+			Mapper<Text, Writable, NodeKeyWritable, NodeMsgWritable> {
+
+		private NodeKeyWritable key = new NodeKeyWritable();
+		private NodeMsgWritable msg = new NodeMsgWritable();
+
+		private AllocationCounter alloc = new AllocationCounter();
 
 		@Override
-		public void map(LongWritable lineid, Text nodetxt,
-				OutputCollector<Text, Text> output, Reporter reporter)
+		public void map(Text nodeid, Writable value,
+				OutputCollector<NodeKeyWritable, NodeMsgWritable> output,
+				Reporter reporter)
 				throws IOException {
 
-			String vals[] = nodetxt.toString().split("\t", 2);
+			msg.set(value);
+			key.set(nodeid, msg.getType());
+
+			output.collect(key, msg);
 
-			output.collect(new Text(vals[0]), new Text(vals[1]));
+			alloc.count(reporter);
 		}
 	}
 
 	public static class SpreadCorrectDecisionReducer extends MapReduceBase implements
-			Reducer<Text, Text, Text, Text> {
-
-		public class Correct {
-			public char chr;
-			public int pos;
-
-			public Correct(int pos1, char chr1) throws IOException {
-				pos = pos1;
-				chr = chr1;
-			}
-		}
+			Reducer<NodeKeyWritable, NodeMsgWritable, Text, ReadNodeWritable> {
 
 		@Override
-		public void reduce(Text nodeid, Iterator<Text> iter,
-				OutputCollector<Text, Text> output, Reporter reporter)
+		public void reduce(NodeKeyWritable key, Iterator<NodeMsgWritable> iter,
+				OutputCollector<Text, ReadNodeWritable> output, Reporter reporter)
 				throws IOException {
 
-			Utils node = new Utils(nodeid.toString());
-
-			ArrayList<Correct> msgs = new ArrayList<Correct>();
-
-			int mainnode = 0;
+			// the node sorts first, votes without it are dropped
+			NodeMsgWritable val = iter.next();
 
-			while (iter.hasNext()) {
-				String[] vals = iter.next().toString().split("\t");
-
-				if (vals[0].equals(Utils.MSGNODE)) {
-					node.parseNodeMsg(vals, 0);
-					mainnode++;
-				} else if (vals[0].equals(Utils.MSGCORRECT)) {
-					String[] vals2 = Utils.corrDecode(vals[1]).split("X");
-
-					for (int i = 0; i < vals2.length; i++) {
-						if (vals2[i].length() != 0) {
-							for (Character c : vals2[i].toCharArray()) {
-								msgs.add(new Correct(i, c));
-							}
-						}
-					}
-				}
+			if (!val.isNode()) {
+				return;
 			}
 
-			// zero or multiple main node exists, it's an error
-			if (mainnode != 1) {
-				msgs.clear();
+			ReadNodeWritable node = val.getNode();
 
-				return;
-			}
+			// array: [0]=A, [1]=T, [2]=C, [3]=G, [4]=N, [5]=notN
+			int[][] array = new int[node.getLen()][6];
+			int nvotes = 0;
 
-			// If there is no messages, there is still a node need to emit
-			if (msgs.size() > 0) {
-				// array: [0]=A, [1]=T, [2]=C, [3]=G, [4]=N, [5]=notN
-				int[][] array = new int[node.getLen()][6];
-				for (int i = 0; i < node.getLen(); i++) {
-					for (int j = 0; j < 6; j++) {
-						array[i][j] = 0;
-					}
+			// the votes of all Recommend reducers are counted as they come
+			while (iter.hasNext()) {
+				val = iter.next();
+
+				// multiple main node exists, it's an error
+				if (val.isNode()) {
+					return;
 				}
 
-				for (int i = 0; i < msgs.size(); i++) {
-					int pos = msgs.get(i).pos;
-					int base = Utils.char2idx(msgs.get(i).chr);
+				if (val.isVotes()) {
+					VoteWritable votes = val.getVotes();
 
-					array[pos][base]++;
+					for (int i = 0; i < votes.size(); i++) {
+						int pos = votes.getPos(i);
+						int base = votes.getBase(i);
 
-					if (base != Utils.char2idx('N')) {
-						array[pos][5]++;
+						array[pos][base]++;
+
+						if (base != Utils.char2idx('N')) {
+							array[pos][5]++;
+						}
 					}
+
+					nvotes += votes.size();
 				}
+			}
 
+			// If there is no messages, there is still a node need to emit
+			if (nvotes > 0) {
 				// fix content
 				StringBuilder fix_str = new StringBuilder(node.getSEQ());
-				StringBuilder fix_qv = new StringBuilder(Utils.qvSmooth(Utils.qvDeflate(node.getQV())));
+
+				// the QV is smoothed in place, in the inflated scale
+				node.smoothQV();
 
 				for (int i = 0; i < array.length; i++) {
 					// A base cannot be corrected if it is in protection
@@ -158,7 +147,7 @@ public class SpreadCorrectDecision extends Configured implements Tool {
 
 						if (fix_char != 'X') {
 							fix_str.setCharAt(i, fix_char);
-							fix_qv.setCharAt(i, (char) (Utils.QV_FLATE_FIX));
+							node.setQV(i, (char) (Utils.QV_INFLATE_FIX));
 
 							reporter.incrCounter("Brush", "fix_char", 1);
 						} else {
@@ -168,18 +157,15 @@ public class SpreadCorrectDecision extends Configured implements Tool {
 				}
 
 				node.setSEQ(fix_str.toString());
-				node.setQV(Utils.qvInflate(fix_qv.toString()));
 			}
 
-			msgs.clear();
-
 			// TODO: remove filter data in the last run
 
-			output.collect(nodeid, new Text(node.toNodeMsg()));
+			output.collect(key.getId(), node);
 		}
 	}
 
-	public RunningJob run(String inputPath, String outputPath) throws Exception {
+	public JobConf createJob(String inputPath, String outputPath) {
 		sLogger.info("Tool name: " + SpreadCorrectDecision.class.getSimpleName() + " [3/5]");
 		sLogger.info(" - input: " + inputPath);
 		sLogger.info(" - output: " + outputPath);
@@ -192,18 +178,24 @@ public class SpreadCorrectDecision extends Configured implements Tool {
 		FileInputFormat.addInputPaths(conf, inputPath);
 		FileOutputFormat.setOutputPath(conf, new Path(outputPath));
 
-		conf.setInputFormat(TextInputFormat.class);
-		conf.setOutputFormat(TextOutputFormat.class);
+		conf.setInputFormat(SequenceFileInputFormat.class);
+		conf.setOutputFormat(SequenceFileOutputFormat.class);
 
-		conf.setMapOutputKeyClass(Text.class);
-		conf.setMapOutputValueClass(Text.class);
+		NodeKeyWritable.setJoin(conf);
+		conf.setMapOutputValueClass(NodeMsgWritable.class);
 
 		conf.setOutputKeyClass(Text.class);
-		conf.setOutputValueClass(Text.class);
+		conf.setOutputValueClass(ReadNodeWritable.class);
 
 		conf.setMapperClass(SpreadCorrectDecisionMapper.class);
 		conf.setReducerClass(SpreadCorrectDecisionReducer.class);
 
+		return conf;
+	}
+
+	public RunningJob run(String inputPath, String outputPath) throws Exception {
+		JobConf conf = createJob(inputPath, outputPath);
+
 		// delete the output directory if it exists already
 		FileSystem.get(conf).delete(new Path(outputPath), true);
 
@@ -23,16 +23,25 @@
 
 package tw.edu.sinica.iis.CloudEC;
 
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.TreeMap;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalDirAllocator;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.FileInputFormat;
 import org.apache.hadoop.mapred.FileOutputFormat;
@@ -44,8 +53,8 @@ import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.RunningJob;
-import org.apache.hadoop.mapred.TextInputFormat;
-import org.apache.hadoop.mapred.TextOutputFormat;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.log4j.Logger;
@@ -54,7 +63,7 @@ public class SpreadCorrectRecommend extends Configured implements Tool {
 	private static final Logger sLogger = Logger.getLogger(SpreadCorrectRecommend.class);
 
 	public static class SpreadCorrectRecommendMapper extends MapReduceBase implements
-			Mapper<LongWritable, Text, Text, Text> {
+			Mapper<Text, ReadNodeWritable, KmerWritable, Text> {
 
 		public static int K = 0;
 
@@ -62,173 +71,361 @@ public class SpreadCorrectRecommend extends Configured implements Tool {
 		public static int ARM = 0;
 		public static int HEIGHT = 0;
 
+		private KmerIterator kmers = null;
+		private KmerWritable kmer = new KmerWritable();
+
+		// stacks below STACK_MIN are dropped before the shuffle, a kmer
+		// missing from the filter of its part is not solid, see
+		// SpreadCorrectSketch
+		private KmerFilter[] solid = null;
+		private int StackMin = -1;
+
+		private int[] wing = new int[2];
+
+		// super-kmer mode: the consecutive windows of a read with the same
+		// minimizer (of M bases) are sent as one record keyed by it, and
+		// SpreadCorrectRecommendSuperReducer rebuilds the stacks
+		public static int M = 0;
+
+		private long[] mmers = new long[0];
+		private long[] mmerHashes = new long[0];
+		private KmerWritable minKmer = new KmerWritable();
+
+		// the super-kmer being built
+		private long group = 0;
+		private int groupLeft = 0;
+		private int groupRight = 0;
+		private StringBuilder positions = new StringBuilder();
+
+		// the emitted value is built in place
+		private Text value = new Text();
+		private RecordBuffer record = new RecordBuffer();
+		private StringBuilder wings = new StringBuilder();
+
+		private AllocationCounter alloc = new AllocationCounter();
+
 		@Override
 		public void configure(JobConf job) {
 			K = job.getInt("K", 0);
+			M = job.getInt("SC_MINIMIZER", 0);
+			StackMin = job.getInt("STACK_MIN", 0);
+
+			kmers = new KmerIterator(K, false);
 
 			SCHEME = job.get("ARM_SCHEME", null);
 			ARM = job.getInt("ARM_L", 0);
 			HEIGHT = job.getInt("ARM_H", 0);
+
+			try {
+				if (job.get("SC_SKETCH") != null && StackMin != -1) {
+					solid = KmerFilter.loadParts(job, job.get("SC_SKETCH"),
+							job.getInt("SC_SKETCH_PARTS", 1));
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
 		}
 
 		@Override
-		public void map(LongWritable lineid, Text nodetxt,
-				OutputCollector<Text, Text> output, Reporter reporter)
+		public void map(Text nodeid, ReadNodeWritable node,
+				OutputCollector<KmerWritable, Text> output, Reporter reporter)
 				throws IOException {
 
-			Utils node = new Utils();
-			node.fromNodeMsg(nodetxt.toString());
+			node.setNodeId(nodeid);
 
-			String nodeID = node.getNodeId();
+			Text nodeID = node.getId();
 			String nodeSEQ = node.getSEQ();
-			String nodeQV = Utils.qvSmooth(Utils.qvDeflate(node.getQV()));
+			String nodeQV = Utils.qvDeflateSmooth(node.getQV());
 
-			String nodeIGN = node.getIGN(Utils.IGNF);
+			long[] nodeIGN = node.getIGN(Utils.IGNF);
 
 			// Here we use a Kmer for alignment
 			int end = nodeSEQ.length() - K + 1;
-			for (int i = 0; i < end; i++) {
-				// ignore kmers
-				if (nodeIGN != null && nodeIGN.charAt(i) == '1') {
+
+			if (M > 0) {
+				hashMmers(nodeSEQ);
+			}
+
+			kmers.reset(node);
+			while (kmers.next()) {
+				int i = kmers.getPos();
+
+				// ignore kmers, blocks of ignored kmers are skipped at once
+				if (ReadNodeWritable.isIgnored(nodeIGN, i)) {
+					kmers.seek(ReadNodeWritable.nextNotIgnored(nodeIGN, i));
 					continue;
 				}
 
-				String kmer_f = nodeSEQ.substring(i, i + K);
-				String kmer_r = Utils.rcSEQ(kmer_f);
-
-				if (kmer_f.contains("N")) {
+				if (kmers.isPalindrome()) {
 					continue;
 				}
 
-				int wing_pos_left = 0;
-				int wing_pos_right = nodeSEQ.length();
-
-				if (ARM != -1) {
-					if (SCHEME != null && SCHEME.equals("CLA")) {
-						if (i < ARM) {
-							wing_pos_left = Math.max(0, i - ARM);
-							wing_pos_right = Math.min(i + K + (2 * ARM - i),
-									nodeSEQ.length());
-						} else if (nodeSEQ.length() - (i + K) < ARM) {
-							wing_pos_right = Math.min(i + K + ARM,
-									nodeSEQ.length());
-							wing_pos_left = Math.max(0,
-									i - (2 * ARM - (wing_pos_right - (i + K))));
-						} else {
-							wing_pos_left = i - ARM;
-							wing_pos_right = i + K + ARM;
-						}
-					} else if (SCHEME != null && SCHEME.equals("ENV")) {
-						/* for left */
-						if (i < K + ARM) {
-							wing_pos_left = Math.max(0, i - ARM);
-						} else {
-							wing_pos_left = K + (int) Math.floor(
-									1.0 * (i - (K + ARM) + 1) * (end - K - 1)
-											/ (end - (K + ARM) + 1));
-						}
+				kmers.getCanonical(kmer, KmerWritable.TAG_NONE);
 
-						/* for right */
-						if (i < end - (K + ARM)) {
-							wing_pos_right = K + (int) Math.floor(1.0 * (i + 1)
-									* (end - K - 1) / (end - (K + ARM) + 1));
-						} else {
-							wing_pos_right = Math.min(i + K + ARM,
-									nodeSEQ.length());
+				if (solid != null) {
+					long hash = KmerFilter.hash(kmer);
 
-						}
-					} else if (SCHEME != null && SCHEME.equals("GNV")) {
-						int PtA = ARM + HEIGHT;
-						int PtD = ARM;
-						int PtB = ARM + (int) Math
-								.ceil(1.0 * end * (PtA - PtD) / end);
-						int PtC = ARM + (int) Math
-								.ceil(1.0 * K * (PtA - PtD) / nodeSEQ.length());
-
-						if (i < PtA + 1) {
-							// wing_pos_left = 0;
-						} else if (i >= PtA + 1 && i < K + PtB) {
-							wing_pos_left = 0 + (int) Math
-									.floor(1.0 * (i - (PtA + 1) + 1) * (K - 1)
-											/ ((K + PtB) - (PtA + 1)));
-						} else {
-							wing_pos_left = K + (int) Math.floor(
-									1.0 * (i - (K + PtB) + 1) * (end - K - 1)
-											/ (end - (K + PtB) + 1));
-						}
+					if (!solid[KmerFilter.part(hash, solid.length)]
+							.contains(hash)) {
+						reporter.incrCounter("Brush", "pruned_kmers", 1);
+						continue;
+					}
+				}
 
-						if (i < end - (K + PtC)) {
-							wing_pos_right = K + (int) Math.floor(1.0 * (i + 1)
-									* (end - K - 1) / (end - (K + PtC)));
-						} else if (i >= end - (K + PtC) && i < end - ARM - 1) {
-							wing_pos_right = (end - 1) + (int) Math.floor(1.0
-									* (i - (end - (K + PtC)) + 1) * (K - 1)
-									/ ((end - ARM - 1) - (end - (K + PtC))));
-						} else {
-							// wing_pos_right = nodeSEQ.length();
-						}
+				wings(SCHEME, ARM, HEIGHT, K, i, nodeSEQ.length(), wing);
+
+				int wing_pos_left = wing[0];
+				int wing_pos_right = wing[1];
+
+				if (M > 0) {
+					long min = minimizer(i);
+
+					// a new super-kmer when the minimizer changes
+					if (positions.length() > 0 && min != group) {
+						emitGroup(nodeID, nodeSEQ, nodeQV, output);
+					}
+
+					if (positions.length() == 0) {
+						group = min;
+						groupLeft = wing_pos_left;
+						groupRight = wing_pos_right;
 					} else {
-						wing_pos_left = Math.max(0, i - ARM);
-						wing_pos_right = Math.min(i + K + ARM,
-								nodeSEQ.length());
+						positions.append(",");
+						groupLeft = Math.min(groupLeft, wing_pos_left);
+						groupRight = Math.max(groupRight, wing_pos_right);
 					}
+					positions.append(i);
+
+					continue;
+				}
+
+				// both wings are encoded in place, without substrings
+				wings.setLength(0);
+				Utils.seqEncode(nodeSEQ, wing_pos_left, i, wings).append('\t');
+				Utils.seqEncode(nodeSEQ, i + K, wing_pos_right, wings).append('\t');
+				Utils.qvEncode(nodeQV, wing_pos_left, wing_pos_right, wings);
+
+				record.clear().append(nodeID).append('\t').append(wings);
+
+				if (kmers.isForward()) {
+					record.append('\t').append('f');
+					record.append('\t').append(i);
+					record.append('\t').append(wing_pos_left);
+				} else {
+					record.append('\t').append('r');
+					record.append('\t').append(end - i - 1);
+					record.append('\t').append(nodeSEQ.length() - wing_pos_right);
+				}
+				record.append('\t').append(nodeSEQ.length());
+
+				record.get(value);
+				output.collect(kmer, value);
+			}
+
+			if (positions.length() > 0) {
+				emitGroup(nodeID, nodeSEQ, nodeQV, output);
+			}
+
+			alloc.count(reporter);
+		}
+
+		// The canonical m-mers of the read and their hashes
+		private void hashMmers(final String seq) {
+			int n = seq.length() - M + 1;
+
+			if (mmers.length < n) {
+				mmers = new long[n];
+				mmerHashes = new long[n];
+			}
+
+			long fwd = 0;
+			long rc = 0;
+			long mask = (1L << (2 * M)) - 1;
+
+			for (int j = 0; j < seq.length(); j++) {
+				int code = KmerWritable.base2code(seq.charAt(j));
+
+				// windows with N are never emitted, the m-mers do not matter
+				code = Math.max(code, 0);
+
+				fwd = ((fwd << 2) | code) & mask;
+				rc = (rc >>> 2) | ((long) (3 - code) << (2 * (M - 1)));
+
+				if (j >= M - 1) {
+					long canon = Math.min(fwd, rc);
+
+					mmers[j - M + 1] = canon;
+					mmerHashes[j - M + 1] = mix(canon);
+				}
+			}
+		}
+
+		private static long mix(long h) {
+			h ^= (h >>> 33);
+			h *= 0xFF51AFD7ED558CCDL;
+			h ^= (h >>> 33);
+			h *= 0xC4CEB9FE1A85EC53L;
+			h ^= (h >>> 33);
+
+			return h;
+		}
+
+		// The m-mer of the window at i with the smallest hash, the same for
+		// both strands of the kmer
+		private long minimizer(final int i) {
+			int best = i;
+
+			for (int j = i + 1; j <= i + K - M; j++) {
+				int cmp = Long.compare(mmerHashes[j], mmerHashes[best]);
+
+				if (cmp < 0 || (cmp == 0 && mmers[j] < mmers[best])) {
+					best = j;
+				}
+			}
+
+			return mmers[best];
+		}
+
+		// One record for the windows of a super-kmer: the read segment
+		// covering all their wings, and the window positions
+		private void emitGroup(final Text nodeID, final String nodeSEQ,
+				final String nodeQV,
+				final OutputCollector<KmerWritable, Text> output)
+				throws IOException {
+			minKmer.set(M, 0, group, KmerWritable.TAG_NONE);
+
+			wings.setLength(0);
+			Utils.seqEncode(nodeSEQ, groupLeft, groupRight, wings).append('\t');
+			Utils.qvEncode(nodeQV, groupLeft, groupRight, wings);
+
+			record.clear().append(nodeID).append('\t').append(wings);
+			record.append('\t').append(groupLeft);
+			record.append('\t').append(nodeSEQ.length());
+			record.append('\t').append(positions);
+
+			record.get(value);
+			output.collect(minKmer, value);
+
+			positions.setLength(0);
+		}
+	}
+
+	// The wings [wing[0], wing[1]) of the window at i of a read of length
+	// len, by the arm scheme
+	public static void wings(final String SCHEME, final int ARM,
+			final int HEIGHT, final int K, final int i, final int len,
+			final int[] wing) {
+		int end = len - K + 1;
+
+		int wing_pos_left = 0;
+		int wing_pos_right = len;
+
+		if (ARM != -1) {
+			if (SCHEME != null && SCHEME.equals("CLA")) {
+				if (i < ARM) {
+					wing_pos_left = Math.max(0, i - ARM);
+					wing_pos_right = Math.min(i + K + (2 * ARM - i), len);
+				} else if (len - (i + K) < ARM) {
+					wing_pos_right = Math.min(i + K + ARM, len);
+					wing_pos_left = Math.max(0,
+							i - (2 * ARM - (wing_pos_right - (i + K))));
+				} else {
+					wing_pos_left = i - ARM;
+					wing_pos_right = i + K + ARM;
+				}
+			} else if (SCHEME != null && SCHEME.equals("ENV")) {
+				/* for left */
+				if (i < K + ARM) {
+					wing_pos_left = Math.max(0, i - ARM);
+				} else {
+					wing_pos_left = K + (int) Math.floor(
+							1.0 * (i - (K + ARM) + 1) * (end - K - 1)
+									/ (end - (K + ARM) + 1));
+				}
+
+				/* for right */
+				if (i < end - (K + ARM)) {
+					wing_pos_right = K + (int) Math.floor(1.0 * (i + 1)
+							* (end - K - 1) / (end - (K + ARM) + 1));
+				} else {
+					wing_pos_right = Math.min(i + K + ARM, len);
+
+				}
+			} else if (SCHEME != null && SCHEME.equals("GNV")) {
+				int PtA = ARM + HEIGHT;
+				int PtD = ARM;
+				int PtB = ARM + (int) Math
+						.ceil(1.0 * end * (PtA - PtD) / end);
+				int PtC = ARM + (int) Math
+						.ceil(1.0 * K * (PtA - PtD) / len);
+
+				if (i < PtA + 1) {
+					// wing_pos_left = 0;
+				} else if (i >= PtA + 1 && i < K + PtB) {
+					wing_pos_left = 0 + (int) Math
+							.floor(1.0 * (i - (PtA + 1) + 1) * (K - 1)
+									/ ((K + PtB) - (PtA + 1)));
+				} else {
+					wing_pos_left = K + (int) Math.floor(
+							1.0 * (i - (K + PtB) + 1) * (end - K - 1)
+									/ (end - (K + PtB) + 1));
 				}
 
-				int compare = kmer_f.compareTo(kmer_r);
-				if (compare < 0) {
-					output.collect(
-							new Text(Utils.seqEncode(kmer_f)),
-							new Text(nodeID
-									+ "\t"
-									+ Utils.seqEncode(nodeSEQ.substring(
-											wing_pos_left, i))
-									+ "\t"
-									+ Utils.seqEncode(nodeSEQ.substring(i
-											+ K, wing_pos_right))
-									+ "\t"
-									+ Utils.qvEncode(nodeQV.substring(
-											wing_pos_left, wing_pos_right))
-									+ "\t" + "f" + "\t" + i + "\t"
-									+ wing_pos_left + "\t"
-									+ nodeSEQ.length()));
-				} else if (compare > 0) {
-					output.collect(
-							new Text(Utils.seqEncode(kmer_r)),
-							new Text(nodeID
-									+ "\t"
-									+ Utils.seqEncode(nodeSEQ.substring(
-											wing_pos_left, i))
-									+ "\t"
-									+ Utils.seqEncode(nodeSEQ.substring(i
-											+ K, wing_pos_right))
-									+ "\t"
-									+ Utils.qvEncode(nodeQV.substring(
-											wing_pos_left, wing_pos_right))
-									+ "\t" + "r" + "\t" + (end - i - 1)
-									+ "\t"
-									+ (nodeSEQ.length() - wing_pos_right)
-									+ "\t" + nodeSEQ.length()));
+				if (i < end - (K + PtC)) {
+					wing_pos_right = K + (int) Math.floor(1.0 * (i + 1)
+							* (end - K - 1) / (end - (K + PtC)));
+				} else if (i >= end - (K + PtC) && i < end - ARM - 1) {
+					wing_pos_right = (end - 1) + (int) Math.floor(1.0
+							* (i - (end - (K + PtC)) + 1) * (K - 1)
+							/ ((end - ARM - 1) - (end - (K + PtC))));
+				} else {
+					// wing_pos_right = len;
 				}
+			} else {
+				wing_pos_left = Math.max(0, i - ARM);
+				wing_pos_right = Math.min(i + K + ARM, len);
 			}
 		}
+
+		wing[0] = wing_pos_left;
+		wing[1] = wing_pos_right;
 	}
 
 	public static class SpreadCorrectRecommendReducer extends MapReduceBase implements
-			Reducer<Text, Text, Text, Text> {
+			Reducer<KmerWritable, Text, Text, VoteWritable> {
 
-		private static int K = 0;
+		protected static int K = 0;
 
 		public static int StackMax = 0;
 		public static int StackMin = 0;
 
+		// bytes of reads the stacks of a task keep in the heap before they
+		// spill
+		public static long StackSpill = 0;
+
+		// reads of a spilled stack whose votes are held at a time, see
+		// SpilledMatrix
+		private static final int VOTES_MAX = 1 << 16;
+
+		private ReadStack stack = new ReadStack();
+
+		private Text readid = new Text();
+
 		@Override
 		public void configure(JobConf job) {
 			K = job.getInt("K", 0);
 
 			StackMax = job.getInt("STACK_MAX", 0);
 			StackMin = job.getInt("STACK_MIN", 0);
+
+			StackSpill = (long) job.getInt("STACK_SPILL", 64) << 20;
+
+			conf = job;
 		}
 
+		// scratch buffer for decoding the reads
+		private byte[] seqbuf = new byte[0];
+
 		public class ReadInfo {
 			public String id;
 			public boolean dir;
@@ -248,20 +445,69 @@ public class SpreadCorrectRecommend extends Configured implements Tool {
 				offset = offset1;
 				length = length1;
 
+				// decode the wings straight into bytes
+				int max = 2 * (seq_p1.length() + seq_s1.length())
+						+ seq_k1.length();
+				if (seqbuf.length < max) {
+					seqbuf = new byte[max];
+				}
+
+				int len = 0;
+
 				if (dir1.equals("f")) {
 					dir = true;
 
-					seq = (Utils.seqDecode(seq_p1) + Utils.seqDecode(seq_k1) + Utils
-							.seqDecode(seq_s1)).getBytes();
-					qv_int = Utils.qvValueConvert(Utils.qvInflate(Utils.qvDecode(qv1)), false);
+					len += Utils.seqDecode(seq_p1, 0, seq_p1.length(), seqbuf, len);
+					for (int i = 0; i < seq_k1.length(); i++) {
+						seqbuf[len++] = (byte) seq_k1.charAt(i);
+					}
+					len += Utils.seqDecode(seq_s1, 0, seq_s1.length(), seqbuf, len);
+
+					qv_int = Utils.qvInflateValues(Utils.qvDecode(qv1), false);
 				} else {
 					dir = false;
 
-					seq = (Utils.rcSEQ(Utils.seqDecode(seq_s1))
-							+ Utils.seqDecode(seq_k1) + Utils.rcSEQ(Utils
-							.seqDecode(seq_p1))).getBytes();
-					qv_int = Utils.qvValueConvert(Utils.qvInflate(Utils.qvDecode(qv1)), true);
+					int start = len;
+					len += Utils.seqDecode(seq_s1, 0, seq_s1.length(), seqbuf, len);
+					Utils.rcSEQ(seqbuf, start, len);
+					for (int i = 0; i < seq_k1.length(); i++) {
+						seqbuf[len++] = (byte) seq_k1.charAt(i);
+					}
+					start = len;
+					len += Utils.seqDecode(seq_p1, 0, seq_p1.length(), seqbuf, len);
+					Utils.rcSEQ(seqbuf, start, len);
+
+					qv_int = Utils.qvInflateValues(Utils.qvDecode(qv1), true);
+				}
+
+				seq = Arrays.copyOf(seqbuf, len);
+			}
+
+			// From the plain segment seq[start, end) of the read and its
+			// smoothed QVs, see SpreadCorrectRecommendSuperReducer
+			public ReadInfo(final String id1, final boolean dir1, final int pos1, final String seq1,
+					final String qv1, final int start, final int end,
+					final short offset1, final short length1) {
+
+				id = id1;
+				dir = dir1;
+				pos = pos1;
+				offset = offset1;
+				length = length1;
+
+				seq = new byte[end - start];
+				for (int i = start; i < end; i++) {
+					seq[i - start] = (byte) seq1.charAt(i);
+				}
+				if (!dir) {
+					Utils.rcSEQ(seq, 0, seq.length);
 				}
+
+				qv_int = Utils.qvInflateValues(qv1.substring(start, end), !dir);
+			}
+
+			// Filled by ReadStack.next()
+			private ReadInfo() {
 			}
 
 			public int getARMLeft() {
@@ -271,81 +517,718 @@ public class SpreadCorrectRecommend extends Configured implements Tool {
 			public int getARMRight() {
 				return (seq.length - K - (pos - offset));
 			}
+
+			private long getFootprint() {
+				return 2 * id.length() + seq.length + qv_int.length + 96;
+			}
+		}
+
+		// The reads of a stack. They are kept as objects until the reads of
+		// all live stacks of the task are over StackSpill bytes, then all
+		// stacks move their reads to the spill file as a segment each. A
+		// spilled stack is decoded again once it is complete, to be laid out
+		// in columns by SpilledMatrix. The heap does not grow with the
+		// height of the stacks, nor with their number.
+		public class ReadStack {
+			private ArrayList<ReadInfo> reads = new ArrayList<ReadInfo>();
+
+			// reads seen and reads stored, see skip()
+			private int size = 0;
+			private int stored = 0;
+			private long bytes = 0;
+
+			// the longest arms of the reads stored
+			private int armLeft = 0;
+			private int armRight = 0;
+
+			// segments of the spill file, in the order of the reads
+			private long[] segStarts = new long[0];
+			private int[] segCounts = new int[0];
+			private int segments = 0;
+			private int spilled = 0;
+
+			// in the live stacks of the task, see release()
+			private boolean live = false;
+
+			private int cursor = 0;
+			private int segment = 0;
+			private int segmentLeft = 0;
+			private ReadInfo read = new ReadInfo();
+
+			public int size() {
+				return size;
+			}
+
+			// over STACK_MAX, the stack is dropped whatever its other reads are
+			public boolean isFull() {
+				return StackMax != -1 && size > StackMax;
+			}
+
+			public void add(final ReadInfo readitem) throws IOException {
+				size++;
+				stored++;
+
+				if (!live) {
+					live = true;
+					liveStacks.add(this);
+				}
+
+				if (reads.isEmpty()) {
+					resident.add(this);
+				}
+
+				reads.add(readitem);
+				armLeft = Math.max(armLeft, readitem.getARMLeft());
+				armRight = Math.max(armRight, readitem.getARMRight());
+				bytes += readitem.getFootprint();
+				held += readitem.getFootprint();
+
+				if (held > StackSpill) {
+					for (ReadStack stack : resident) {
+						stack.spill();
+					}
+					resident.clear();
+				}
+			}
+
+			// Move the reads in memory to a segment of the spill file
+			private void spill() throws IOException {
+				if (reads.isEmpty()) {
+					return;
+				}
+
+				if (spillFile == null) {
+					spillFile = new SpillFile();
+				}
+
+				if (segments == segStarts.length) {
+					segStarts = Arrays.copyOf(segStarts, Math.max(4, 2 * segments));
+					segCounts = Arrays.copyOf(segCounts, segStarts.length);
+				}
+
+				segStarts[segments] = spillFile.position();
+				segCounts[segments] = reads.size();
+				segments++;
+
+				DataOutputStream out = spillFile.output();
+				for (ReadInfo r : reads) {
+					write(out, r);
+				}
+				spillFile.flush();
+
+				spilled += reads.size();
+				held -= bytes;
+				bytes = 0;
+				reads = new ArrayList<ReadInfo>();
+			}
+
+			public boolean isSpilled() {
+				return segments > 0;
+			}
+
+			// Count a read without keeping it
+			public void skip() {
+				size++;
+			}
+
+			private void write(final DataOutputStream out, final ReadInfo r)
+					throws IOException {
+				out.writeUTF(r.id);
+				out.writeBoolean(r.dir);
+				out.writeInt(r.pos);
+				out.writeShort(r.offset);
+				out.writeShort(r.length);
+				out.writeInt(r.seq.length);
+				out.write(r.seq);
+				out.writeInt(r.qv_int.length);
+				out.write(r.qv_int);
+			}
+
+			// Start a pass over the reads
+			public void rewind() throws IOException {
+				cursor = 0;
+				segment = -1;
+				segmentLeft = 0;
+			}
+
+			// The next read of the pass, or null at its end. A spilled read
+			// is only valid until the next call.
+			public ReadInfo next() throws IOException {
+				if (cursor >= stored) {
+					return null;
+				}
+				cursor++;
+
+				if (cursor > spilled) {
+					return reads.get(cursor - spilled - 1);
+				}
+
+				while (segmentLeft == 0) {
+					segment++;
+					spillFile.seek(segStarts[segment]);
+					segmentLeft = segCounts[segment];
+				}
+				segmentLeft--;
+
+				DataInputStream in = spillFile.input();
+
+				read.id = in.readUTF();
+				read.dir = in.readBoolean();
+				read.pos = in.readInt();
+				read.offset = in.readShort();
+				read.length = in.readShort();
+				read.seq = new byte[in.readInt()];
+				in.readFully(read.seq);
+				read.qv_int = new byte[in.readInt()];
+				in.readFully(read.qv_int);
+
+				return read;
+			}
+
+			public void clear() throws IOException {
+				held -= bytes;
+
+				reads = new ArrayList<ReadInfo>();
+				size = 0;
+				stored = 0;
+				bytes = 0;
+				armLeft = 0;
+				armRight = 0;
+				segments = 0;
+				spilled = 0;
+			}
+		}
+
+		// reads of the live stacks in the heap, the stacks that hold them,
+		// and the file they spill to
+		private long held = 0;
+		private ArrayList<ReadStack> liveStacks = new ArrayList<ReadStack>();
+		private ArrayList<ReadStack> resident = new ArrayList<ReadStack>();
+		private SpillFile spillFile = null;
+
+		private JobConf conf = null;
+
+		// The stacks of a reduce call are done, their segments are dropped
+		protected void release() throws IOException {
+			for (ReadStack stack : liveStacks) {
+				stack.clear();
+				stack.live = false;
+			}
+			liveStacks.clear();
+			resident.clear();
+			held = 0;
+
+			if (spillFile != null) {
+				spillFile.truncate(0);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (spillFile != null) {
+				spillFile.close();
+				spillFile = null;
+			}
+		}
+
+		// A file in the local directories of the task that holds the
+		// segments of the spilled stacks, written at its end or in a range
+		// reserved there, and read at any position
+		private class SpillFile {
+			private final File file;
+			private final FileOutputStream fileOut;
+			private final DataOutputStream out;
+
+			private final RandomAccessFile fileIn;
+			private final DataInputStream in;
+			private final byte[] buf = new byte[1 << 16];
+			private int bufPos = 0;
+			private int bufLen = 0;
+
+			SpillFile() throws IOException {
+				Path dir = new LocalDirAllocator("mapred.local.dir")
+						.getLocalPathForWrite("readstack", conf);
+				File parent = new File(dir.toUri().getPath());
+
+				if (!parent.isDirectory() && !parent.mkdirs()) {
+					throw new IOException("Cannot create " + parent);
+				}
+
+				file = File.createTempFile("readstack", null, parent);
+				fileOut = new FileOutputStream(file);
+				out = new DataOutputStream(new BufferedOutputStream(fileOut,
+						1 << 16));
+				fileIn = new RandomAccessFile(file, "r");
+
+				in = new DataInputStream(new InputStream() {
+					@Override
+					public int read() throws IOException {
+						if (bufPos == bufLen && !fill()) {
+							return -1;
+						}
+						return buf[bufPos++] & 0xFF;
+					}
+
+					@Override
+					public int read(byte[] b, int off, int len)
+							throws IOException {
+						if (bufPos == bufLen && !fill()) {
+							return -1;
+						}
+
+						int n = Math.min(len, bufLen - bufPos);
+						System.arraycopy(buf, bufPos, b, off, n);
+						bufPos += n;
+
+						return n;
+					}
+				});
+			}
+
+			private boolean fill() throws IOException {
+				bufPos = 0;
+				bufLen = Math.max(0, fileIn.read(buf));
+
+				return bufLen > 0;
+			}
+
+			long position() throws IOException {
+				out.flush();
+
+				return fileOut.getChannel().position();
+			}
+
+			DataOutputStream output() {
+				return out;
+			}
+
+			void flush() throws IOException {
+				out.flush();
+			}
+
+			// Keep len bytes at the end of the file for write(), returns
+			// their position
+			long reserve(final long len) throws IOException {
+				long pos = position();
+				fileOut.getChannel().position(pos + len);
+
+				return pos;
+			}
+
+			void write(final long pos, final byte[] b, final int off,
+					final int len) throws IOException {
+				ByteBuffer src = ByteBuffer.wrap(b, off, len);
+				long at = pos;
+
+				while (src.hasRemaining()) {
+					at += fileOut.getChannel().write(src, at);
+				}
+			}
+
+			void seek(final long pos) throws IOException {
+				fileIn.seek(pos);
+				bufPos = 0;
+				bufLen = 0;
+			}
+
+			// the position of input()
+			long offset() throws IOException {
+				return fileIn.getFilePointer() - (bufLen - bufPos);
+			}
+
+			DataInputStream input() {
+				return in;
+			}
+
+			void truncate(final long size) throws IOException {
+				out.flush();
+				fileOut.getChannel().truncate(size);
+			}
+
+			void close() throws IOException {
+				try {
+					out.close();
+					fileIn.close();
+				} finally {
+					file.delete();
+				}
+			}
 		}
 
-		public class SuggestInfo {
-			public StringBuilder[] info;
+		// A stack held in memory, laid out once for all its columns. The
+		// base codes and QVs of the column at colbias are at [c * n, c * n
+		// + n) of bases and qvs with c = colbias + left, NONE where a read
+		// does not cover the column.
+		private class StackMatrix {
+			protected static final byte NONE = 5;
+
+			protected int n = 0;
+			protected int left = 0;
+
+			protected byte[] bases = new byte[0];
+			protected byte[] qvs = new byte[0];
+
+			// per read: id, dir, pos and length of ReadInfo
+			protected String[] ids = new String[0];
+			protected boolean[] dir = new boolean[0];
+			protected int[] pos = new int[0];
+			protected short[] length = new short[0];
+
+			// votes of each read, see collect()
+			private VoteWritable[] suggests = new VoteWritable[0];
+
+			// sums of a column by base code, [4]=N and [5]=NONE are ignored
+			private int[] cnt = new int[6];
+			private int[] sum = new int[6];
+			private int[] good = new int[6];
+
+			public void set(final ReadStack readlist, final int armLeft,
+					final int armRight) throws IOException {
+				n = readlist.size();
+				left = armLeft;
+
+				int cells = (armLeft + K + armRight) * n;
+				if (bases.length < cells) {
+					bases = new byte[cells];
+					qvs = new byte[cells];
+				}
+				Arrays.fill(bases, 0, cells, NONE);
+
+				fit(n);
+
+				ReadInfo readitem;
+				int r = 0;
+
+				readlist.rewind();
+				while ((readitem = readlist.next()) != null) {
+					ids[r] = readitem.id;
+					dir[r] = readitem.dir;
+					pos[r] = readitem.pos;
+					length[r] = readitem.length;
+
+					int shift = armLeft - readitem.pos + readitem.offset;
+
+					for (int i = 0; i < readitem.seq.length; i++) {
+						int cell = (i + shift) * n + r;
+
+						bases[cell] = (byte) Utils.char2idx((char) readitem.seq[i]);
+						qvs[cell] = readitem.qv_int[i];
+					}
 
-			public SuggestInfo(final int size) {
-				info = new StringBuilder[size];
+					r++;
+				}
 			}
 
-			public void append(final int pos, final char suggest) {
-				if (info[pos] == null) {
-					info[pos] = new StringBuilder();
+			// room for the reads [0, count)
+			protected void fit(final int count) {
+				if (ids.length < count) {
+					ids = new String[count];
+					dir = new boolean[count];
+					pos = new int[count];
+					length = new short[count];
+					suggests = new VoteWritable[count];
 				}
-				info[pos].append(suggest);
 			}
 
-			public String toString() {
-				StringBuilder sb = new StringBuilder();
+			// the column at colbias starts at this index of bases and qvs
+			protected int load(final int colbias) throws IOException {
+				return (colbias + left) * n;
+			}
+
+			public boolean makeColEC(final int colbias, final boolean under_kmer,
+					Reporter reporter) throws IOException {
+				int start = load(colbias);
+
+				Arrays.fill(cnt, 0);
+				Arrays.fill(sum, 0);
+				Arrays.fill(good, 0);
+
+				// summary (A, T, C, G) of each read position
+				for (int r = 0; r < n; r++) {
+					int base = bases[start + r];
+					int quality_value = qvs[start + r];
+
+					cnt[base]++;
+					sum[base] += quality_value;
+					good[base] += (quality_value >= Utils.QV_GOOD) ? 1 : 0;
+				}
+
+				for (int base = 0; base < qv_sum.length; base++) {
+					qv_sum[base] = sum[base];
+					qv_good_cnt[base] = good[base];
+				}
+
+				int base_winner = makeColWinner(cnt[0] + cnt[1] + cnt[2]
+						+ cnt[3], under_kmer);
+				if (base_winner < 0) {
+					return false;
+				}
+
+				char chr = Utils.idx2char(base_winner);
 
-				for (StringBuilder s : info) {
-					if (s != null) {
-						sb.append(s.toString());
+				long confirms = 0;
+				long fixes = 0;
+
+				// make recommendation of each read position
+				for (int r = 0; r < n; r++) {
+					int base = bases[start + r];
+
+					if (base == NONE) {
+						continue;
+					}
+
+					if (base == base_winner) {
+						if (recommends[base]) {
+							suggest(r, colbias, 'N');
+							confirms++;
+						}
+					} else if (base == Utils.char2idx('N') || recommends[base]) {
+						suggest(r, colbias, chr);
+						fixes++;
 					}
-					sb.append('X');
 				}
-				sb.deleteCharAt(sb.length() - 1);
 
-				return sb.toString();
+				if (confirms > 0) {
+					reporter.incrCounter("Brush", "confirm_char", confirms);
+				}
+				if (fixes > 0) {
+					reporter.incrCounter("Brush", "fix_char", fixes);
+				}
+
+				return makeColBranch(base_winner);
+			}
+
+			// chr is the base on the forward strand of the kmer, or N
+			protected void suggest(final int r, final int colbias, final char chr) {
+				int p = pos[r] + colbias;
+				char c = chr;
+
+				if (!dir[r]) {
+					p = length[r] - 1 - p;
+					c = (chr == 'N') ? chr : Utils.rcSEQ(chr);
+				}
+
+				if (suggests[r] == null) {
+					suggests[r] = new VoteWritable();
+				}
+				suggests[r].add(p, c);
+			}
+
+			// output correction message
+			public void collect(OutputCollector<Text, VoteWritable> output)
+					throws IOException {
+				send(n, output);
+
+				n = 0;
+			}
+
+			// output the correction messages of the reads [0, count)
+			protected void send(final int count,
+					OutputCollector<Text, VoteWritable> output) throws IOException {
+				for (int r = 0; r < count; r++) {
+					if (suggests[r] != null) {
+						readid.set(ids[r]);
+						output.collect(readid, suggests[r]);
+						suggests[r] = null;
+					}
+					ids[r] = null;
+				}
 			}
 		}
 
-		private boolean makeColEC(final ArrayList<ReadInfo> readlist,
-				final int colbias, final boolean under_kmer,
-				HashMap<String, SuggestInfo> out_list, Reporter reporter) {
+		// A spilled stack, laid out in the spill file as StackMatrix lays out
+		// a stack in memory: for each column, the base codes of all reads
+		// and then their QVs. The reads are transposed a band at a time, a
+		// column pass reads the column back at once, and its votes are
+		// appended to the file as a byte per read, to be sent to VOTES_MAX
+		// reads at a time by collect().
+		private class SpilledMatrix extends StackMatrix {
+			// bytes of the bands of reads being transposed
+			private static final int TRANSPOSE_BUFFER = 1 << 20;
+
+			private ReadStack stack = null;
+			private long block = 0;
+
+			// the votes of the reads on the current column, as the index of
+			// the base plus one, 0 for no vote
+			private byte[] votes = new byte[0];
+			private boolean voted = false;
+
+			// the columns with votes, their votes start at voteStart
+			private int[] voteCols = new int[0];
+			private int voteCount = 0;
+			private long voteStart = 0;
+
+			@Override
+			public void set(final ReadStack readlist, final int armLeft,
+					final int armRight) throws IOException {
+				stack = readlist;
+				n = readlist.size();
+				left = armLeft;
+				voteCount = 0;
+
+				int cols = armLeft + K + armRight;
+				int band = (int) Math.max(1,
+						Math.min(n, TRANSPOSE_BUFFER / (2L * cols)));
+
+				int cells = Math.max(cols * band, n);
+				if (bases.length < cells) {
+					bases = new byte[cells];
+					qvs = new byte[cells];
+				}
+				if (votes.length < n) {
+					votes = new byte[n];
+				}
+
+				block = spillFile.reserve(2L * cols * n);
 
-			// [0]=A, [1]=T, [2]=C, [3]=G
-			int[] qv_sum = new int[4];
-			int[] qv_good_cnt = new int[4];
-			boolean[] recommends = new boolean[4];
+				ReadInfo readitem;
+				int r = 0;
 
-			for (int base = 0; base < qv_sum.length; base++) {
-				qv_sum[base] = 0;
-				qv_good_cnt[base] = 0;
-				recommends[base] = false;
+				readlist.rewind();
+				while ((readitem = readlist.next()) != null) {
+					int i = r % band;
+
+					if (i == 0) {
+						Arrays.fill(bases, 0, cols * band, NONE);
+					}
+
+					int shift = armLeft - readitem.pos + readitem.offset;
+
+					for (int j = 0; j < readitem.seq.length; j++) {
+						int cell = (j + shift) * band + i;
+
+						bases[cell] = (byte) Utils.char2idx((char) readitem.seq[j]);
+						qvs[cell] = readitem.qv_int[j];
+					}
+
+					r++;
+
+					// the band is full, write its part of every column
+					if (i == band - 1 || r == n) {
+						long from = r - i - 1;
+
+						for (int c = 0; c < cols; c++) {
+							long at = block + 2L * c * n + from;
+
+							spillFile.write(at, bases, c * band, i + 1);
+							spillFile.write(at + n, qvs, c * band, i + 1);
+						}
+					}
+				}
 			}
 
-			int baseCnts = 0;
+			@Override
+			protected int load(final int colbias) throws IOException {
+				spillFile.seek(block + 2L * (colbias + left) * n);
 
-			// summary (A, T, C, G) of each read position
-			for (int i = 0; i < readlist.size(); i++) {
-				ReadInfo readitem = readlist.get(i);
+				DataInputStream in = spillFile.input();
+				in.readFully(bases, 0, n);
+				in.readFully(qvs, 0, n);
 
-				int pos = readitem.pos + colbias - readitem.offset;
+				Arrays.fill(votes, 0, n, (byte) 0);
+				voted = false;
 
-				if (pos < 0 || pos > readitem.seq.length - 1) {
-					continue;
+				return 0;
+			}
+
+			@Override
+			public boolean makeColEC(final int colbias,
+					final boolean under_kmer, Reporter reporter)
+					throws IOException {
+				boolean branch = super.makeColEC(colbias, under_kmer, reporter);
+
+				if (voted) {
+					if (voteCount == 0) {
+						voteStart = spillFile.position();
+					}
+					if (voteCount == voteCols.length) {
+						voteCols = Arrays.copyOf(voteCols, Math.max(16,
+								2 * voteCount));
+					}
+
+					voteCols[voteCount++] = colbias;
+					spillFile.output().write(votes, 0, n);
 				}
 
-				int quality_value = readitem.qv_int[pos];
-				int base = Utils.char2idx((char) readitem.seq[pos]);
+				return branch;
+			}
+
+			@Override
+			protected void suggest(final int r, final int colbias,
+					final char chr) {
+				votes[r] = (byte) (Utils.char2idx(chr) + 1);
+				voted = true;
+			}
+
+			// The reads are decoded once more for their ids, VOTES_MAX at a
+			// time, and get the votes of all columns in one message
+			@Override
+			public void collect(OutputCollector<Text, VoteWritable> output)
+					throws IOException {
+				if (voteCount > 0) {
+					spillFile.flush();
+					stack.rewind();
+
+					for (int from = 0; from < n; from += VOTES_MAX) {
+						int count = Math.min(VOTES_MAX, n - from);
+
+						fit(count);
+
+						for (int r = 0; r < count; r++) {
+							ReadInfo readitem = stack.next();
 
-				if (base != Utils.char2idx('N')) {
-					baseCnts++;
+							ids[r] = readitem.id;
+							dir[r] = readitem.dir;
+							pos[r] = readitem.pos;
+							length[r] = readitem.length;
+						}
+
+						long resume = spillFile.offset();
+
+						for (int k = 0; k < voteCount; k++) {
+							spillFile.seek(voteStart + (long) k * n + from);
+							spillFile.input().readFully(votes, 0, count);
 
-					qv_sum[base] += quality_value;
+							for (int r = 0; r < count; r++) {
+								if (votes[r] != 0) {
+									super.suggest(r, voteCols[k],
+											Utils.idx2char(votes[r] - 1));
+								}
+							}
+						}
 
-					if (quality_value >= Utils.QV_GOOD) {
-						qv_good_cnt[base]++;
+						spillFile.seek(resume);
+						send(count, output);
 					}
 				}
+
+				// the layout and the votes of the stack are dropped
+				spillFile.truncate(block);
+
+				stack = null;
+				n = 0;
+			}
+		}
+
+		private StackMatrix matrix = new StackMatrix();
+		private StackMatrix spilled = new SpilledMatrix();
+
+		// [0]=A, [1]=T, [2]=C, [3]=G
+		private int[] qv_sum = new int[4];
+		private int[] qv_good_cnt = new int[4];
+		private boolean[] recommends = new boolean[4];
+
+		// Vote on a column from the sums in qv_sum and qv_good_cnt, returns
+		// the winner with its recommends, or -1 if the column is skipped
+		private int makeColWinner(final int baseCnts, final boolean under_kmer) {
+			for (int base = 0; base < recommends.length; base++) {
+				recommends[base] = false;
 			}
 
 			// skip this position since it has no enough bases
 			if (baseCnts < Utils.BASE_MIN) {
-				return false;
+				return -1;
 			}
 
 			// find out the winner of the position
@@ -363,7 +1246,7 @@ public class SpreadCorrectRecommend extends Configured implements Tool {
 
 			// winner's qv sum must >= QSUM_WINNER_S
 			if (qv_sum[base_winner] < Utils.QSUM_WINNER_S) {
-				return false;
+				return -1;
 			}
 
 			// the maximum value of non-winner bases
@@ -405,59 +1288,11 @@ public class SpreadCorrectRecommend extends Configured implements Tool {
 				}
 			}
 
-			// make recommendation of each read position
-			for (int i = 0; i < readlist.size(); i++) {
-				ReadInfo readitem = readlist.get(i);
-
-				int pos = readitem.pos + colbias - readitem.offset;
-
-				if (pos < 0 || pos > readitem.seq.length - 1) {
-					continue;
-				}
-
-				int base = Utils.char2idx((char) readitem.seq[pos]);
-
-				if (base == base_winner) {
-					if (recommends[base]) {
-						pos = pos + readitem.offset;
-
-						if (!readitem.dir) {
-							pos = readitem.length - 1 - pos;
-						}
-
-						SuggestInfo tmp_corrects = out_list.get(readitem.id);
-						if (tmp_corrects == null) {
-							tmp_corrects = new SuggestInfo(readitem.length);
-							out_list.put(readitem.id, tmp_corrects);
-						}
-						tmp_corrects.append(pos, 'N');
-
-						reporter.incrCounter("Brush", "confirm_char", 1);
-					}
-				} else {
-					if (base == Utils.char2idx('N') || recommends[base]) {
-						char chr = Utils.idx2char(base_winner);
-
-						pos = pos + readitem.offset;
-
-						if (!readitem.dir) {
-							chr = Utils.rcSEQ(chr + "").charAt(0);
-							pos = readitem.length - 1 - pos;
-						}
-
-						SuggestInfo tmp_corrects = out_list.get(readitem.id);
-						if (tmp_corrects == null) {
-							tmp_corrects = new SuggestInfo(readitem.length);
-							out_list.put(readitem.id, tmp_corrects);
-						}
-						tmp_corrects.append(pos, chr);
-
-						reporter.incrCounter("Brush", "fix_char", 1);
-					}
-				}
-			}
+			return base_winner;
+		}
 
-			// skip the rest positions because of a branch
+		// skip the rest positions because of a branch
+		private boolean makeColBranch(final int base_winner) {
 			for (int base = 0; base < qv_sum.length; base++) {
 				if (base != base_winner) {
 					if (qv_sum[base] >= Utils.QSUM_REPLACE) {
@@ -470,43 +1305,66 @@ public class SpreadCorrectRecommend extends Configured implements Tool {
 		}
 
 		@Override
-		public void reduce(Text prefix, Iterator<Text> iter,
-				OutputCollector<Text, Text> output, Reporter reporter)
+		public void reduce(KmerWritable prefix, Iterator<Text> iter,
+				OutputCollector<Text, VoteWritable> output, Reporter reporter)
 				throws IOException {
 
-			ArrayList<ReadInfo> readlist = new ArrayList<ReadInfo>();
-			HashMap<String, SuggestInfo> out_list = new HashMap<String, SuggestInfo>();
+			try {
+				String kmer = prefix.toString();
 
-			int armLeft = 0;
-			int armRight = 0;
+				while (iter.hasNext()) {
+					// vals: [0]=id, [1]=seq_p, [2]=seq_s [3]=qv, [4]=dir, [5]=pos,
+					// [6]=offset, [7]=length
+					String[] vals = iter.next().toString().split("\t", 8);
 
-			while (iter.hasNext()) {
-				// vals: [0]=id, [1]=seq_p, [2]=seq_s [3]=qv, [4]=dir, [5]=pos,
-				// [6]=offset, [7]=length
-				String[] vals = iter.next().toString().split("\t", 8);
+					ReadInfo readitem = new ReadInfo(vals[0], vals[4],
+							Short.parseShort(vals[5]), vals[1], kmer,
+							vals[2], vals[3], Short.parseShort(vals[6]),
+							Short.parseShort(vals[7]));
 
-				ReadInfo readitem = new ReadInfo(vals[0], vals[4],
-						Short.parseShort(vals[5]), vals[1], prefix.toString(),
-						vals[2], vals[3], Short.parseShort(vals[6]),
-						Short.parseShort(vals[7]));
+					stack.add(readitem);
 
-				armLeft = Math.max(armLeft, readitem.getARMLeft());
-				armRight = Math.max(armRight, readitem.getARMRight());
+					// the stack is dropped, leave the rest of it undecoded
+					if (stack.isFull()) {
+						reporter.incrCounter("Brush", "large_stacks", 1);
+						stack.clear();
+						return;
+					}
+				}
 
-				readlist.add(readitem);
+				recommend(stack, output, reporter);
+			} finally {
+				release();
 			}
+		}
+
+		// Vote on the reads of a stack
+		protected void recommend(final ReadStack readlist,
+				OutputCollector<Text, VoteWritable> output, Reporter reporter)
+				throws IOException {
 
 			// skip large or small stack, -1 ignore
-			if ((StackMax != -1 && readlist.size() > StackMax)
+			if (readlist.isFull()
 					|| (StackMin != -1 && readlist.size() < StackMin)) {
+				if (readlist.isFull()) {
+					reporter.incrCounter("Brush", "large_stacks", 1);
+				}
 				readlist.clear();
 				return;
 			}
 
+			int armLeft = readlist.armLeft;
+			int armRight = readlist.armRight;
+
+			// the stacks in memory vote on StackMatrix, a spilled one on
+			// SpilledMatrix
+			StackMatrix votes = readlist.isSpilled() ? spilled : matrix;
+			votes.set(readlist, armLeft, armRight);
+
 			// left range
 			for (int j = armLeft - 1; j >= 0; j--) {
 				boolean branch = false;
-				branch = makeColEC(readlist, (-armLeft + j), false, out_list, reporter);
+				branch = votes.makeColEC((-armLeft + j), false, reporter);
 				if (branch) {
 					break;
 				}
@@ -515,33 +1373,115 @@ public class SpreadCorrectRecommend extends Configured implements Tool {
 			// K range
 			if (!Utils.SKIP_UNDER) {
 				for (int j = 0; j < K; j++) {
-					makeColEC(readlist, j, true, out_list, reporter);
+					votes.makeColEC(j, true, reporter);
 				}
 			}
 
 			// right range
 			for (int j = 0; j < armRight; j++) {
 				boolean branch = false;
-				branch = makeColEC(readlist, (j + K), false, out_list, reporter);
+				branch = votes.makeColEC((j + K), false, reporter);
 				if (branch) {
 					break;
 				}
 			}
 
+			votes.collect(output);
 			readlist.clear();
+		}
+	}
 
-			// output correction message
-			for (HashMap.Entry<String, SuggestInfo> entry : out_list.entrySet()) {
-				output.collect(new Text(entry.getKey()),
-						new Text(Utils.MSGCORRECT + "\t" + Utils
-								.corrEncode(entry.getValue().toString())));
-			}
+	// Rebuilds the stacks of all kmers with the same minimizer from the
+	// super-kmers of SpreadCorrectRecommendMapper, and votes on each of them
+	// as SpreadCorrectRecommendReducer does
+	public static class SpreadCorrectRecommendSuperReducer extends
+			SpreadCorrectRecommendReducer {
+
+		private String SCHEME = null;
+		private int ARM = 0;
+		private int HEIGHT = 0;
+
+		private int[] wing = new int[2];
+
+		@Override
+		public void configure(JobConf job) {
+			super.configure(job);
+
+			SCHEME = job.get("ARM_SCHEME", null);
+			ARM = job.getInt("ARM_L", 0);
+			HEIGHT = job.getInt("ARM_H", 0);
+		}
+
+		@Override
+		public void reduce(KmerWritable minimizer, Iterator<Text> iter,
+				OutputCollector<Text, VoteWritable> output, Reporter reporter)
+				throws IOException {
+
+			TreeMap<KmerWritable, ReadStack> stacks = new TreeMap<KmerWritable, ReadStack>();
+
+			try {
+				while (iter.hasNext()) {
+					// vals: [0]=id, [1]=seq, [2]=qv, [3]=start, [4]=length,
+					// [5]=positions
+					String[] vals = iter.next().toString().split("\t", 6);
+
+					String seq = Utils.seqDecode(vals[1]);
+					String qv = Utils.qvDecode(vals[2]);
+					int start = Integer.parseInt(vals[3]);
+					short length = Short.parseShort(vals[4]);
+					int end = length - K + 1;
+
+					for (String position : vals[5].split(",")) {
+						int i = Integer.parseInt(position);
 
-			out_list.clear();
+						wings(SCHEME, ARM, HEIGHT, K, i, length, wing);
+
+						String fwd = seq.substring(i - start, i - start + K);
+						String rc = Utils.rcSEQ(fwd);
+						boolean dir = fwd.compareTo(rc) < 0;
+
+						KmerWritable kmer = new KmerWritable(dir ? fwd : rc);
+
+						ReadStack readlist = stacks.get(kmer);
+						if (readlist == null) {
+							readlist = new ReadStack();
+							stacks.put(kmer, readlist);
+						}
+
+						// the stack is dropped, only count the rest of it
+						if (readlist.isFull()) {
+							readlist.skip();
+						} else if (dir) {
+							readlist.add(new ReadInfo(vals[0], true, i, seq,
+									qv, wing[0] - start, wing[1] - start,
+									(short) wing[0], length));
+						} else {
+							readlist.add(new ReadInfo(vals[0], false, end
+									- i - 1, seq, qv, wing[0] - start, wing[1]
+									- start, (short) (length - wing[1]), length));
+						}
+					}
+				}
+
+				for (ReadStack readlist : stacks.values()) {
+					recommend(readlist, output, reporter);
+				}
+
+				stacks.clear();
+			} finally {
+				release();
+			}
 		}
 	}
 
-	public RunningJob run(String inputPath, String outputPath) throws Exception {
+	public JobConf createJob(String inputPath, String outputPath) {
+		return createJob(inputPath, outputPath, null, 0);
+	}
+
+	// As above, pruning the small stacks with the filters of the parts
+	// written by SpreadCorrectSketch if sketchPath is not null
+	public JobConf createJob(String inputPath, String outputPath,
+			String sketchPath, int sketchParts) {
 		sLogger.info("Tool name: " + SpreadCorrectRecommend.class.getSimpleName() + " [3/5]");
 		sLogger.info(" - input: " + inputPath);
 		sLogger.info(" - output: " + outputPath);
@@ -552,20 +1492,38 @@ public class SpreadCorrectRecommend extends Configured implements Tool {
 
 		Config.initializeConfiguration(conf);
 
+		if (sketchPath != null) {
+			conf.set("SC_SKETCH", sketchPath);
+			conf.setInt("SC_SKETCH_PARTS", sketchParts);
+		}
+		if (Config.SC_SUPER.equals("on")) {
+			conf.setInt("SC_MINIMIZER", Math.min(16, (Config.K + 1) / 2));
+		}
+
 		FileInputFormat.addInputPath(conf, new Path(inputPath));
 		FileOutputFormat.setOutputPath(conf, new Path(outputPath));
 
-		conf.setInputFormat(TextInputFormat.class);
-		conf.setOutputFormat(TextOutputFormat.class);
+		conf.setInputFormat(SequenceFileInputFormat.class);
+		conf.setOutputFormat(SequenceFileOutputFormat.class);
 
-		conf.setMapOutputKeyClass(Text.class);
+		conf.setMapOutputKeyClass(KmerWritable.class);
 		conf.setMapOutputValueClass(Text.class);
 
 		conf.setOutputKeyClass(Text.class);
-		conf.setOutputValueClass(Text.class);
+		conf.setOutputValueClass(VoteWritable.class);
 
 		conf.setMapperClass(SpreadCorrectRecommendMapper.class);
-		conf.setReducerClass(SpreadCorrectRecommendReducer.class);
+		if (Config.SC_SUPER.equals("on")) {
+			conf.setReducerClass(SpreadCorrectRecommendSuperReducer.class);
+		} else {
+			conf.setReducerClass(SpreadCorrectRecommendReducer.class);
+		}
+
+		return conf;
+	}
+
+	public RunningJob run(String inputPath, String outputPath) throws Exception {
+		JobConf conf = createJob(inputPath, outputPath);
 
 		// delete the output directory if it exists already
 		FileSystem.get(conf).delete(new Path(outputPath), true);
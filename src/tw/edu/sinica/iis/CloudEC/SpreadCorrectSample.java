@@ -0,0 +1,259 @@
+/*
+ * (C) Copyright 2017 The CloudEC Project and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Contributors:
+ *      Wei-Chun Chung (wcchung@iis.sinica.edu.tw)
+ *      Chien-Chih Chen (rocky@iis.sinica.edu.tw)
+ * 
+ * CloudEC Project:
+ *      https://github.com/CSCLabTW/CloudEC/
+ */
+
+
+package tw.edu.sinica.iis.CloudEC;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.VIntWritable;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.RunningJob;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.log4j.Logger;
+
+// Samples the map output of a SpreadCorrectRecommend job into the plan of
+// a KmerPartitioner. The Recommend mapper itself runs on a fraction of the
+// reads, so the keys are exactly those of the job (kmers or minimizers),
+// and only their number of records is shuffled.
+public class SpreadCorrectSample extends Configured implements Tool {
+	private static final Logger sLogger = Logger
+			.getLogger(SpreadCorrectSample.class);
+
+	// heaviest keys placed on their own
+	private static final int HEAVY_KEYS = 1024;
+
+	public static class SpreadCorrectSampleMapper extends MapReduceBase
+			implements Mapper<Text, ReadNodeWritable, KmerWritable, VIntWritable> {
+
+		private SpreadCorrectRecommend.SpreadCorrectRecommendMapper recommend = new SpreadCorrectRecommend.SpreadCorrectRecommendMapper();
+
+		private int rate = 0;
+
+		private OutputCollector<KmerWritable, VIntWritable> out = null;
+		private VIntWritable one = new VIntWritable(1);
+
+		private OutputCollector<KmerWritable, Text> counter = new OutputCollector<KmerWritable, Text>() {
+			@Override
+			public void collect(KmerWritable key, Text value)
+					throws IOException {
+				out.collect(key, one);
+			}
+		};
+
+		@Override
+		public void configure(JobConf job) {
+			recommend.configure(job);
+
+			// per mille of the reads
+			rate = job.getInt("SAMPLE_RATE", 10);
+		}
+
+		@Override
+		public void map(Text nodeid, ReadNodeWritable node,
+				OutputCollector<KmerWritable, VIntWritable> output,
+				Reporter reporter) throws IOException {
+
+			if ((nodeid.hashCode() & Integer.MAX_VALUE) % 1000 >= rate) {
+				return;
+			}
+
+			out = output;
+
+			reporter.incrCounter("Brush", "sampled_reads", 1);
+
+			// the counters of the Recommend mapper belong to its own job
+			recommend.map(nodeid, node, counter, Reporter.NULL);
+		}
+	}
+
+	public static class SpreadCorrectSampleCombiner extends MapReduceBase
+			implements
+			Reducer<KmerWritable, VIntWritable, KmerWritable, VIntWritable> {
+
+		private VIntWritable count = new VIntWritable();
+
+		@Override
+		public void reduce(KmerWritable key, Iterator<VIntWritable> iter,
+				OutputCollector<KmerWritable, VIntWritable> output,
+				Reporter reporter) throws IOException {
+
+			int sum = 0;
+			while (iter.hasNext()) {
+				sum += iter.next().get();
+			}
+
+			count.set(sum);
+			output.collect(key, count);
+		}
+	}
+
+	// Builds the plan of all keys
+	public static class SpreadCorrectSampleReducer extends MapReduceBase
+			implements
+			Reducer<KmerWritable, VIntWritable, NullWritable, KmerPartitioner.Plan> {
+
+		private long[] buckets = new long[KmerPartitioner.BUCKETS];
+
+		private static class HeavyKey {
+			private final KmerWritable key = new KmerWritable();
+			private final long load;
+
+			HeavyKey(final KmerWritable key1, final long load1) {
+				key.set(key1);
+				load = load1;
+			}
+		}
+
+		// the heaviest keys so far, lightest first
+		private PriorityQueue<HeavyKey> heavy = new PriorityQueue<HeavyKey>(
+				HEAVY_KEYS + 1, new Comparator<HeavyKey>() {
+					@Override
+					public int compare(HeavyKey a, HeavyKey b) {
+						return Long.compare(a.load, b.load);
+					}
+				});
+
+		private OutputCollector<NullWritable, KmerPartitioner.Plan> out = null;
+
+		@Override
+		public void reduce(KmerWritable key, Iterator<VIntWritable> iter,
+				OutputCollector<NullWritable, KmerPartitioner.Plan> output,
+				Reporter reporter) throws IOException {
+			out = output;
+
+			long sum = 0;
+			while (iter.hasNext()) {
+				sum += iter.next().get();
+			}
+
+			reporter.incrCounter("Brush", "sampled_keys", 1);
+
+			KmerPartitioner.Plan.addBucket(buckets, key, sum);
+
+			if (sum > 1) {
+				heavy.add(new HeavyKey(key, sum));
+				if (heavy.size() > HEAVY_KEYS) {
+					heavy.poll();
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (out == null) {
+				return;
+			}
+
+			KmerWritable[] keys = new KmerWritable[heavy.size()];
+			long[] loads = new long[heavy.size()];
+
+			for (int i = 0; i < keys.length; i++) {
+				HeavyKey item = heavy.poll();
+
+				keys[i] = item.key;
+				loads[i] = item.load;
+
+				KmerPartitioner.Plan.addBucket(buckets, keys[i], -loads[i]);
+			}
+
+			out.collect(NullWritable.get(), new KmerPartitioner.Plan(buckets,
+					keys, loads));
+		}
+	}
+
+	// The sample of the job recommend, with rate per mille of the reads
+	public JobConf createJob(JobConf recommend, String outputPath, int rate) {
+		sLogger.info("Tool name: " + SpreadCorrectSample.class.getSimpleName() + " [3/5]");
+		sLogger.info(" - output: " + outputPath);
+
+		// the same input and parameters as the Recommend job
+		JobConf conf = new JobConf(recommend);
+		conf.setJobName(SpreadCorrectSample.class.getSimpleName() + " " + outputPath + " " + Config.K);
+
+		conf.setInt("SAMPLE_RATE", rate);
+
+		FileOutputFormat.setOutputPath(conf, new Path(outputPath));
+
+		conf.setOutputFormat(SequenceFileOutputFormat.class);
+
+		conf.setMapOutputKeyClass(KmerWritable.class);
+		conf.setMapOutputValueClass(VIntWritable.class);
+
+		conf.setOutputKeyClass(NullWritable.class);
+		conf.setOutputValueClass(KmerPartitioner.Plan.class);
+
+		conf.setMapperClass(SpreadCorrectSampleMapper.class);
+		conf.setCombinerClass(SpreadCorrectSampleCombiner.class);
+		conf.setReducerClass(SpreadCorrectSampleReducer.class);
+
+		// a single plan
+		conf.setNumReduceTasks(1);
+
+		return conf;
+	}
+
+	public RunningJob run(JobConf recommend, String outputPath, int rate)
+			throws Exception {
+		JobConf conf = createJob(recommend, outputPath, rate);
+
+		// delete the output directory if it exists already
+		FileSystem.get(conf).delete(new Path(outputPath), true);
+
+		return JobClient.runJob(conf);
+	}
+
+	@Override
+	public int run(String[] args) throws Exception {
+		String inputPath = "";
+		String outputPath = "";
+
+		run(new SpreadCorrectRecommend().createJob(inputPath, outputPath
+				+ ".fe"), outputPath, 10);
+
+		return 0;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int res = ToolRunner.run(new Configuration(), new SpreadCorrectSample(), args);
+		System.exit(res);
+	}
+}
@@ -0,0 +1,290 @@
+/*
+ * (C) Copyright 2017 The CloudEC Project and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Contributors:
+ *      Wei-Chun Chung (wcchung@iis.sinica.edu.tw)
+ *      Chien-Chih Chen (rocky@iis.sinica.edu.tw)
+ * 
+ * CloudEC Project:
+ *      https://github.com/CSCLabTW/CloudEC/
+ */
+
+
+package tw.edu.sinica.iis.CloudEC;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.VIntWritable;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Partitioner;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.RunningJob;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.log4j.Logger;
+
+// The solid kmers of a SpreadCorrect round, those SpreadCorrectRecommendMapper
+// would emit at least STACK_MIN times, as a KmerFilter per reducer. The
+// Recommend mapper drops the kmers missing from the filter of their part,
+// the reducer would drop their stacks.
+//
+// The kmers are counted like in LargeKmerFilterListKmers and split into
+// SKETCH_PARTS parts by KmerFilter.part, one per reducer the job was created
+// with; every reducer writes the filters of its parts, sized by the solid
+// kmers it found.
+public class SpreadCorrectSketch extends Configured implements Tool {
+	private static final Logger sLogger = Logger
+			.getLogger(SpreadCorrectSketch.class);
+
+	public static class SpreadCorrectSketchMapper extends MapReduceBase
+			implements Mapper<Text, ReadNodeWritable, KmerWritable, VIntWritable> {
+
+		public static int K = 0;
+
+		private KmerIterator kmers = null;
+		private KmerWritable kmer = new KmerWritable();
+		private VIntWritable one = new VIntWritable(1);
+
+		@Override
+		public void configure(JobConf job) {
+			K = job.getInt("K", 0);
+
+			kmers = new KmerIterator(K, false);
+		}
+
+		@Override
+		public void map(Text nodeid, ReadNodeWritable node,
+				OutputCollector<KmerWritable, VIntWritable> output,
+				Reporter reporter) throws IOException {
+
+			long[] nodeIGN = node.getIGN(Utils.IGNF);
+
+			// the same kmers as SpreadCorrectRecommendMapper
+			kmers.reset(node);
+			while (kmers.next()) {
+				int i = kmers.getPos();
+
+				if (ReadNodeWritable.isIgnored(nodeIGN, i)) {
+					kmers.seek(ReadNodeWritable.nextNotIgnored(nodeIGN, i));
+					continue;
+				}
+
+				if (kmers.isPalindrome()) {
+					continue;
+				}
+
+				kmers.getCanonical(kmer, KmerWritable.TAG_NONE);
+				output.collect(kmer, one);
+			}
+		}
+	}
+
+	public static class SpreadCorrectSketchCombiner extends MapReduceBase
+			implements
+			Reducer<KmerWritable, VIntWritable, KmerWritable, VIntWritable> {
+
+		private VIntWritable count = new VIntWritable();
+
+		@Override
+		public void reduce(KmerWritable kmer, Iterator<VIntWritable> iter,
+				OutputCollector<KmerWritable, VIntWritable> output,
+				Reporter reporter) throws IOException {
+
+			int sum = 0;
+			while (iter.hasNext()) {
+				sum += iter.next().get();
+			}
+
+			count.set(sum);
+			output.collect(kmer, count);
+		}
+	}
+
+	// The reducer of the part of a kmer, the Recommend mapper looks it up in
+	// the filter of the same part
+	public static class SpreadCorrectSketchPartitioner implements
+			Partitioner<KmerWritable, VIntWritable> {
+
+		private int parts = 1;
+
+		@Override
+		public void configure(JobConf job) {
+			parts = job.getInt("SKETCH_PARTS", 1);
+		}
+
+		@Override
+		public int getPartition(KmerWritable kmer, VIntWritable count,
+				int numPartitions) {
+			return KmerFilter.part(KmerFilter.hash(kmer), parts)
+					% numPartitions;
+		}
+	}
+
+	// Keeps the hashes of the solid kmers, and writes a filter for each part
+	// it got, keyed by the part, when the task is done. That is one part
+	// unless the job runs with fewer reducers, as on the LocalJobRunner
+	public static class SpreadCorrectSketchReducer extends MapReduceBase
+			implements
+			Reducer<KmerWritable, VIntWritable, IntWritable, KmerFilter> {
+
+		public static int StackMin = 0;
+
+		private int parts = 1;
+
+		private long[] hashes = new long[1024];
+		private int solid = 0;
+
+		private OutputCollector<IntWritable, KmerFilter> out = null;
+
+		@Override
+		public void configure(JobConf job) {
+			StackMin = job.getInt("STACK_MIN", 0);
+			parts = job.getInt("SKETCH_PARTS", 1);
+		}
+
+		@Override
+		public void reduce(KmerWritable kmer, Iterator<VIntWritable> iter,
+				OutputCollector<IntWritable, KmerFilter> output,
+				Reporter reporter) throws IOException {
+
+			out = output;
+
+			int sum = 0;
+			while (iter.hasNext()) {
+				sum += iter.next().get();
+			}
+
+			reporter.incrCounter("Brush", "sketch_kmers", 1);
+
+			if (sum < StackMin) {
+				return;
+			}
+
+			if (solid == hashes.length) {
+				hashes = Arrays.copyOf(hashes, solid * 2);
+			}
+			hashes[solid++] = KmerFilter.hash(kmer);
+
+			reporter.incrCounter("Brush", "solid_kmers", 1);
+		}
+
+		@Override
+		public void close() throws IOException {
+			// a part without solid kmers needs no filter, all of its kmers
+			// are dropped
+			if (out == null || solid == 0) {
+				return;
+			}
+
+			int[] counts = new int[parts];
+			for (int i = 0; i < solid; i++) {
+				counts[KmerFilter.part(hashes[i], parts)]++;
+			}
+
+			KmerFilter[] filters = new KmerFilter[parts];
+			for (int p = 0; p < parts; p++) {
+				if (counts[p] > 0) {
+					filters[p] = new KmerFilter(counts[p]);
+				}
+			}
+
+			for (int i = 0; i < solid; i++) {
+				filters[KmerFilter.part(hashes[i], parts)].add(hashes[i]);
+			}
+
+			IntWritable part = new IntWritable();
+			for (int p = 0; p < parts; p++) {
+				if (filters[p] != null) {
+					part.set(p);
+					out.collect(part, filters[p]);
+				}
+			}
+		}
+	}
+
+	public JobConf createJob(String inputPath, String outputPath) {
+		sLogger.info("Tool name: " + SpreadCorrectSketch.class.getSimpleName() + " [3/5]");
+		sLogger.info(" - input: " + inputPath);
+		sLogger.info(" - output: " + outputPath);
+
+		JobConf conf = new JobConf(SpreadCorrectSketch.class);
+		conf.setJobName(SpreadCorrectSketch.class.getSimpleName() + " " + inputPath + " " + Config.K);
+
+		Config.initializeConfiguration(conf);
+
+		conf.setInt("SKETCH_PARTS", Math.max(1, conf.getNumReduceTasks()));
+
+		FileInputFormat.addInputPath(conf, new Path(inputPath));
+		FileOutputFormat.setOutputPath(conf, new Path(outputPath));
+
+		conf.setInputFormat(SequenceFileInputFormat.class);
+		conf.setOutputFormat(SequenceFileOutputFormat.class);
+
+		conf.setMapOutputKeyClass(KmerWritable.class);
+		conf.setMapOutputValueClass(VIntWritable.class);
+
+		conf.setOutputKeyClass(IntWritable.class);
+		conf.setOutputValueClass(KmerFilter.class);
+
+		conf.setMapperClass(SpreadCorrectSketchMapper.class);
+		conf.setCombinerClass(SpreadCorrectSketchCombiner.class);
+		conf.setPartitionerClass(SpreadCorrectSketchPartitioner.class);
+		conf.setReducerClass(SpreadCorrectSketchReducer.class);
+
+		return conf;
+	}
+
+	public RunningJob run(String inputPath, String outputPath)
+			throws Exception {
+		JobConf conf = createJob(inputPath, outputPath);
+
+		// delete the output directory if it exists already
+		FileSystem.get(conf).delete(new Path(outputPath), true);
+
+		return JobClient.runJob(conf);
+	}
+
+	@Override
+	public int run(String[] args) throws Exception {
+		String inputPath = "";
+		String outputPath = "";
+
+		run(inputPath, outputPath);
+
+		return 0;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int res = ToolRunner.run(new Configuration(), new SpreadCorrectSketch(), args);
+		System.exit(res);
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ * (C) Copyright 2017 The CloudEC Project and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Contributors:
+ *      Wei-Chun Chung (wcchung@iis.sinica.edu.tw)
+ *      Chien-Chih Chen (rocky@iis.sinica.edu.tw)
+ * 
+ * CloudEC Project:
+ *      https://github.com/CSCLabTW/CloudEC/
+ */
+
+
+package tw.edu.sinica.iis.CloudEC;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Properties;
+
+import org.apache.hadoop.fs.FileChecksum;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+// What a stage (or a round of it) was run with: its inputs and their
+// checksum, the parameters its jobs read, its output and the checksum of
+// the output, and the counters the driver needs to go on from it.
+//
+// A stage whose stored manifest matches the current one, and whose output
+// is still unchanged, does not need to be run again. Without a file system
+// (the outputs of the local engine are in memory) nothing is stored.
+public class StageManifest {
+	private final FileSystem fs;
+	private final Path path;
+
+	private final Properties props = new Properties();
+
+	public StageManifest(final FileSystem fs1, final String path1) {
+		fs = fs1;
+		path = new Path(path1);
+	}
+
+	public String getOutput() {
+		return props.getProperty("output");
+	}
+
+	public void setInput(final String inputs) throws IOException {
+		props.setProperty("input", inputs);
+
+		if (fs != null) {
+			props.setProperty("input.checksum", checksum(inputs));
+		}
+	}
+
+	public void setOutput(final String output) {
+		props.setProperty("output", output);
+	}
+
+	public void setParam(final String name, final Object value) {
+		props.setProperty("param." + name, String.valueOf(value));
+	}
+
+	public void setCounter(final String name, final long value) {
+		props.setProperty("counter." + name, Long.toString(value));
+	}
+
+	public long getCounter(final String name) {
+		return Long.parseLong(props.getProperty("counter." + name, "0"));
+	}
+
+	// Whether the stored manifest has the same inputs, parameters and
+	// output, and the output was not changed since. The stored counters
+	// are loaded if so.
+	public boolean matches() throws IOException {
+		if (fs == null || !fs.exists(path)) {
+			return false;
+		}
+
+		Properties stored = new Properties();
+
+		InputStream in = fs.open(path);
+		try {
+			stored.load(in);
+		} finally {
+			in.close();
+		}
+
+		for (String name : props.stringPropertyNames()) {
+			if (!props.getProperty(name).equals(stored.getProperty(name))) {
+				return false;
+			}
+		}
+
+		String output = props.getProperty("output");
+		if (!fs.exists(new Path(output))
+				|| !checksum(output).equals(stored.getProperty("output.checksum"))) {
+			return false;
+		}
+
+		for (String name : stored.stringPropertyNames()) {
+			if (name.startsWith("counter.")) {
+				props.setProperty(name, stored.getProperty(name));
+			}
+		}
+
+		return true;
+	}
+
+	// Store the manifest once the output is complete
+	public void save() throws IOException {
+		if (fs == null) {
+			return;
+		}
+
+		props.setProperty("output.checksum", checksum(props.getProperty("output")));
+
+		OutputStream out = fs.create(path, true);
+		try {
+			props.store(out, "CloudEC stage manifest");
+		} finally {
+			out.close();
+		}
+
+		props.remove("output.checksum");
+	}
+
+	public void delete() throws IOException {
+		if (fs != null) {
+			fs.delete(path, false);
+		}
+	}
+
+	// Digest of all files under the comma separated paths. The file checksum
+	// is used if the file system has one (HDFS), and the modification time
+	// otherwise.
+	private String checksum(final String paths) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+
+		for (String p : paths.split(",")) {
+			ArrayList<String> entries = new ArrayList<String>();
+
+			FileStatus[] matches = fs.globStatus(new Path(p));
+			if (matches != null) {
+				for (FileStatus status : matches) {
+					list(status, entries);
+				}
+			}
+
+			Collections.sort(entries);
+
+			md.update(p.getBytes("UTF-8"));
+			for (String entry : entries) {
+				md.update(entry.getBytes("UTF-8"));
+			}
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (byte b : md.digest()) {
+			sb.append(String.format("%02x", b & 0xFF));
+		}
+
+		return sb.toString();
+	}
+
+	private void list(final FileStatus status, final ArrayList<String> entries)
+			throws IOException {
+		String name = status.getPath().getName();
+
+		// skip _logs, _SUCCESS and the hidden checksum files
+		if (name.startsWith("_") || name.startsWith(".")) {
+			return;
+		}
+
+		if (status.isDir()) {
+			for (FileStatus child : fs.listStatus(status.getPath())) {
+				list(child, entries);
+			}
+			return;
+		}
+
+		FileChecksum sum = fs.getFileChecksum(status.getPath());
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(status.getPath().toUri().getPath()).append('\t');
+		sb.append(status.getLen()).append('\t');
+
+		if (sum != null) {
+			for (byte b : sum.getBytes()) {
+				sb.append(String.format("%02x", b & 0xFF));
+			}
+		} else {
+			sb.append(status.getModificationTime());
+		}
+
+		entries.add(sb.toString());
+	}
+}
@@ -25,13 +25,14 @@ package tw.edu.sinica.iis.CloudEC;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.FileInputFormat;
 import org.apache.hadoop.mapred.FileOutputFormat;
@@ -43,8 +44,8 @@ import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.RunningJob;
-import org.apache.hadoop.mapred.TextInputFormat;
-import org.apache.hadoop.mapred.TextOutputFormat;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.log4j.Logger;
@@ -54,76 +55,138 @@ public class UniqueKmerFilterCountKmers extends Configured implements Tool {
 			.getLogger(UniqueKmerFilterCountKmers.class);
 
 	public static class UniqueKmerFilterCountKmersMapper extends MapReduceBase implements
-			Mapper<LongWritable, Text, Text, Text> {
+			Mapper<Text, ReadNodeWritable, KmerWritable, KmerReadsWritable> {
 
 		public static int K = 0;
 
+		// kmers aggregated in the mapper, flushed when the table is full
+		private static final int TABLE_SIZE = 1 << 16;
+
+		private KmerIterator kmers = null;
+		private KmerWritable kmer = new KmerWritable();
+
+		private Map<KmerWritable, KmerReadsWritable> table = new HashMap<KmerWritable, KmerReadsWritable>();
+		private OutputCollector<KmerWritable, KmerReadsWritable> out = null;
+
+		// entries of the flushed tables, reused by the next ones
+		private ArrayList<KmerWritable> freeKeys = new ArrayList<KmerWritable>();
+		private ArrayList<KmerReadsWritable> freeReads = new ArrayList<KmerReadsWritable>();
+
+		private AllocationCounter alloc = new AllocationCounter();
+
 		@Override
 		public void configure(JobConf job) {
 			K = job.getInt("K", 0);
+
+			kmers = new KmerIterator(K, false);
 		}
 
 		@Override
-		public void map(LongWritable lineid, Text nodetxt,
-				OutputCollector<Text, Text> output, Reporter reporter)
-				throws IOException {
+		public void map(Text nodeid, ReadNodeWritable node,
+				OutputCollector<KmerWritable, KmerReadsWritable> output,
+				Reporter reporter) throws IOException {
 
-			Utils node = new Utils();
-			node.fromNodeMsg(nodetxt.toString());
+			out = output;
 
-			int end = node.getLen() - K + 1;
-			for (int i = 0; i < end; i++) {
-				String window_tmp = node.getSEQ().substring(i, i + K);
-				String window_tmp_r = Utils.rcSEQ(window_tmp);
+			kmers.reset(node);
+			while (kmers.next()) {
+				kmers.getCanonical(kmer, KmerWritable.TAG_NONE);
 
-				if (window_tmp.contains("N")) {
-					continue;
-				}
+				KmerReadsWritable reads = table.get(kmer);
+				if (reads == null) {
+					int free = freeKeys.size();
 
-				int compare = window_tmp.compareTo(window_tmp_r);
-				if (compare < 0) {
-					output.collect(new Text(Utils.seqEncode(window_tmp)),
-							new Text(node.getNodeId()));
-				} else {
-					output.collect(new Text(Utils.seqEncode(window_tmp_r)),
-							new Text(node.getNodeId()));
+					KmerWritable key = (free > 0) ? freeKeys.remove(free - 1)
+							: new KmerWritable();
+					key.set(kmer);
+
+					reads = (free > 0) ? freeReads.remove(free - 1)
+							: new KmerReadsWritable();
+					table.put(key, reads);
 				}
+				reads.add(nodeid);
 			}
+
+			if (table.size() >= TABLE_SIZE) {
+				flush();
+			}
+
+			alloc.count(reporter);
+		}
+
+		private void flush() throws IOException {
+			for (Map.Entry<KmerWritable, KmerReadsWritable> entry : table
+					.entrySet()) {
+				out.collect(entry.getKey(), entry.getValue());
+
+				entry.getValue().clear();
+				freeKeys.add(entry.getKey());
+				freeReads.add(entry.getValue());
+			}
+
+			table.clear();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (out != null) {
+				flush();
+			}
+		}
+	}
+
+	// Merges the occurrences of a kmer from the map tasks
+	public static class UniqueKmerFilterCountKmersCombiner extends MapReduceBase
+			implements
+			Reducer<KmerWritable, KmerReadsWritable, KmerWritable, KmerReadsWritable> {
+
+		private KmerReadsWritable reads = new KmerReadsWritable();
+
+		@Override
+		public void reduce(KmerWritable prefix,
+				Iterator<KmerReadsWritable> iter,
+				OutputCollector<KmerWritable, KmerReadsWritable> output,
+				Reporter reporter) throws IOException {
+
+			reads.clear();
+
+			while (iter.hasNext() && !reads.isSaturated()) {
+				reads.addAll(iter.next());
+			}
+
+			output.collect(prefix, reads);
 		}
 	}
 
 	public static class UniqueKmerFilterCountKmersReducer extends MapReduceBase
-			implements Reducer<Text, Text, Text, Text> {
+			implements Reducer<KmerWritable, KmerReadsWritable, Text, Text> {
+
+		private KmerReadsWritable reads = new KmerReadsWritable();
 
 		@Override
-		public void reduce(Text prefix, Iterator<Text> iter,
+		public void reduce(KmerWritable prefix,
+				Iterator<KmerReadsWritable> iter,
 				OutputCollector<Text, Text> output, Reporter reporter)
 				throws IOException {
 
-			// A list contains the read id contain the kmer (prefix)
-			ArrayList<String> list = new ArrayList<String>();
-
-			while (iter.hasNext()) {
-				list.add(iter.next().toString());
+			reads.clear();
 
-				// ignore when the kmer reach the threshold
-				if (list.size() > Utils.UNIQUE_READ) {
-					break;
-				}
+			// ignore when the kmer reach the threshold
+			while (iter.hasNext() && !reads.isSaturated()) {
+				reads.addAll(iter.next());
 			}
 
 			// sent out id unique reads
-			if (list.size() <= Utils.UNIQUE_READ) {
-				for (String s : list) {
-					output.collect(new Text(s), new Text(Utils.MSGUPDATE + "\t" + 1));
+			if (!reads.isSaturated()) {
+				for (int i = 0; i < reads.getCount(); i++) {
+					output.collect(new Text(reads.getId(i)), new Text(
+							Utils.MSGUPDATE + "\t" + 1));
 				}
 			}
-
-			list.clear();
 		}
 	}
 
-	public RunningJob run(String inputPath, String outputPath) throws Exception {
+	public JobConf createJob(String inputPath, String outputPath) {
 		sLogger.info("Tool name: " + UniqueKmerFilterCountKmers.class.getSimpleName() + " [4/5]");
 		sLogger.info(" - input: " + inputPath);
 		sLogger.info(" - output: " + outputPath);
@@ -136,18 +199,25 @@ public class UniqueKmerFilterCountKmers extends Configured implements Tool {
 		FileInputFormat.addInputPath(conf, new Path(inputPath));
 		FileOutputFormat.setOutputPath(conf, new Path(outputPath));
 
-		conf.setInputFormat(TextInputFormat.class);
-		conf.setOutputFormat(TextOutputFormat.class);
+		conf.setInputFormat(SequenceFileInputFormat.class);
+		conf.setOutputFormat(SequenceFileOutputFormat.class);
 
-		conf.setMapOutputKeyClass(Text.class);
-		conf.setMapOutputValueClass(Text.class);
+		conf.setMapOutputKeyClass(KmerWritable.class);
+		conf.setMapOutputValueClass(KmerReadsWritable.class);
 
 		conf.setOutputKeyClass(Text.class);
 		conf.setOutputValueClass(Text.class);
 
 		conf.setMapperClass(UniqueKmerFilterCountKmersMapper.class);
+		conf.setCombinerClass(UniqueKmerFilterCountKmersCombiner.class);
 		conf.setReducerClass(UniqueKmerFilterCountKmersReducer.class);
 
+		return conf;
+	}
+
+	public RunningJob run(String inputPath, String outputPath) throws Exception {
+		JobConf conf = createJob(inputPath, outputPath);
+
 		// delete the output directory if it exists already
 		FileSystem.get(conf).delete(new Path(outputPath), true);
 
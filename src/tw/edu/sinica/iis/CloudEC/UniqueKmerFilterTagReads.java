@@ -30,8 +30,8 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapred.FileInputFormat;
 import org.apache.hadoop.mapred.FileOutputFormat;
 import org.apache.hadoop.mapred.JobClient;
@@ -42,8 +42,8 @@ import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.RunningJob;
-import org.apache.hadoop.mapred.TextInputFormat;
-import org.apache.hadoop.mapred.TextOutputFormat;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.log4j.Logger;
@@ -53,38 +53,58 @@ public class UniqueKmerFilterTagReads extends Configured implements Tool {
 			.getLogger(UniqueKmerFilterTagReads.class);
 
 	public static class UniqueKmerFilterTagReadsMapper extends MapReduceBase implements
-			Mapper<LongWritable, Text, Text, Text> {
+			Mapper<Text, Writable, NodeKeyWritable, NodeMsgWritable> {
+
+		private NodeKeyWritable key = new NodeKeyWritable();
+		private NodeMsgWritable msg = new NodeMsgWritable();
+
+		private AllocationCounter alloc = new AllocationCounter();
 
 		@Override
-		public void map(LongWritable lineid, Text nodetxt,
-				OutputCollector<Text, Text> output, Reporter reporter)
+		public void map(Text nodeid, Writable value,
+				OutputCollector<NodeKeyWritable, NodeMsgWritable> output,
+				Reporter reporter)
 				throws IOException {
 
-			String vals[] = nodetxt.toString().split("\t", 2);
+			msg.set(value);
+			key.set(nodeid, msg.getType());
 
-			output.collect(new Text(vals[0]), new Text(vals[1]));
+			output.collect(key, msg);
+
+			alloc.count(reporter);
 		}
 	}
 
 	public static class UniqueKmerFilterTagReadsReducer extends MapReduceBase implements
-			Reducer<Text, Text, Text, Text> {
+			Reducer<NodeKeyWritable, NodeMsgWritable, Text, ReadNodeWritable> {
 
 		@Override
-		public void reduce(Text prefix, Iterator<Text> iter,
-				OutputCollector<Text, Text> output, Reporter reporter)
+		public void reduce(NodeKeyWritable key, Iterator<NodeMsgWritable> iter,
+				OutputCollector<Text, ReadNodeWritable> output, Reporter reporter)
 				throws IOException {
 
-			Utils node = new Utils();
+			// the node sorts first, messages without it are dropped
+			NodeMsgWritable val = iter.next();
+
+			if (!val.isNode()) {
+				return;
+			}
+
+			ReadNodeWritable node = val.getNode();
 			boolean trust = true;
 
 			// TODO: need better processing strategy for mixed data
 			while (iter.hasNext()) {
-				String[] data = iter.next().toString().split("\t", 2);
+				val = iter.next();
+
+				// multiple main node exists, it's an error
+				if (val.isNode()) {
+					return;
+				}
+
+				String[] data = val.getMessage().toString().split("\t", 2);
 
-				if (data[0].equals(Utils.MSGNODE)) {
-					node.fromNodeMsg(prefix.toString() + "\t" + data[0] + "\t"
-							+ data[1]);
-				} else if (data[0].equals(Utils.MSGUPDATE)) {
+				if (data[0].equals(Utils.MSGUPDATE)) {
 					trust = false;
 				}
 			}
@@ -96,12 +116,11 @@ public class UniqueKmerFilterTagReads extends Configured implements Tool {
 				reporter.incrCounter("Brush", "unique_reads", 1);
 			}
 
-			output.collect(new Text(node.getNodeId()),
-					new Text(node.toNodeMsg()));
+			output.collect(key.getId(), node);
 		}
 	}
 
-	public RunningJob run(String inputPath, String outputPath) throws Exception {
+	public JobConf createJob(String inputPath, String outputPath) {
 		sLogger.info("Tool name: " + UniqueKmerFilterTagReads.class.getSimpleName() + " [4/5]");
 		sLogger.info(" - input: " + inputPath);
 		sLogger.info(" - output: " + outputPath);
@@ -114,18 +133,24 @@ public class UniqueKmerFilterTagReads extends Configured implements Tool {
 		FileInputFormat.addInputPaths(conf, inputPath);
 		FileOutputFormat.setOutputPath(conf, new Path(outputPath));
 
-		conf.setInputFormat(TextInputFormat.class);
-		conf.setOutputFormat(TextOutputFormat.class);
+		conf.setInputFormat(SequenceFileInputFormat.class);
+		conf.setOutputFormat(SequenceFileOutputFormat.class);
 
-		conf.setMapOutputKeyClass(Text.class);
-		conf.setMapOutputValueClass(Text.class);
+		NodeKeyWritable.setJoin(conf);
+		conf.setMapOutputValueClass(NodeMsgWritable.class);
 
 		conf.setOutputKeyClass(Text.class);
-		conf.setOutputValueClass(Text.class);
+		conf.setOutputValueClass(ReadNodeWritable.class);
 
 		conf.setMapperClass(UniqueKmerFilterTagReadsMapper.class);
 		conf.setReducerClass(UniqueKmerFilterTagReadsReducer.class);
 
+		return conf;
+	}
+
+	public RunningJob run(String inputPath, String outputPath) throws Exception {
+		JobConf conf = createJob(inputPath, outputPath);
+
 		// delete the output directory if it exists already
 		FileSystem.get(conf).delete(new Path(outputPath), true);
 
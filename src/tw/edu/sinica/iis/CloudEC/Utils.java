@@ -23,10 +23,7 @@
 
 package tw.edu.sinica.iis.CloudEC;
 
-import java.io.IOException;
-import java.text.DecimalFormat;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
 
 public class Utils {
 	// Node message codes
@@ -54,6 +51,8 @@ public class Utils {
 	public static final short QV_FLATE_FIX = QV_FIX;
 	public static final short QV_FLATE_FACTOR = 3;
 	public static final short QV_FLATE_UP = QV_UP / QV_FLATE_FACTOR;
+	public static final short QV_INFLATE_FIX = (QV_FLATE_FIX - QV_BASE)
+			* QV_FLATE_FACTOR + (QV_FLATE_FACTOR / 2) + QV_BASE;
 
 	public static final short QV_SMOOTH_RADIOUS = 2;
 
@@ -82,261 +81,161 @@ public class Utils {
 	public static final float RATIO_ISPOLY = 0.9f;
 
 	// code bases
-	private static final String[] dnachars = { "A", "T", "C", "G", "N" };
-	private static final String[] codechars = { "A", "T", "C", "G", "N", "X" };
+	private static final char[] dnachars = { 'A', 'T', 'C', 'G', 'N' };
+	private static final char[] codechars = { 'A', 'T', 'C', 'G', 'N', 'X' };
 
-	private static final char[] hex = { '0', '1', '2', '3', '4', '5', '6', '7',
-			'8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
-
-	private static final String[] h2b = { "0000", "0001", "0010", "0011",
-			"0100", "0101", "0110", "0111", "1000", "1001", "1010", "1011",
-			"1100", "1101", "1110", "1111" };
-
-	// initialize functions
-	private static final HashMap<String, String> str2dna_ = initializeSTR2DNA();
-	private static final HashMap<String, String> dna2str_ = initializeDNA2STR();
-
-	private static final HashMap<String, String> str2code_ = initializeSTR2CODE();
-	private static final HashMap<String, String> code2str_ = initializeCODE2STR();
-
-	// node members
-	private String id;
-	private HashMap<String, ArrayList<String>> fields = new HashMap<String, ArrayList<String>>();
+	// index of an ASCII char in dnachars/codechars, unknown chars map to N
+	private static final byte[] dna2idx_ = initializeIndex(dnachars);
+	private static final byte[] code2idx_ = initializeIndex(codechars);
 
 	/* Encoder/Decoder lookup table initializer */
 
-	// Encoding table
-	// e.g. A=>A, AA=>B, AT=>C, AC=>D, AG=>E, ...
-	private static HashMap<String, String> initializeSTR2DNA() {
-		int num = 0;
-		int asciibase = 'A';
-
-		HashMap<String, String> retval = new HashMap<String, String>();
+	private static byte[] initializeIndex(final char[] chars) {
+		byte[] retval = new byte[128];
 
-		for (int xi = 0; xi < dnachars.length; xi++) {
-			retval.put(dnachars[xi],
-					Character.toString((char) (num + asciibase)));
-
-			num++;
-
-			for (int yi = 0; yi < dnachars.length; yi++) {
-				retval.put(dnachars[xi] + dnachars[yi],
-						Character.toString((char) (num + asciibase)));
-				num++;
-			}
+		for (int i = 0; i < retval.length; i++) {
+			retval[i] = 4;
 		}
 
-		for (int xi = 0; xi < dnachars.length; xi++) {
-			for (int yi = 0; yi < dnachars.length; yi++) {
-				String m = retval.get(dnachars[xi] + dnachars[yi]);
-
-				for (int zi = 0; zi < dnachars.length; zi++) {
-					retval.put(dnachars[xi] + dnachars[yi] + dnachars[zi], m
-							+ retval.get(dnachars[zi]));
-
-					for (int wi = 0; wi < dnachars.length; wi++) {
-						retval.put(dnachars[xi] + dnachars[yi] + dnachars[zi]
-								+ dnachars[wi],
-								m + retval.get(dnachars[zi] + dnachars[wi]));
-
-						for (int ui = 0; ui < dnachars.length; ui++) {
-							retval.put(dnachars[xi] + dnachars[yi] + dnachars[zi]
-									+ dnachars[wi] + dnachars[ui],
-									m + retval.get(dnachars[zi] + dnachars[wi])
-									+ retval.get(dnachars[ui]));
-						}
-					}
-				}
-			}
+		for (int i = 0; i < chars.length; i++) {
+			retval[chars[i]] = (byte) i;
 		}
 
 		return retval;
 	}
 
-	// Decoding table
-	// e.g. A=>A, B=>AA, C=>AT, D=>AC, E=>AG, ...
-	private static HashMap<String, String> initializeDNA2STR() {
-		int num = 0;
-		int asciibase = 65;
+	/* Encoder/Decoder helpers */
+
+	// The input is cut into chunks of the alphabet size, and each chunk is
+	// coded as pairs of chars plus a single tail char if the chunk is odd.
+	// With n chars in the alphabet, a single char x is coded as
+	// 'A' + x * (n + 1) and a pair x, y is coded as 'A' + x * (n + 1) + 1 + y.
+	// e.g. A=>A, AA=>B, AT=>C, AC=>D, AG=>E, ...
+	private static int index(final byte[] idx, final int chr) {
+		return (chr >= 0 && chr < idx.length) ? idx[chr] : 4;
+	}
 
-		HashMap<String, String> retval = new HashMap<String, String>();
+	private static StringBuilder encode(final CharSequence src, final int start,
+			final int end, final byte[] idx, final int n, final StringBuilder sb) {
+		int offset = start;
 
-		for (int xi = 0; xi < dnachars.length; xi++) {
-			retval.put(Character.toString((char) (num + asciibase)),
-					dnachars[xi]);
+		while (offset < end) {
+			int chunk = Math.min(offset + n, end);
 
-			num++;
+			for (; offset + 1 < chunk; offset += 2) {
+				sb.append((char) ('A' + index(idx, src.charAt(offset)) * (n + 1)
+						+ 1 + index(idx, src.charAt(offset + 1))));
+			}
 
-			for (int yi = 0; yi < dnachars.length; yi++) {
-				retval.put(Character.toString((char) (num + asciibase)),
-						dnachars[xi] + dnachars[yi]);
-				num++;
+			if (offset < chunk) {
+				sb.append((char) ('A' + index(idx, src.charAt(offset)) * (n + 1)));
+				offset++;
 			}
 		}
 
-		return retval;
+		return sb;
 	}
 
-	private static HashMap<String, String> initializeSTR2CODE() {
-		int num = 0;
-		int asciibase = 'A';
-
-		HashMap<String, String> retval = new HashMap<String, String>();
+	private static StringBuilder encode(final byte[] src, final int start,
+			final int end, final byte[] idx, final int n, final StringBuilder sb) {
+		int offset = start;
 
-		for (int xi = 0; xi < codechars.length; xi++) {
-			retval.put(codechars[xi],
-					Character.toString((char) (num + asciibase)));
+		while (offset < end) {
+			int chunk = Math.min(offset + n, end);
 
-			num++;
-
-			for (int yi = 0; yi < codechars.length; yi++) {
-				retval.put(codechars[xi] + codechars[yi],
-						Character.toString((char) (num + asciibase)));
-				num++;
+			for (; offset + 1 < chunk; offset += 2) {
+				sb.append((char) ('A' + index(idx, src[offset]) * (n + 1) + 1
+						+ index(idx, src[offset + 1])));
 			}
-		}
 
-		for (int xi = 0; xi < codechars.length; xi++) {
-			for (int yi = 0; yi < codechars.length; yi++) {
-				String m = retval.get(codechars[xi] + codechars[yi]);
-
-				for (int zi = 0; zi < codechars.length; zi++) {
-					retval.put(codechars[xi] + codechars[yi] + codechars[zi], m
-							+ retval.get(codechars[zi]));
-
-					for (int wi = 0; wi < codechars.length; wi++) {
-						retval.put(codechars[xi] + codechars[yi]
-								+ codechars[zi] + codechars[wi],
-								m + retval.get(codechars[zi] + codechars[wi]));
-						for (int ui = 0; ui < codechars.length; ui++) {
-							retval.put(
-									codechars[xi] + codechars[yi]
-											+ codechars[zi] + codechars[wi]
-											+ codechars[ui],
-									m
-											+ retval.get(codechars[zi]
-													+ codechars[wi])
-											+ retval.get(codechars[ui]));
-							for (int vi = 0; vi < codechars.length; vi++) {
-								retval.put(
-										codechars[xi] + codechars[yi]
-												+ codechars[zi] + codechars[wi]
-												+ codechars[ui] + codechars[vi],
-										m
-												+ retval.get(codechars[zi]
-														+ codechars[wi])
-												+ retval.get(codechars[ui]
-														+ codechars[vi]));
-							}
-						}
-					}
-				}
+			if (offset < chunk) {
+				sb.append((char) ('A' + index(idx, src[offset]) * (n + 1)));
+				offset++;
 			}
 		}
 
-		return retval;
+		return sb;
 	}
 
-	private static HashMap<String, String> initializeCODE2STR() {
-		int num = 0;
-		int asciibase = 65;
+	// Decode string (based on A, B, C, D, E, ...) to the alphabet chars,
+	// codes out of range are decoded as N
+	private static StringBuilder decode(final CharSequence src,
+			final int start, final int end, final char[] chars,
+			final StringBuilder sb) {
+		int n = chars.length;
 
-		HashMap<String, String> retval = new HashMap<String, String>();
+		for (int i = start; i < end; i++) {
+			int val = src.charAt(i) - 'A';
 
-		for (int xi = 0; xi < codechars.length; xi++) {
-			retval.put(Character.toString((char) (num + asciibase)),
-					codechars[xi]);
+			if (val < 0 || val >= n * (n + 1)) {
+				sb.append('N');
+				continue;
+			}
 
-			num++;
+			sb.append(chars[val / (n + 1)]);
 
-			for (int yi = 0; yi < codechars.length; yi++) {
-				retval.put(Character.toString((char) (num + asciibase)),
-						codechars[xi] + codechars[yi]);
-				num++;
+			if (val % (n + 1) != 0) {
+				sb.append(chars[val % (n + 1) - 1]);
 			}
 		}
 
-		return retval;
+		return sb;
 	}
 
-	/* Encoder/Decoder helpers */
-
-	// Encode DNA chars as compressed string
-	private static String dnaEncode(final String seq) {
-		StringBuilder sb = new StringBuilder();
+	private static int decode(final CharSequence src, final int start,
+			final int end, final char[] chars, final byte[] dst, int off) {
+		int n = chars.length;
+		int begin = off;
 
-		int l = seq.length();
+		for (int i = start; i < end; i++) {
+			int val = src.charAt(i) - 'A';
 
-		int offset = 0;
+			if (val < 0 || val >= n * (n + 1)) {
+				dst[off++] = 'N';
+				continue;
+			}
 
-		while (offset < l) {
-			int r = l - offset;
+			dst[off++] = (byte) chars[val / (n + 1)];
 
-			if (r >= dnachars.length) {
-				sb.append(str2dna_.get(seq.substring(offset, offset
-						+ dnachars.length)));
-				offset += dnachars.length;
-			} else {
-				sb.append(str2dna_.get(seq.substring(offset, offset + r)));
-				offset += r;
+			if (val % (n + 1) != 0) {
+				dst[off++] = (byte) chars[val % (n + 1) - 1];
 			}
 		}
 
-		return sb.toString();
+		return off - begin;
 	}
 
-	// Decode string (based on A, B, C, D, E, ...) to DNA chars
-	private static String dnaDecode(final String encodedSEQ) {
-		StringBuilder sb = new StringBuilder();
-
-		for (int i = 0; i < encodedSEQ.length(); i++) {
-			sb.append(dna2str_.get(encodedSEQ.substring(i, i + 1)));
-		}
-
-		return sb.toString();
+	// Encode DNA chars as compressed string
+	public static String seqEncode(final String seq) {
+		return seqEncode(seq, 0, seq.length(), new StringBuilder(
+				seq.length() / 2 + 1)).toString();
 	}
 
-	// Encode CODE chars as compressed string
-	private static String codeEncode(final String codes) {
-		StringBuilder sb = new StringBuilder();
-
-		int l = codes.length();
-
-		int offset = 0;
-
-		while (offset < l) {
-			int r = l - offset;
-
-			if (r >= codechars.length) {
-				sb.append(str2code_.get(codes.substring(offset, offset
-						+ codechars.length)));
-				offset += codechars.length;
-			} else {
-				sb.append(str2code_.get(codes.substring(offset, offset + r)));
-				offset += r;
-			}
-		}
-
-		return sb.toString();
+	public static StringBuilder seqEncode(final CharSequence seq,
+			final int start, final int end, final StringBuilder sb) {
+		return encode(seq, start, end, dna2idx_, dnachars.length, sb);
 	}
 
-	// Decode string (based on A, B, C, D, E, ...) to CODE chars
-	private static String codeDecode(final String encodedCODES) {
-		StringBuilder sb = new StringBuilder();
-
-		for (int i = 0; i < encodedCODES.length(); i++) {
-			sb.append(code2str_.get(encodedCODES.substring(i, i + 1)));
-		}
+	public static StringBuilder seqEncode(final byte[] seq, final int start,
+			final int end, final StringBuilder sb) {
+		return encode(seq, start, end, dna2idx_, dnachars.length, sb);
+	}
 
-		return sb.toString();
+	// Decode compressed string to DNA chars
+	public static String seqDecode(final String encodedSEQ) {
+		return seqDecode(encodedSEQ, 0, encodedSEQ.length(), new StringBuilder(
+				encodedSEQ.length() * 2)).toString();
 	}
 
-	public static String seqEncode(final String seq) {
-		return dnaEncode(seq);
+	public static StringBuilder seqDecode(final CharSequence encodedSEQ,
+			final int start, final int end, final StringBuilder sb) {
+		return decode(encodedSEQ, start, end, dnachars, sb);
 	}
 
-	public static String seqDecode(final String encodedSEQ) {
-		return dnaDecode(encodedSEQ);
+	// dst needs room for 2 * (end - start) bytes, returns the decoded length
+	public static int seqDecode(final CharSequence encodedSEQ, final int start,
+			final int end, final byte[] dst, final int off) {
+		return decode(encodedSEQ, start, end, dnachars, dst, off);
 	}
 
 	public static boolean seqIsPoly(final String seq, final char base) {
@@ -348,23 +247,47 @@ public class Utils {
 			}
 		}
 
-		return ((1.0f * cnt / seq.length()) >= RATIO_ISPOLY);
+		return seqIsPoly(cnt, seq.length());
+	}
+
+	// cnt of len bases are the same base
+	public static boolean seqIsPoly(final int cnt, final int len) {
+		return ((1.0f * cnt / len) >= RATIO_ISPOLY);
 	}
 
 	public static String qvEncode(final String qv) {
 		return qv;
 	}
 
+	public static StringBuilder qvEncode(final CharSequence qv,
+			final int start, final int end, final StringBuilder sb) {
+		return sb.append(qv, start, end);
+	}
+
 	public static String qvDecode(final String encodedQV) {
 		return encodedQV;
 	}
 
+	// Encode CODE chars as compressed string
 	public static String corrEncode(final String corrMsg) {
-		return codeEncode(corrMsg);
+		return corrEncode(corrMsg, 0, corrMsg.length(), new StringBuilder(
+				corrMsg.length() / 2 + 1)).toString();
 	}
 
+	public static StringBuilder corrEncode(final CharSequence corrMsg,
+			final int start, final int end, final StringBuilder sb) {
+		return encode(corrMsg, start, end, code2idx_, codechars.length, sb);
+	}
+
+	// Decode compressed string to CODE chars
 	public static String corrDecode(final String encodedMsg) {
-		return codeDecode(encodedMsg);
+		return corrDecode(encodedMsg, 0, encodedMsg.length(), new StringBuilder(
+				encodedMsg.length() * 2)).toString();
+	}
+
+	public static StringBuilder corrDecode(final CharSequence encodedMsg,
+			final int start, final int end, final StringBuilder sb) {
+		return decode(encodedMsg, start, end, codechars, sb);
 	}
 
 	/* Converter helpers */
@@ -384,6 +307,22 @@ public class Utils {
 		return sb.toString();
 	}
 
+	// qvInputConvert of the ASCII QVs src[0, len) into dst
+	public static void qvInputConvert(final byte[] src, final int len,
+			final byte[] dst) {
+		for (int i = 0; i < len; i++) {
+			int qv = src[i] & 0xFF;
+
+			if (qv - QV_BASE < QV_LOW) {
+				qv = QV_BASE + QV_LOW;
+			} else if (qv - QV_BASE > QV_UP) {
+				qv = QV_BASE + QV_UP;
+			}
+
+			dst[i] = (byte) qv;
+		}
+	}
+
 	// Convert ASCII based QVs into values (as byte array)
 	public static byte[] qvValueConvert(final String asciiQV,
 			final boolean reverse) {
@@ -402,45 +341,46 @@ public class Utils {
 		return qv_int;
 	}
 
-	// Convert internal QV encoding to output format
-	public static String qvOutputConvert(final String qv) {
-		return qvInflate(qvDeflate(qv));
-	}
+	// Convert ASCII based deflated QVs into inflated values (as byte array),
+	// same as qvValueConvert(qvInflate(qv), reverse)
+	public static byte[] qvInflateValues(final String qv, final boolean reverse) {
+		byte[] qv_int = new byte[qv.length()];
 
-	// Covert IGN string into compressed HEX string
-	// e.g. str{1, 1, 1, 1}=16 => 'F'
-	public static String str2hex(final String ignorelist) {
-		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < qv_int.length; i++) {
+			int target = reverse ? qv_int.length - 1 - i : i;
 
-		byte b = 0x00;
-		for (int i = 0; i < ignorelist.length(); i++) {
-			b <<= 1;
+			qv_int[i] = (byte) ((qv.charAt(target) - QV_BASE)
+					* QV_FLATE_FACTOR + (QV_FLATE_FACTOR / 2));
+		}
 
-			if (ignorelist.charAt(i) == '1') {
-				b |= 0x01;
-			}
+		return qv_int;
+	}
 
-			if ((i + 1) % 4 == 0) {
-				sb.append(hex[b]);
-				b = 0x00;
-			}
+	// Convert internal QV encoding to output format
+	public static String qvOutputConvert(final String qv) {
+		StringBuilder sb = new StringBuilder(qv);
+
+		for (int i = 0; i < sb.length(); i++) {
+			sb.setCharAt(i, (char) qvInflate(qvDeflate(sb.charAt(i))));
 		}
 
 		return sb.toString();
 	}
 
 	public static char idx2char(final int base) {
-		return dnachars[base].charAt(0);
+		return dnachars[base];
 	}
 
 	public static int char2idx(final char base) {
-		for (int i = 0; i < dnachars.length; i++) {
-			if (base == dnachars[i].charAt(0)) {
-				return i;
-			}
-		}
+		return index(dna2idx_, base);
+	}
 
-		return (dnachars.length - 1);
+	private static int qvDeflate(final int qv) {
+		return Math.min((qv - QV_BASE) / QV_FLATE_FACTOR, QV_FLATE_UP) + QV_BASE;
+	}
+
+	private static int qvInflate(final int qv) {
+		return (qv - QV_BASE) * QV_FLATE_FACTOR + (QV_FLATE_FACTOR / 2) + QV_BASE;
 	}
 
 	// deflate 8-bit continuous QV to 4-bit continuous value with offset
@@ -471,285 +411,83 @@ public class Utils {
 
 	// Smooth QV according to its neighbors' minimal value
 	public static String qvSmooth(final String qv) {
-		StringBuilder sb = new StringBuilder(qv);
+		byte[] buf = toBytes(qv);
 
-		for (int i = 0; i < sb.length(); i++) {
-			int start = Math.max(i - QV_SMOOTH_RADIOUS, 0);
-			int end = Math.min(i + QV_SMOOTH_RADIOUS, qv.length() - 1);
-
-			int min = Integer.valueOf(qv.charAt(i) - QV_BASE);
-			for (int j = start; j <= end; j++) {
-				min = Math.min(min, Integer.valueOf(qv.charAt(j) - QV_BASE));
-			}
-
-			sb.setCharAt(i, (char) (min + QV_BASE));
-		}
-
-		return sb.toString();
-	}
-
-	/* helper functions */
+		qvSmooth(buf, buf.length, buf, false, false);
 
-	public String getNodeId() {
-		return id;
+		return toString(buf);
 	}
 
-	public void setNodeId(final String nid) {
-		id = nid;
-	}
-
-	private ArrayList<String> getOrAddField(final String field) {
-		if (fields.containsKey(field)) {
-			return fields.get(field);
-		}
-
-		ArrayList<String> retval = new ArrayList<String>();
-		fields.put(field, retval);
-
-		return retval;
-	}
+	// Same as qvSmooth(qvDeflate(qv))
+	public static String qvDeflateSmooth(final String qv) {
+		byte[] buf = toBytes(qv);
 
-	public boolean containsField(final String key) {
-		return fields.containsKey(key);
-	}
+		qvSmooth(buf, buf.length, buf, true, false);
 
-	public void setField(final String key, final String value) {
-		ArrayList<String> l = getOrAddField(key);
-		l.clear();
-		l.add(value);
+		return toString(buf);
 	}
 
-	public void addField(final String key, final String value) {
-		ArrayList<String> l = getOrAddField(key);
-		l.add(value);
-	}
+	// Same as qvInflate(qvSmooth(qvDeflate(qv)))
+	public static String qvDeflateSmoothInflate(final String qv) {
+		byte[] buf = toBytes(qv);
 
-	public ArrayList<String> getField(final String key) {
-		return fields.get(key);
-	}
+		qvSmooth(buf, buf.length, buf, true, true);
 
-	public void removeField(final String key) {
-		fields.remove(key);
+		return toString(buf);
 	}
 
-	public float getCoverage() {
-		return Float.parseFloat(fields.get(COVERAGE).get(0));
-	}
+	// Minimum of each QV within QV_SMOOTH_RADIOUS, with a monotonic deque of
+	// candidate positions, so it takes O(len). The QVs may be deflated when
+	// they are read and inflated when they are written, dst can be qv.
+	public static void qvSmooth(final byte[] qv, final int len,
+			final byte[] dst, final boolean deflate, final boolean inflate) {
+		final int r = QV_SMOOTH_RADIOUS;
 
-	public void setCoverage(final float cov) {
-		ArrayList<String> l = getOrAddField(COVERAGE);
-		l.clear();
-		l.add(Float.toString(cov));
-	}
+		// dst[i] is written after qv[i + r] is read, keep the values
+		int[] vals = new int[len];
+		int[] deque = new int[len];
+		int head = 0;
+		int tail = 0;
 
-	public String getSEQ() {
-		return getSEQ(true);
-	}
+		for (int j = 0; j < len + r; j++) {
+			if (j < len) {
+				vals[j] = deflate ? qvDeflate(qv[j]) : qv[j];
 
-	public String getSEQ(final boolean decode) {
-		if (decode) {
-			return seqDecode(fields.get(SEQ).get(0));
-		} else {
-			return fields.get(SEQ).get(0);
-		}
-	}
-
-	public void setSEQ(final String seq) {
-		ArrayList<String> l = getOrAddField(SEQ);
-		l.clear();
-		l.add(seqEncode(seq));
-	}
-
-	public String getQV() {
-		return getQV(true);
-	}
-
-	public String getQV(final boolean decode) {
-		if (decode) {
-			return qvDecode(fields.get(QV).get(0));
-		} else {
-			return fields.get(QV).get(0);
-		}
-	}
-
-	public void setQV(final String qv) {
-		ArrayList<String> l = getOrAddField(QV);
-		l.clear();
-		l.add(qvEncode(qv));
-	}
-
-	public void removeQV() {
-		fields.remove(QV);
-	}
-
-	public String getIGN(final String IGNType) {
-		String ignoreListHex = null;
-
-		if (fields.containsKey(IGNType)) {
-			ignoreListHex = fields.get(IGNType).get(0);
-
-			StringBuilder sb = new StringBuilder();
-
-			for (int i = 0; i < ignoreListHex.length(); i++) {
-				int c = ignoreListHex.charAt(i) - '0';
-				if (c > 10) {
-					c = c - 7;
+				while (tail > head && vals[deque[tail - 1]] >= vals[j]) {
+					tail--;
 				}
-
-				sb.append(h2b[c]);
+				deque[tail++] = j;
 			}
 
-			return sb.toString();
-		}
-
-		return null;
-	}
-
-	public void setIGN(final String IGNType, final String ign) {
-		ArrayList<String> l = getOrAddField(IGNType);
-		l.clear();
-		l.add(ign);
-	}
-
-	public void removeIGN(final String IGNType) {
-		fields.remove(IGNType);
-	}
-
-	public int getLen() {
-		return getSEQ().length();
-	}
-
-	public int getGCCnt() {
-		String seq = getSEQ();
+			int i = j - r;
+			if (i >= 0) {
+				while (deque[head] < i - r) {
+					head++;
+				}
 
-		int gccnt = 0;
-		for (int i = 0; i < seq.length(); i++) {
-			if (seq.charAt(i) == 'C' || seq.charAt(i) == 'G') {
-				gccnt++;
+				int min = vals[deque[head]];
+				dst[i] = (byte) (inflate ? qvInflate(min) : min);
 			}
 		}
-
-		return gccnt;
-	}
-
-	public boolean isUnique() {
-		if (fields.containsKey(UNIQUE)) {
-			return fields.get(UNIQUE).get(0).equals("1");
-		}
-
-		return false;
 	}
 
-	public void setOrRemoveUnique(final boolean unique) {
-		if (unique) {
-			ArrayList<String> l = getOrAddField(UNIQUE);
-			l.clear();
-			l.add("1");
-		} else {
-			fields.remove(UNIQUE);
-		}
-	}
-
-	public String toNodeMsg() {
-		return toNodeMsg(false);
-	}
-
-	public String toNodeMsg(final boolean outputNodeID) {
-		StringBuilder sb = new StringBuilder();
-
-		DecimalFormat df = new DecimalFormat("0.00");
-
-		if (outputNodeID) {
-			sb.append(id);
-			sb.append("\t");
-		}
-
-		sb.append(MSGNODE);
-
-		sb.append("\t*");
-		sb.append(SEQ);
-		sb.append("\t");
-		sb.append(getSEQ(false));
-
-		if (containsField(QV)) {
-			sb.append("\t*");
-			sb.append(QV);
-			sb.append("\t");
-			sb.append(getQV(false));
-		}
-
-		sb.append("\t*");
-		sb.append(COVERAGE);
-		sb.append("\t");
-		sb.append(df.format(getCoverage()));
-
-		if (containsField(UNIQUE)) {
-			sb.append("\t*");
-			sb.append(UNIQUE);
-			sb.append("\t");
-			sb.append(fields.get(UNIQUE).get(0));
-		}
-
-		if (containsField(IGNF)) {
-			sb.append("\t*");
-			sb.append(IGNF);
-			for (String t : fields.get(IGNF)) {
-				sb.append("\t");
-				sb.append(t);
-			}
-		}
+	private static byte[] toBytes(final String s) {
+		byte[] buf = new byte[s.length()];
 
-		if (containsField(IGNP)) {
-			sb.append("\t*");
-			sb.append(IGNP);
-			for (String t : fields.get(IGNP)) {
-				sb.append("\t");
-				sb.append(t);
-			}
+		for (int i = 0; i < buf.length; i++) {
+			buf[i] = (byte) s.charAt(i);
 		}
 
-		return sb.toString();
+		return buf;
 	}
 
-	public void fromNodeMsg(final String nodestr) throws IOException {
-		fields.clear();
-
-		String[] items = nodestr.split("\t");
-
-		id = items[0];
-		parseNodeMsg(items, 1);
-	}
-
-	public void parseNodeMsg(final String[] items, int offset)
-			throws IOException {
-		if (!items[offset].equals(MSGNODE)) {
-			throw new IOException("Unknown code: " + items[offset]);
-		}
-
-		ArrayList<String> l = null;
-
-		offset++;
-
-		while (offset < items.length) {
-			if (items[offset].charAt(0) == '*' && items[offset].length() == 2) {
-				String type = items[offset].substring(1);
-				l = fields.get(type);
-
-				if (l == null) {
-					l = new ArrayList<String>();
-					fields.put(type, l);
-				}
-			} else if (l != null) {
-				l.add(items[offset]);
-			}
-
-			offset++;
-		}
+	private static String toString(final byte[] buf) {
+		return new String(buf, StandardCharsets.ISO_8859_1);
 	}
 
 	// reverse complement
 	public static Character rcSEQ(final char chr) {
-		return rcSEQ(String.valueOf(chr)).charAt(0);
+		return (char) rcBase((byte) chr);
 	}
 
 	public static String rcSEQ(final String seq) {
@@ -772,11 +510,28 @@ public class Utils {
 		return sb.toString();
 	}
 
-	public Utils(final String nid) {
-		id = nid;
+	// reverse complement seq[start, end) in place
+	public static void rcSEQ(final byte[] seq, final int start, final int end) {
+		for (int i = start, j = end - 1; i <= j; i++, j--) {
+			byte b = rcBase(seq[i]);
+			seq[i] = rcBase(seq[j]);
+			seq[j] = b;
+		}
 	}
 
-	public Utils() {
+	private static byte rcBase(final byte base) {
+		switch (base) {
+		case 'A':
+			return 'T';
+		case 'T':
+			return 'A';
+		case 'C':
+			return 'G';
+		case 'G':
+			return 'C';
+		default:
+			return base;
+		}
 	}
 
 	public static void main(String[] args) throws Exception {
@@ -0,0 +1,115 @@
+/*
+ * (C) Copyright 2017 The CloudEC Project and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Contributors:
+ *      Wei-Chun Chung (wcchung@iis.sinica.edu.tw)
+ *      Chien-Chih Chen (rocky@iis.sinica.edu.tw)
+ * 
+ * CloudEC Project:
+ *      https://github.com/CSCLabTW/CloudEC/
+ */
+
+package tw.edu.sinica.iis.CloudEC;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+// Correction votes sent to a read: a list of (position, base) pairs, where
+// the base is its index in Utils.idx2char() (A, T, C, G, or N to protect
+// the base). Each pair is packed as (pos << 3 | base) and written as a vint.
+public class VoteWritable implements Writable {
+	private int size = 0;
+	private int[] votes = new int[16];
+
+	public void clear() {
+		size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private void ensure(final int capacity) {
+		if (votes.length < capacity) {
+			int[] tmp = new int[Math.max(capacity, votes.length * 2)];
+			System.arraycopy(votes, 0, tmp, 0, size);
+			votes = tmp;
+		}
+	}
+
+	public void add(final int pos, final int base) {
+		ensure(size + 1);
+		votes[size++] = (pos << 3) | base;
+	}
+
+	public void add(final int pos, final char base) {
+		add(pos, Utils.char2idx(base));
+	}
+
+	public void addAll(final VoteWritable other) {
+		ensure(size + other.size);
+		System.arraycopy(other.votes, 0, votes, size, other.size);
+		size += other.size;
+	}
+
+	public int getPos(final int i) {
+		return votes[i] >>> 3;
+	}
+
+	public int getBase(final int i) {
+		return votes[i] & 0x07;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		WritableUtils.writeVInt(out, size);
+
+		for (int i = 0; i < size; i++) {
+			WritableUtils.writeVInt(out, votes[i]);
+		}
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		size = 0;
+
+		int n = WritableUtils.readVInt(in);
+		ensure(n);
+
+		for (int i = 0; i < n; i++) {
+			votes[i] = WritableUtils.readVInt(in);
+		}
+
+		size = n;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+
+		for (int i = 0; i < size; i++) {
+			if (i > 0) {
+				sb.append(' ');
+			}
+			sb.append(getPos(i)).append(':').append(Utils.idx2char(getBase(i)));
+		}
+
+		return sb.toString();
+	}
+}